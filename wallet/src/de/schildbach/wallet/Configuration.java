@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Strings;
 
 import de.schildbach.wallet.data.ExchangeRate;
+import de.schildbach.wallet.service.MappedBlockStore;
 import de.schildbach.wallet_test.R;
 
 import android.content.SharedPreferences;
@@ -55,6 +56,7 @@ public class Configuration {
     public static final String PREFS_KEY_DATA_USAGE = "data_usage";
     public static final String PREFS_KEY_REMIND_BALANCE = "remind_balance";
     public static final String PREFS_KEY_DISCLAIMER = "disclaimer";
+    public static final String PREFS_KEY_BLOCK_STORE_CAPACITY = "block_store_capacity";
 
     private static final String PREFS_KEY_LAST_VERSION = "last_version";
     private static final String PREFS_KEY_LAST_USED = "last_used";
@@ -67,9 +69,11 @@ public class Configuration {
     public static final String PREFS_KEY_REMIND_BACKUP = "remind_backup";
     private static final String PREFS_KEY_LAST_BACKUP = "last_backup";
     private static final String PREFS_KEY_LAST_BLUETOOTH_ADDRESS = "last_bluetooth_address";
+    private static final String PREFS_KEY_KEY_BACKUP_FINGERPRINT = "key_backup_fingerprint";
 
     private static final int PREFS_DEFAULT_BTC_SHIFT = 0;
     private static final int PREFS_DEFAULT_BTC_PRECISION = 4;
+    private static final int PREFS_MIN_BLOCK_STORE_CAPACITY = 1000;
 
     private static final Logger log = LoggerFactory.getLogger(Configuration.class);
 
@@ -150,6 +154,19 @@ public class Configuration {
                 res.getStringArray(R.array.preferences_block_explorer_values)[0]));
     }
 
+    /** Number of most recent block headers kept in the block store. */
+    public int getBlockStoreCapacity() {
+        final String capacity = prefs.getString(PREFS_KEY_BLOCK_STORE_CAPACITY, null);
+        if (capacity != null) {
+            try {
+                return Math.max(Integer.parseInt(capacity), PREFS_MIN_BLOCK_STORE_CAPACITY);
+            } catch (final NumberFormatException x) {
+                log.info("ignoring block store capacity: {}", capacity);
+            }
+        }
+        return MappedBlockStore.DEFAULT_CAPACITY;
+    }
+
     public boolean remindBalance() {
         return prefs.getBoolean(PREFS_KEY_REMIND_BALANCE, true);
     }
@@ -278,6 +295,14 @@ public class Configuration {
             prefs.edit().putString(PREFS_KEY_LAST_BLUETOOTH_ADDRESS, bluetoothAddress).apply();
     }
 
+    public String getKeyBackupFingerprint() {
+        return prefs.getString(PREFS_KEY_KEY_BACKUP_FINGERPRINT, null);
+    }
+
+    public void setKeyBackupFingerprint(final String fingerprint) {
+        prefs.edit().putString(PREFS_KEY_KEY_BACKUP_FINGERPRINT, fingerprint).apply();
+    }
+
     public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
         prefs.registerOnSharedPreferenceChangeListener(listener);
     }
@@ -67,8 +67,15 @@ public final class Constants {
         /** Filename of the wallet. */
         public static final String WALLET_FILENAME_PROTOBUF = "wallet-protobuf" + FILENAME_NETWORK_SUFFIX;
 
-        /** How often the wallet is autosaved. */
-        public static final long WALLET_AUTOSAVE_DELAY_MS = 3 * DateUtils.SECOND_IN_MILLIS;
+        /**
+         * How often the wallet is autosaved in full. Changes in between are appended to the journal and synced to
+         * disk, so a longer delay doesn't risk losing them, but saves rewriting the whole wallet every few seconds
+         * while catching up with the block chain.
+         */
+        public static final long WALLET_AUTOSAVE_DELAY_MS = DateUtils.MINUTE_IN_MILLIS;
+
+        /** Filename of the journal of wallet changes since the last full save. */
+        public static final String WALLET_JOURNAL_FILENAME = "wallet-journal" + FILENAME_NETWORK_SUFFIX;
 
         /** Filename of the automatic key backup (old format, can only be read). */
         public static final String WALLET_KEY_BACKUP_BASE58 = "key-backup-base58" + FILENAME_NETWORK_SUFFIX;
@@ -99,9 +106,24 @@ public final class Constants {
         /** Filename of the block checkpoints file. */
         public static final String CHECKPOINTS_FILENAME = "checkpoints" + FILENAME_NETWORK_SUFFIX + ".txt";
 
+        /** Filename of the binary block checkpoints file, generated from the text file at build time. */
+        public static final String CHECKPOINTS_BINARY_FILENAME = "checkpoints" + FILENAME_NETWORK_SUFFIX + ".bin";
+
         /** Filename of the fees files. */
         public static final String FEES_FILENAME = "fees" + FILENAME_NETWORK_SUFFIX + ".txt";
 
+        /** Filename of the measured peer performance. */
+        public static final String PEER_SCORES_FILENAME = "peer-scores" + FILENAME_NETWORK_SUFFIX;
+
+        /** Filename of the observed wallet activity, for scheduling syncs. */
+        public static final String SYNC_HISTORY_FILENAME = "sync-history" + FILENAME_NETWORK_SUFFIX;
+
+        /** Filename of the transaction summaries shown on cold start. */
+        public static final String TRANSACTIONS_SNAPSHOT_FILENAME = "transactions-snapshot" + FILENAME_NETWORK_SUFFIX;
+
+        /** Filename of the exchange rates as last fetched. */
+        public static final String EXCHANGE_RATES_FILENAME = "exchange-rates" + FILENAME_NETWORK_SUFFIX;
+
         /** Filename of the file containing Electrum servers. */
         public static final String ELECTRUM_SERVERS_FILENAME = "electrum-servers.txt";
     }
@@ -20,10 +20,12 @@ package de.schildbach.wallet;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.time.Clock;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import org.bitcoinj.core.Transaction;
@@ -43,11 +45,16 @@ import org.slf4j.LoggerFactory;
 import com.google.common.base.Splitter;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
 
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.BlockchainStateHolder;
+import de.schildbach.wallet.service.SyncScheduler;
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.CrashReporter;
+import de.schildbach.wallet.util.WalletProtobufReader;
+import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.BuildConfig;
 import de.schildbach.wallet_test.R;
 
@@ -66,6 +73,10 @@ import android.media.AudioAttributes;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
@@ -92,9 +103,31 @@ public class WalletApplication extends Application {
     private Intent blockchainServiceResetBlockchainIntent;
 
     private File walletFile;
-    private Wallet wallet;
+    private File walletJournalFile;
+    private volatile Wallet wallet;
+    private volatile WalletJournal walletJournal;
+    private final SettableFuture<Wallet> walletLoaded = SettableFuture.create();
+    private boolean mnemonicCodeLoaded = false;
     private PackageInfo packageInfo;
 
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Executor mainThreadExecutor = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            handler.post(runnable);
+        }
+    };
+    private Handler backupHandler;
+    private final BlockchainStateHolder blockchainStateHolder = new BlockchainStateHolder();
+
+    private final Runnable backupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+            backupWalletNow(wallet);
+        }
+    };
+
     public static final String ACTION_WALLET_REFERENCE_CHANGED = WalletApplication.class.getPackage().getName()
             + ".wallet_reference_changed";
 
@@ -138,8 +171,6 @@ public class WalletApplication extends Application {
             }
         };
 
-        initMnemonicCode();
-
         config = new Configuration(PreferenceManager.getDefaultSharedPreferences(this), getResources());
         activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
 
@@ -150,27 +181,64 @@ public class WalletApplication extends Application {
                 BlockchainServiceImpl.class);
 
         walletFile = getFileStreamPath(Constants.Files.WALLET_FILENAME_PROTOBUF);
+        walletJournalFile = getFileStreamPath(Constants.Files.WALLET_JOURNAL_FILENAME);
 
-        loadWalletFromProtobuf();
+        // before the wallet loader starts writing temporary files
+        cleanupFiles();
 
-        if (config.versionCodeCrossed(packageInfo.versionCode, VERSION_CODE_SHOW_BACKUP_REMINDER)
-                && !wallet.getImportedKeys().isEmpty()) {
-            log.info("showing backup reminder once, because of imported keys being present");
-            config.armBackupReminder();
-        }
+        final HandlerThread backupThread = new HandlerThread("backupThread", Process.THREAD_PRIORITY_BACKGROUND);
+        backupThread.start();
+        backupHandler = new Handler(backupThread.getLooper());
 
+        final boolean versionCodeCrossed = config.versionCodeCrossed(packageInfo.versionCode,
+                VERSION_CODE_SHOW_BACKUP_REMINDER);
         config.updateLastVersionCode(packageInfo.versionCode);
         config.updateLastBluetoothAddress(Bluetooth.getAddress(BluetoothAdapter.getDefaultAdapter()));
 
-        afterLoadWallet();
+        new Thread("walletLoader") {
+            @Override
+            public void run() {
+                org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+                try {
+                    final Stopwatch watch = Stopwatch.createStarted();
+                    loadWalletFromProtobuf();
+                    final long loadMs = watch.elapsed(TimeUnit.MILLISECONDS);
+
+                    if (versionCodeCrossed && !wallet.getImportedKeys().isEmpty()) {
+                        log.info("showing backup reminder once, because of imported keys being present");
+                        config.armBackupReminder();
+                    }
 
-        cleanupFiles();
+                    afterLoadWallet();
+                    watch.stop();
+                    log.info("startup: wallet loaded in {} ms, prepared in {} ms, ready {} ms after app start",
+                            loadMs, watch.elapsed(TimeUnit.MILLISECONDS) - loadMs,
+                            System.currentTimeMillis() - TIME_CREATE_APPLICATION);
+                    walletLoaded.set(wallet);
+                } catch (final Throwable x) {
+                    log.error("problem loading wallet", x);
+                    walletLoaded.setException(x);
+                    return;
+                }
+
+                // not needed until the first mnemonic use, but that can happen implicitly inside bitcoinj (e.g. when
+                // upgrading to a deterministic wallet), so have it ready without delaying the wallet
+                initMnemonicCode();
+            }
+        }.start();
 
         initNotificationManager();
+
+        log.info("startup: application created {} ms after app start",
+                System.currentTimeMillis() - TIME_CREATE_APPLICATION);
     }
 
     private void afterLoadWallet() {
-        wallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS, null);
+        walletJournal = new WalletJournal(walletJournalFile, wallet, walletFile);
+        wallet.autosaveToFile(walletFile, Constants.Files.WALLET_AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS,
+                walletJournal);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, walletJournal);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, walletJournal);
 
         // clean up spam
         wallet.cleanup();
@@ -242,12 +310,17 @@ public class WalletApplication extends Application {
 
     private static final String BIP39_WORDLIST_FILENAME = "bip39-wordlist.txt";
 
-    private void initMnemonicCode() {
+    /** Loads the BIP39 wordlist, if it hasn't been loaded yet. Needed before new key chains can be created. */
+    public synchronized void initMnemonicCode() {
+        if (mnemonicCodeLoaded)
+            return;
+
         try {
             final Stopwatch watch = Stopwatch.createStarted();
             MnemonicCode.INSTANCE = new MnemonicCode(getAssets().open(BIP39_WORDLIST_FILENAME), null);
             watch.stop();
             log.info("BIP39 wordlist loaded from: '{}', took {}", BIP39_WORDLIST_FILENAME, watch);
+            mnemonicCodeLoaded = true;
         } catch (final IOException x) {
             throw new Error(x);
         }
@@ -257,10 +330,63 @@ public class WalletApplication extends Application {
         return config;
     }
 
+    /**
+     * Returns the wallet, waiting for it to be loaded if necessary. Activities should avoid the wait on the main
+     * thread by checking {@link #isWalletLoaded()} and deferring with {@link #runWhenWalletLoaded(Runnable)}.
+     */
     public Wallet getWallet() {
+        if (!walletLoaded.isDone())
+            awaitWallet();
         return wallet;
     }
 
+    public WalletJournal getWalletJournal() {
+        getWallet(); // the journal is created along with the wallet
+        return walletJournal;
+    }
+
+    public BlockchainStateHolder getBlockchainStateHolder() {
+        return blockchainStateHolder;
+    }
+
+    public boolean isWalletLoaded() {
+        return walletLoaded.isDone();
+    }
+
+    /** Runs the given callback on the main thread, once the wallet is loaded. */
+    public void runWhenWalletLoaded(final Runnable callback) {
+        walletLoaded.addListener(callback, mainThreadExecutor);
+    }
+
+    private void awaitWallet() {
+        final Stopwatch watch = Stopwatch.createStarted();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    walletLoaded.get();
+                    break;
+                } catch (final InterruptedException x) {
+                    interrupted = true;
+                }
+            }
+        } catch (final ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof Error)
+                throw (Error) cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            else
+                throw new RuntimeException(cause);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        watch.stop();
+        if (Looper.myLooper() == Looper.getMainLooper())
+            log.info("startup: main thread waited {} for wallet", watch);
+    }
+
     private void loadWalletFromProtobuf() {
         if (walletFile.exists()) {
             FileInputStream walletStream = null;
@@ -268,7 +394,7 @@ public class WalletApplication extends Application {
             try {
                 final Stopwatch watch = Stopwatch.createStarted();
                 walletStream = new FileInputStream(walletFile);
-                wallet = new WalletProtobufSerializer().readWallet(Constants.NETWORK_PARAMETERS, null, WalletProtobufSerializer.parseToProto(walletStream));
+                wallet = WalletProtobufReader.readWallet(walletStream, Constants.NETWORK_PARAMETERS);
                 watch.stop();
 
                 if (!wallet.getParams().equals(Constants.NETWORK_PARAMETERS))
@@ -278,19 +404,19 @@ public class WalletApplication extends Application {
             } catch (final FileNotFoundException x) {
                 log.error("problem loading wallet", x);
 
-                Toast.makeText(WalletApplication.this, x.getClass().getName(), Toast.LENGTH_LONG).show();
+                toast(x.getClass().getName());
 
                 wallet = restoreWalletFromBackup();
             } catch (final UnreadableWalletException x) {
                 log.error("problem loading wallet", x);
 
-                Toast.makeText(WalletApplication.this, x.getClass().getName(), Toast.LENGTH_LONG).show();
+                toast(x.getClass().getName());
 
                 wallet = restoreWalletFromBackup();
             } catch (final IOException x) {
                 log.error("problem loading wallet", x);
 
-                Toast.makeText(WalletApplication.this, x.getClass().getName(), Toast.LENGTH_LONG).show();
+                toast(x.getClass().getName());
 
                 wallet = restoreWalletFromBackup();
             } finally {
@@ -304,15 +430,26 @@ public class WalletApplication extends Application {
             }
 
             if (!wallet.isConsistent()) {
-                Toast.makeText(this, "inconsistent wallet: " + walletFile, Toast.LENGTH_LONG).show();
+                toast("inconsistent wallet: " + walletFile);
 
                 wallet = restoreWalletFromBackup();
             }
 
+            try {
+                // recover changes since the last full save, then start over with an empty journal
+                if (WalletJournal.replay(walletJournalFile, wallet) > 0)
+                    protobufSerializeWallet(wallet);
+                WalletJournal.delete(walletJournalFile);
+            } catch (final IOException x) {
+                log.error("problem replaying wallet journal", x);
+            }
+
             if (!wallet.getParams().equals(Constants.NETWORK_PARAMETERS))
                 throw new Error("bad wallet network parameters: " + wallet.getParams().getId());
         } else {
+            initMnemonicCode(); // for the seed of the new wallet
             wallet = new Wallet(Constants.NETWORK_PARAMETERS);
+            WalletJournal.delete(walletJournalFile);
 
             saveWallet();
             backupWallet();
@@ -329,14 +466,16 @@ public class WalletApplication extends Application {
         try {
             is = openFileInput(Constants.Files.WALLET_KEY_BACKUP_PROTOBUF);
 
-            final Wallet wallet = new WalletProtobufSerializer().readWallet(Constants.NETWORK_PARAMETERS, null, WalletProtobufSerializer.parseToProto(is));
+            final Wallet wallet = WalletProtobufReader.readWallet(is, Constants.NETWORK_PARAMETERS);
 
             if (!wallet.isConsistent())
                 throw new Error("inconsistent backup");
 
+            // the journal belongs to the wallet that is being replaced
+            WalletJournal.delete(walletJournalFile);
             resetBlockchain();
 
-            Toast.makeText(this, R.string.toast_wallet_reset, Toast.LENGTH_LONG).show();
+            toast(getString(R.string.toast_wallet_reset));
 
             log.info("wallet restored from backup: '" + Constants.Files.WALLET_KEY_BACKUP_PROTOBUF + "'");
 
@@ -354,6 +493,15 @@ public class WalletApplication extends Application {
         }
     }
 
+    private void toast(final String text) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(WalletApplication.this, text, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
     public void saveWallet() {
         try {
             protobufSerializeWallet(wallet);
@@ -364,14 +512,35 @@ public class WalletApplication extends Application {
 
     private void protobufSerializeWallet(final Wallet wallet) throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
-        wallet.saveToFile(walletFile);
+        final WalletJournal walletJournal = this.walletJournal;
+        if (walletJournal != null)
+            walletJournal.snapshot();
+        else
+            wallet.saveToFile(walletFile);
         watch.stop();
 
         log.info("wallet saved to: '{}', took {}", walletFile, watch);
     }
 
+    /**
+     * Backs up the keys of the wallet in the background. Nothing is written if they haven't changed since the last
+     * backup.
+     */
     public void backupWallet() {
+        // coalesce, the backup always reflects the wallet at the time it runs
+        backupHandler.removeCallbacks(backupRunnable);
+        backupHandler.post(backupRunnable);
+    }
+
+    private void backupWalletNow(final Wallet wallet) {
         final Stopwatch watch = Stopwatch.createStarted();
+        final File backupFile = getFileStreamPath(Constants.Files.WALLET_KEY_BACKUP_PROTOBUF);
+        final String fingerprint = WalletUtils.keyBackupFingerprint(wallet);
+        if (backupFile.exists() && fingerprint.equals(config.getKeyBackupFingerprint())) {
+            log.info("keys unchanged since last backup, took {}", watch);
+            return;
+        }
+
         final Protos.Wallet.Builder builder = new WalletProtobufSerializer().walletToProto(wallet).toBuilder();
 
         // strip redundant
@@ -381,20 +550,33 @@ public class WalletApplication extends Application {
         builder.clearLastSeenBlockTimeSecs();
         final Protos.Wallet walletProto = builder.build();
 
-        OutputStream os = null;
+        // write to a temporary file first, so there is always a complete backup
+        final File tempFile = new File(backupFile.getParentFile(), backupFile.getName() + ".tmp");
+        FileOutputStream os = null;
 
         try {
-            os = openFileOutput(Constants.Files.WALLET_KEY_BACKUP_PROTOBUF, Context.MODE_PRIVATE);
+            os = new FileOutputStream(tempFile);
             walletProto.writeTo(os);
+            os.getFD().sync();
+            os.close();
+            os = null;
+
+            if (!tempFile.renameTo(backupFile))
+                throw new IOException("cannot rename " + tempFile + " to " + backupFile);
+
+            config.setKeyBackupFingerprint(fingerprint);
             watch.stop();
             log.info("wallet backed up to: '{}', took {}", Constants.Files.WALLET_KEY_BACKUP_PROTOBUF, watch);
         } catch (final IOException x) {
             log.error("problem writing wallet backup", x);
+            tempFile.delete();
         } finally {
-            try {
-                os.close();
-            } catch (final IOException x) {
-                // swallow
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
             }
         }
     }
@@ -455,6 +637,8 @@ public class WalletApplication extends Application {
     public void replaceWallet(final Wallet newWallet) {
         resetBlockchain();
         wallet.shutdownAutosaveAndWait();
+        walletJournal.close();
+        WalletJournal.delete(walletJournalFile);
 
         wallet = newWallet;
         config.maybeIncrementBestChainHeightEver(newWallet.getLastBlockSeenHeight());
@@ -531,14 +715,18 @@ public class WalletApplication extends Application {
                 context.getResources());
         final long lastUsedAgo = config.getLastUsedAgo();
 
-        // apply some backoff
-        final long alarmInterval;
+        // apply some backoff, syncing earlier when payments are expected
+        final long maxAlarmInterval;
         if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_JUST_MS)
-            alarmInterval = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
+            maxAlarmInterval = AlarmManager.INTERVAL_HALF_HOUR;
         else if (lastUsedAgo < Constants.LAST_USAGE_THRESHOLD_RECENTLY_MS)
-            alarmInterval = AlarmManager.INTERVAL_HALF_DAY;
+            maxAlarmInterval = AlarmManager.INTERVAL_HALF_DAY;
         else
-            alarmInterval = AlarmManager.INTERVAL_DAY;
+            maxAlarmInterval = AlarmManager.INTERVAL_DAY;
+        final long now = System.currentTimeMillis();
+        final SyncScheduler syncScheduler = new SyncScheduler(
+                context.getFileStreamPath(Constants.Files.SYNC_HISTORY_FILENAME));
+        final long alarmInterval = syncScheduler.nextSyncDelay(now, maxAlarmInterval);
 
         log.info("last used {} minutes ago, rescheduling blockchain sync in roughly {} minutes",
                 lastUsedAgo / DateUtils.MINUTE_IN_MILLIS, alarmInterval / DateUtils.MINUTE_IN_MILLIS);
@@ -549,7 +737,6 @@ public class WalletApplication extends Application {
         alarmManager.cancel(alarmIntent);
 
         // workaround for no inexact set() before KitKat
-        final long now = System.currentTimeMillis();
         alarmManager.setInexactRepeating(AlarmManager.RTC_WAKEUP, now + alarmInterval, AlarmManager.INTERVAL_DAY,
                 alarmIntent);
     }
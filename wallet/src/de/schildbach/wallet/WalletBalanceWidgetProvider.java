@@ -60,9 +60,13 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(final Context context, final AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
         final WalletApplication application = (WalletApplication) context.getApplicationContext();
-        final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
-
-        updateWidgets(context, appWidgetManager, appWidgetIds, balance);
+        runWhenWalletLoaded(application, new Runnable() {
+            @Override
+            public void run() {
+                final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+                updateWidgets(context, appWidgetManager, appWidgetIds, balance);
+            }
+        });
     }
 
     @Override
@@ -73,9 +77,32 @@ public class WalletBalanceWidgetProvider extends AppWidgetProvider {
                     newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH));
 
         final WalletApplication application = (WalletApplication) context.getApplicationContext();
-        final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+        runWhenWalletLoaded(application, new Runnable() {
+            @Override
+            public void run() {
+                final Coin balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+                updateWidget(context, appWidgetManager, appWidgetId, newOptions, balance);
+            }
+        });
+    }
 
-        updateWidget(context, appWidgetManager, appWidgetId, newOptions, balance);
+    /** Widget updates arrive on the main thread, so don't let them wait for the wallet to load. */
+    private void runWhenWalletLoaded(final WalletApplication application, final Runnable runnable) {
+        if (application.isWalletLoaded()) {
+            runnable.run();
+        } else {
+            final PendingResult result = goAsync();
+            application.runWhenWalletLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        result.finish();
+                    }
+                }
+            });
+        }
     }
 
     public static void updateWidgets(final Context context, final Wallet wallet) {
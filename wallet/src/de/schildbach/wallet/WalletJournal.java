@@ -0,0 +1,403 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletFiles;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.util.Io;
+
+/**
+ * Append-only journal of what the block chain and the network did to the wallet since it was last saved in full.
+ *
+ * <p>
+ * Rewriting the whole wallet after every change is expensive while catching up with the block chain, so full saves
+ * (snapshots) are done rarely and every relevant transaction, every new best block and every pending transaction is
+ * appended here in the meantime. When the wallet is loaded, {@link #replay(File, Wallet)} feeds the journal to the
+ * wallet in the same way the block chain did, and so recovers what happened after the last snapshot.
+ *
+ * <p>
+ * Each record is a length, a CRC32 and a type, followed by the payload. A record torn by a crash ends the replay.
+ * When a snapshot begins, the journal is moved aside, so that records appended during the snapshot go to a fresh
+ * journal. Once the snapshot is on disk, the old journal is deleted.
+ *
+ * @author Andreas Schildbach
+ */
+public final class WalletJournal implements TransactionReceivedInBlockListener, NewBestBlockListener,
+        ReorganizeListener, WalletCoinsReceivedEventListener, WalletCoinsSentEventListener, WalletFiles.Listener {
+    private static final byte TYPE_TX_IN_BLOCK = 1;
+    private static final byte TYPE_TX_HASH_IN_BLOCK = 2;
+    private static final byte TYPE_BEST_BLOCK = 3;
+    private static final byte TYPE_PENDING_TX = 4;
+
+    private static final int MAX_RECORD_LENGTH = 4 * 1024 * 1024;
+
+    // a best block arrives for every header while catching up, so those alone are synced at most this often
+    private static final long BEST_BLOCK_SYNC_INTERVAL_MS = 1000;
+
+    private final File file;
+    private final File oldFile;
+    private final Wallet wallet;
+    private final File walletFile;
+
+    @Nullable
+    private FileOutputStream os;
+    private int snapshotsInProgress = 0;
+    private boolean autosaveInProgress = false;
+    private long lastSyncAt = 0;
+    private boolean closed = false;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public WalletJournal(final File file, final Wallet wallet, final File walletFile) {
+        this.file = file;
+        this.oldFile = oldFile(file);
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+    }
+
+    /** Saves the wallet in full and drops the journal records it covers. */
+    public void snapshot() throws IOException {
+        beginSnapshot();
+        boolean saved = false;
+        try {
+            wallet.saveToFile(walletFile);
+            saved = true;
+        } finally {
+            endSnapshot(saved);
+        }
+    }
+
+    public synchronized void close() {
+        closeStream();
+        closed = true;
+    }
+
+    @Override
+    public synchronized void onBeforeAutoSave(final File tempFile) {
+        // autosaves run one after the other, so if the last one didn't finish, it failed and won't ever finish
+        if (autosaveInProgress) {
+            log.warn("previous autosave of '{}' failed", walletFile);
+            snapshotsInProgress--;
+        }
+        autosaveInProgress = true;
+        beginSnapshot();
+    }
+
+    @Override
+    public void onAfterAutoSave(final File newlySavedFile) {
+        synchronized (this) {
+            autosaveInProgress = false;
+        }
+        endSnapshot(true);
+    }
+
+    private synchronized void beginSnapshot() {
+        closeStream();
+        snapshotsInProgress++;
+
+        if (!file.exists())
+            return;
+        if (!oldFile.exists()) {
+            if (file.renameTo(oldFile))
+                return;
+            log.warn("failed to rename journal '{}' to '{}'", file, oldFile);
+        }
+
+        // the journal moved aside earlier isn't covered by a snapshot yet, so keep both
+        InputStream is = null;
+        FileOutputStream os = null;
+        try {
+            is = new FileInputStream(file);
+            os = new FileOutputStream(oldFile, true);
+            Io.copy(is, os);
+            os.getFD().sync();
+            file.delete();
+        } catch (final IOException x) {
+            log.warn("problem appending journal '" + file + "' to '" + oldFile + "'", x);
+        } finally {
+            closeQuietly(is);
+            closeQuietly(os);
+        }
+    }
+
+    private synchronized void endSnapshot(final boolean saved) {
+        // records moved aside for a concurrent snapshot may not be covered by this one
+        if (--snapshotsInProgress == 0 && saved)
+            oldFile.delete();
+    }
+
+    @Override
+    public void receiveFromBlock(final Transaction tx, final StoredBlock block, final NewBlockType blockType,
+            final int relativityOffset) throws VerificationException {
+        // side chains are rare; the snapshot on reorganize takes care of them
+        if (blockType != NewBlockType.BEST_CHAIN || wallet.getTransaction(tx.getHash()) == null)
+            return;
+        final byte[] txBytes = tx.unsafeBitcoinSerialize();
+        final ByteBuffer payload = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 4 + txBytes.length);
+        block.serializeCompact(payload);
+        payload.putInt(relativityOffset);
+        payload.put(txBytes);
+        append(TYPE_TX_IN_BLOCK, payload.array());
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(final Sha256Hash txHash, final StoredBlock block,
+            final NewBlockType blockType, final int relativityOffset) throws VerificationException {
+        if (blockType == NewBlockType.BEST_CHAIN && wallet.getTransaction(txHash) != null) {
+            final ByteBuffer payload = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 4 + 32);
+            block.serializeCompact(payload);
+            payload.putInt(relativityOffset);
+            payload.put(txHash.getBytes());
+            append(TYPE_TX_HASH_IN_BLOCK, payload.array());
+        }
+        return false;
+    }
+
+    @Override
+    public void notifyNewBestBlock(final StoredBlock block) throws VerificationException {
+        final ByteBuffer payload = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(payload);
+        append(TYPE_BEST_BLOCK, payload.array());
+    }
+
+    @Override
+    public void reorganize(final StoredBlock splitPoint, final List<StoredBlock> oldBlocks,
+            final List<StoredBlock> newBlocks) throws VerificationException {
+        // records of blocks that are no longer on the best chain must not be replayed
+        try {
+            snapshot();
+        } catch (final IOException x) {
+            log.error("problem saving wallet after reorganize", x);
+        }
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        maybeAppendPending(tx);
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        maybeAppendPending(tx);
+    }
+
+    private void maybeAppendPending(final Transaction tx) {
+        // transactions in blocks are taken care of by the block chain listeners
+        if (tx.getConfidence().getConfidenceType() == ConfidenceType.PENDING)
+            append(TYPE_PENDING_TX, tx.unsafeBitcoinSerialize());
+    }
+
+    private synchronized void append(final byte type, final byte[] payload) {
+        if (closed)
+            return;
+
+        final ByteBuffer record = ByteBuffer.allocate(4 + 4 + 1 + payload.length);
+        record.putInt(1 + payload.length);
+        record.putInt(crc(type, payload));
+        record.put(type);
+        record.put(payload);
+
+        try {
+            if (os == null)
+                os = new FileOutputStream(file, true);
+            os.write(record.array());
+            final long now = System.currentTimeMillis();
+            if (type != TYPE_BEST_BLOCK || now - lastSyncAt >= BEST_BLOCK_SYNC_INTERVAL_MS) {
+                os.getFD().sync();
+                lastSyncAt = now;
+            }
+        } catch (final IOException x) {
+            log.error("problem appending to journal '" + file + "'", x);
+            closeStream();
+        }
+    }
+
+    private void closeStream() {
+        closeQuietly(os);
+        os = null;
+    }
+
+    /**
+     * Replays the journal, if there is one, on top of a freshly loaded wallet.
+     *
+     * @return number of records that changed the wallet
+     */
+    public static int replay(final File file, final Wallet wallet) throws IOException {
+        return replayFile(oldFile(file), wallet) + replayFile(file, wallet);
+    }
+
+    /** Deletes the journal, e.g. because the wallet it belongs to is gone. */
+    public static void delete(final File file) {
+        oldFile(file).delete();
+        file.delete();
+    }
+
+    private static int replayFile(final File file, final Wallet wallet) throws IOException {
+        if (!file.exists())
+            return 0;
+
+        final NetworkParameters params = wallet.getParams();
+        final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int numRecords = 0;
+        int numApplied = 0;
+        try {
+            while (true) {
+                final int length;
+                final int crc;
+                final byte[] record;
+                try {
+                    length = is.readInt();
+                    crc = is.readInt();
+                    if (length < 1 || length > MAX_RECORD_LENGTH) {
+                        log.warn("journal '{}' has bad record length {}, ignoring the rest", file, length);
+                        break;
+                    }
+                    record = new byte[length];
+                    is.readFully(record);
+                } catch (final EOFException x) {
+                    break; // possibly torn by a crash
+                }
+                final byte[] payload = Arrays.copyOfRange(record, 1, length);
+                if (crc != crc(record[0], payload)) {
+                    log.warn("journal '{}' has bad record checksum, ignoring the rest", file);
+                    break;
+                }
+
+                numRecords++;
+                try {
+                    if (apply(params, wallet, record[0], ByteBuffer.wrap(payload)))
+                        numApplied++;
+                } catch (final VerificationException x) {
+                    log.warn("problem replaying journal record", x);
+                } catch (final ProtocolException x) {
+                    log.warn("problem replaying journal record", x);
+                }
+            }
+        } finally {
+            is.close();
+        }
+
+        log.info("replayed journal '{}', {} of {} records applied", file, numApplied, numRecords);
+        return numApplied;
+    }
+
+    private static boolean apply(final NetworkParameters params, final Wallet wallet, final byte type,
+            final ByteBuffer payload) throws VerificationException {
+        if (type == TYPE_TX_IN_BLOCK) {
+            final StoredBlock block = StoredBlock.deserializeCompact(params, payload);
+            final int relativityOffset = payload.getInt();
+            final Transaction tx = params.getDefaultSerializer().makeTransaction(remaining(payload));
+            if (isInBlock(wallet, tx.getHash(), block))
+                return false;
+            wallet.receiveFromBlock(tx, block, NewBlockType.BEST_CHAIN, relativityOffset);
+            return true;
+        } else if (type == TYPE_TX_HASH_IN_BLOCK) {
+            final StoredBlock block = StoredBlock.deserializeCompact(params, payload);
+            final int relativityOffset = payload.getInt();
+            final Sha256Hash txHash = Sha256Hash.wrap(remaining(payload));
+            if (isInBlock(wallet, txHash, block))
+                return false;
+            return wallet.notifyTransactionIsInBlock(txHash, block, NewBlockType.BEST_CHAIN, relativityOffset);
+        } else if (type == TYPE_BEST_BLOCK) {
+            final StoredBlock block = StoredBlock.deserializeCompact(params, payload);
+            // the wallet would count the depth of its transactions up once more
+            if (block.getHeight() <= wallet.getLastBlockSeenHeight())
+                return false;
+            wallet.notifyNewBestBlock(block);
+            return true;
+        } else if (type == TYPE_PENDING_TX) {
+            final Transaction tx = params.getDefaultSerializer().makeTransaction(remaining(payload));
+            if (wallet.getTransaction(tx.getHash()) != null)
+                return false;
+            wallet.receivePending(tx, null);
+            return wallet.getTransaction(tx.getHash()) != null;
+        } else {
+            log.warn("unknown journal record type {}, skipping", type);
+            return false;
+        }
+    }
+
+    private static boolean isInBlock(final Wallet wallet, final Sha256Hash txHash, final StoredBlock block) {
+        final Transaction tx = wallet.getTransaction(txHash);
+        if (tx == null)
+            return false;
+        return tx.getAppearsInHashes() != null
+                && tx.getAppearsInHashes().containsKey(block.getHeader().getHash());
+    }
+
+    private static byte[] remaining(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int crc(final byte type, final byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static File oldFile(final File file) {
+        return new File(file.getParentFile(), file.getName() + ".old");
+    }
+
+    private static void closeQuietly(@Nullable final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException x) {
+                // swallow
+            }
+        }
+    }
+}
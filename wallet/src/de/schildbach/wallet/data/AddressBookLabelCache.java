@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Process-wide in-memory copy of all address book labels. It is filled by a single query on first use and then
+ * patched per address from the change notifications of {@link AddressBookProvider}.
+ *
+ * @author Andreas Schildbach
+ */
+final class AddressBookLabelCache {
+    private final ContentResolver resolver;
+    private final Uri contentUri;
+
+    /** immutable, replaced on every change; {@code null} means not loaded */
+    @Nullable
+    private volatile Map<String, String> labels = null;
+
+    private static AddressBookLabelCache instance = null;
+
+    private static final Logger log = LoggerFactory.getLogger(AddressBookLabelCache.class);
+
+    public static synchronized AddressBookLabelCache get(final Context context) {
+        if (instance == null)
+            instance = new AddressBookLabelCache(context.getApplicationContext());
+        return instance;
+    }
+
+    private AddressBookLabelCache(final Context context) {
+        this.resolver = context.getContentResolver();
+        this.contentUri = AddressBookProvider.contentUri(context.getPackageName());
+
+        // no handler: change notifications are delivered on a binder thread, not the main thread
+        resolver.registerContentObserver(contentUri, true, new ContentObserver(null) {
+            @Override
+            public void onChange(final boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(final boolean selfChange, final Uri uri) {
+                final List<String> pathSegments = uri != null ? uri.getPathSegments() : null;
+                if (pathSegments != null && !pathSegments.isEmpty())
+                    refresh(pathSegments.get(0));
+                else
+                    invalidate();
+            }
+        });
+    }
+
+    public @Nullable String resolveLabel(final String address) {
+        return labels().get(address);
+    }
+
+    /** @return labels of the given addresses; unlabeled addresses are missing from the result */
+    public Map<String, String> resolveLabels(final Collection<String> addresses) {
+        final Map<String, String> labels = labels();
+        final Map<String, String> result = new HashMap<String, String>(addresses.size());
+        for (final String address : addresses) {
+            final String label = labels.get(address);
+            if (label != null)
+                result.put(address, label);
+        }
+        return result;
+    }
+
+    private Map<String, String> labels() {
+        final Map<String, String> labels = this.labels;
+        if (labels != null)
+            return labels;
+        return load();
+    }
+
+    private synchronized Map<String, String> load() {
+        if (labels != null)
+            return labels;
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final Map<String, String> loaded = new HashMap<String, String>();
+        final Cursor cursor = resolver.query(contentUri,
+                new String[] { AddressBookProvider.KEY_ADDRESS, AddressBookProvider.KEY_LABEL }, null, null, null);
+        if (cursor != null) {
+            final int addressIndex = cursor.getColumnIndexOrThrow(AddressBookProvider.KEY_ADDRESS);
+            final int labelIndex = cursor.getColumnIndexOrThrow(AddressBookProvider.KEY_LABEL);
+            while (cursor.moveToNext()) {
+                final String label = cursor.getString(labelIndex);
+                if (label != null)
+                    loaded.put(cursor.getString(addressIndex), label);
+            }
+            cursor.close();
+        }
+
+        labels = Collections.unmodifiableMap(loaded);
+        watch.stop();
+        log.info("{} address book labels loaded, took {}", loaded.size(), watch);
+        return labels;
+    }
+
+    /**
+     * Called by the provider (in-process) before it notifies about a change, so that readers reacting to the
+     * notification never see a stale label.
+     */
+    static void update(final String address, @Nullable final String label) {
+        final AddressBookLabelCache cache;
+        synchronized (AddressBookLabelCache.class) {
+            cache = instance;
+        }
+        if (cache != null)
+            cache.put(address, label);
+    }
+
+    /** Called by the provider (in-process) after a batch of changes, before it notifies about them. */
+    static void invalidateAll() {
+        final AddressBookLabelCache cache;
+        synchronized (AddressBookLabelCache.class) {
+            cache = instance;
+        }
+        if (cache != null)
+            cache.invalidate();
+    }
+
+    private synchronized void refresh(final String address) {
+        if (labels == null)
+            return; // will be loaded as a whole anyway
+
+        String label = null;
+        final Uri uri = contentUri.buildUpon().appendPath(address).build();
+        final Cursor cursor = resolver.query(uri, new String[] { AddressBookProvider.KEY_LABEL }, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst())
+                label = cursor.getString(cursor.getColumnIndexOrThrow(AddressBookProvider.KEY_LABEL));
+            cursor.close();
+        }
+
+        put(address, label);
+    }
+
+    private synchronized void put(final String address, @Nullable final String label) {
+        if (labels == null)
+            return; // will be loaded as a whole anyway
+
+        final Map<String, String> updated = new HashMap<String, String>(labels);
+        if (label != null)
+            updated.put(address, label);
+        else
+            updated.remove(address);
+        labels = Collections.unmodifiableMap(updated);
+    }
+
+    private synchronized void invalidate() {
+        labels = null;
+    }
+}
@@ -17,22 +17,54 @@
 
 package de.schildbach.wallet.data;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressFormatException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.Csv;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 
 /**
  * @author Andreas Schildbach
  */
 public class AddressBookProvider extends ContentProvider {
     private static final String DATABASE_TABLE = "address_book";
+    private static final String DATABASE_TABLE_FTS = "address_book_fts";
 
     public static final String KEY_ROWID = "_id";
     public static final String KEY_ADDRESS = "address";
@@ -42,28 +74,59 @@ public class AddressBookProvider extends ContentProvider {
     public static final String SELECTION_IN = "in";
     public static final String SELECTION_NOTIN = "notin";
 
+    public static final String METHOD_IMPORT_CSV = "import_csv";
+    public static final String METHOD_EXPORT_CSV = "export_csv";
+    public static final String RESULT_COUNT = "count";
+    public static final String RESULT_ERROR = "error";
+
+    private static final Logger log = LoggerFactory.getLogger(AddressBookProvider.class);
+
     public static Uri contentUri(final String packageName) {
         return Uri.parse("content://" + packageName + '.' + DATABASE_TABLE);
     }
 
-    public static String resolveLabel(final Context context, final String address) {
-        String label = null;
+    /** Resolves a label from an in-memory cache of the address book, so it's cheap enough to call per row. */
+    public static @Nullable String resolveLabel(final Context context, final String address) {
+        return AddressBookLabelCache.get(context).resolveLabel(address);
+    }
 
-        final Uri uri = contentUri(context.getPackageName()).buildUpon().appendPath(address).build();
-        final Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
+    /** @return labels of the given addresses; unlabeled addresses are missing from the result */
+    public static Map<String, String> resolveLabels(final Context context, final Collection<String> addresses) {
+        return AddressBookLabelCache.get(context).resolveLabels(addresses);
+    }
 
-        if (cursor != null) {
-            if (cursor.moveToFirst())
-                label = cursor.getString(cursor.getColumnIndexOrThrow(AddressBookProvider.KEY_LABEL));
+    /**
+     * Streams address/label records from a CSV document into the address book, replacing the labels of addresses
+     * that are already present. Runs in one transaction and fires one change notification.
+     *
+     * @return number of imported records
+     */
+    public static int importCsv(final Context context, final Uri source) throws IOException {
+        return call(context, METHOD_IMPORT_CSV, source);
+    }
 
-            cursor.close();
-        }
+    /**
+     * Streams the whole address book as CSV document with an {@code address,label} header.
+     *
+     * @return number of exported records
+     */
+    public static int exportCsv(final Context context, final Uri target) throws IOException {
+        return call(context, METHOD_EXPORT_CSV, target);
+    }
 
-        return label;
+    private static int call(final Context context, final String method, final Uri uri) throws IOException {
+        final Bundle result = context.getContentResolver().call(contentUri(context.getPackageName()), method,
+                uri.toString(), null);
+        if (result.containsKey(RESULT_ERROR))
+            throw new IOException(result.getString(RESULT_ERROR));
+        return result.getInt(RESULT_COUNT);
     }
 
     private Helper helper;
 
+    /** set while a batch is applied, so that its operations don't notify individually */
+    private final ThreadLocal<Boolean> inBatch = new ThreadLocal<Boolean>();
+
     @Override
     public boolean onCreate() {
         helper = new Helper(getContext());
@@ -83,12 +146,28 @@ public class AddressBookProvider extends ContentProvider {
         final String address = uri.getLastPathSegment();
         values.put(KEY_ADDRESS, address);
 
-        long rowId = helper.getWritableDatabase().insertOrThrow(DATABASE_TABLE, null, values);
+        // addresses are unique now, and like with the duplicates allowed before, the latest label wins
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final long rowId;
+        db.beginTransaction();
+        try {
+            if (db.update(DATABASE_TABLE, values, KEY_ADDRESS + "=?", new String[] { address }) == 0)
+                rowId = db.insertOrThrow(DATABASE_TABLE, null, values);
+            else
+                rowId = DatabaseUtils.longForQuery(db, "SELECT " + KEY_ROWID + " FROM " + DATABASE_TABLE + " WHERE "
+                        + KEY_ADDRESS + "=?", new String[] { address });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         final Uri rowUri = contentUri(getContext().getPackageName()).buildUpon().appendPath(address)
                 .appendPath(Long.toString(rowId)).build();
 
-        getContext().getContentResolver().notifyChange(rowUri, null);
+        if (!isInBatch()) {
+            AddressBookLabelCache.update(address, values.getAsString(KEY_LABEL));
+            getContext().getContentResolver().notifyChange(rowUri, null);
+        }
 
         return rowUri;
     }
@@ -103,8 +182,11 @@ public class AddressBookProvider extends ContentProvider {
         final int count = helper.getWritableDatabase().update(DATABASE_TABLE, values, KEY_ADDRESS + "=?",
                 new String[] { address });
 
-        if (count > 0)
+        if (count > 0 && !isInBatch()) {
+            if (values.containsKey(KEY_LABEL))
+                AddressBookLabelCache.update(address, values.getAsString(KEY_LABEL));
             getContext().getContentResolver().notifyChange(uri, null);
+        }
 
         return count;
     }
@@ -120,12 +202,171 @@ public class AddressBookProvider extends ContentProvider {
         final int count = helper.getWritableDatabase().delete(DATABASE_TABLE, KEY_ADDRESS + "=?",
                 new String[] { address });
 
-        if (count > 0)
+        if (count > 0 && !isInBatch()) {
+            AddressBookLabelCache.update(address, null);
             getContext().getContentResolver().notifyChange(uri, null);
+        }
 
         return count;
     }
 
+    /**
+     * Inserts or, for addresses that are already present, updates all rows in one transaction. The uri is the
+     * content uri itself; each row must contain {@link #KEY_ADDRESS}.
+     */
+    @Override
+    public int bulkInsert(final Uri uri, final ContentValues[] rows) {
+        if (!uri.getPathSegments().isEmpty())
+            throw new IllegalArgumentException(uri.toString());
+
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final ContentValues row : rows) {
+                final String address = row.getAsString(KEY_ADDRESS);
+                if (address == null)
+                    throw new IllegalArgumentException("missing " + KEY_ADDRESS + ": " + row);
+                upsert(db, address, row);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rows.length > 0)
+            notifyBatchChange();
+        return rows.length;
+    }
+
+    /** Applies all operations in one transaction, with one change notification at the end. */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (isInBatch())
+            return super.applyBatch(operations);
+
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final ContentProviderResult[] results;
+        inBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            inBatch.remove();
+        }
+
+        // a failed batch is rolled back, so there's nothing to notify about
+        if (!operations.isEmpty())
+            notifyBatchChange();
+        return results;
+    }
+
+    @Override
+    public Bundle call(final String method, final String arg, final Bundle extras) {
+        final Bundle result = new Bundle();
+        try {
+            if (METHOD_IMPORT_CSV.equals(method))
+                result.putInt(RESULT_COUNT, importCsv(Uri.parse(arg)));
+            else if (METHOD_EXPORT_CSV.equals(method))
+                result.putInt(RESULT_COUNT, exportCsv(Uri.parse(arg)));
+            else
+                return super.call(method, arg, extras);
+        } catch (final IOException x) {
+            log.info("problem with " + method + " of " + arg, x);
+            result.putString(RESULT_ERROR, x.getMessage());
+        }
+        return result;
+    }
+
+    private int importCsv(final Uri source) throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final InputStream is = getContext().getContentResolver().openInputStream(source);
+        if (is == null)
+            throw new FileNotFoundException(source.toString());
+        final Reader reader = new BufferedReader(new InputStreamReader(is, Charsets.UTF_8));
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        final ContentValues values = new ContentValues(2);
+        int count = 0;
+        int skipped = 0;
+        db.beginTransaction();
+        try {
+            boolean first = true;
+            for (List<String> record; (record = Csv.readRecord(reader)) != null; first = false) {
+                final String address = record.get(0).trim();
+                if (first && KEY_ADDRESS.equalsIgnoreCase(address))
+                    continue;
+                if (address.isEmpty())
+                    continue;
+                try {
+                    Address.fromBase58(Constants.NETWORK_PARAMETERS, address);
+                } catch (final AddressFormatException x) {
+                    skipped++;
+                    continue;
+                }
+
+                final String label = record.size() >= 2 ? record.get(1).trim() : "";
+                values.clear();
+                values.put(KEY_ADDRESS, address);
+                values.put(KEY_LABEL, label.isEmpty() ? null : label);
+                upsert(db, address, values);
+                count++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            reader.close();
+        }
+
+        if (count > 0)
+            notifyBatchChange();
+        watch.stop();
+        log.info("{} address book entries imported from {} ({} invalid skipped), took {}", count, source, skipped,
+                watch);
+        return count;
+    }
+
+    private int exportCsv(final Uri target) throws IOException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final OutputStream os = getContext().getContentResolver().openOutputStream(target);
+        if (os == null)
+            throw new FileNotFoundException(target.toString());
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(os, Charsets.UTF_8));
+        final Cursor cursor = helper.getReadableDatabase().query(DATABASE_TABLE,
+                new String[] { KEY_ADDRESS, KEY_LABEL }, null, null, null, null, KEY_ROWID);
+        int count = 0;
+        try {
+            Csv.writeRecord(writer, KEY_ADDRESS, KEY_LABEL);
+            while (cursor.moveToNext()) {
+                Csv.writeRecord(writer, cursor.getString(0), cursor.getString(1));
+                count++;
+            }
+        } finally {
+            cursor.close();
+            writer.close();
+        }
+
+        watch.stop();
+        log.info("{} address book entries exported to {}, took {}", count, target, watch);
+        return count;
+    }
+
+    private static void upsert(final SQLiteDatabase db, final String address, final ContentValues values) {
+        // not INSERT OR REPLACE: that would delete the old row without firing the full-text delete trigger
+        if (db.update(DATABASE_TABLE, values, KEY_ADDRESS + "=?", new String[] { address }) == 0)
+            db.insertOrThrow(DATABASE_TABLE, null, values);
+    }
+
+    private boolean isInBatch() {
+        return inBatch.get() != null;
+    }
+
+    private void notifyBatchChange() {
+        AddressBookLabelCache.invalidateAll();
+        getContext().getContentResolver().notifyChange(contentUri(getContext().getPackageName()), null);
+    }
+
     @Override
     public Cursor query(final Uri uri, final String[] projection, final String originalSelection,
             final String[] originalSelectionArgs, final String sortOrder) {
@@ -157,9 +398,20 @@ public class AddressBookProvider extends ContentProvider {
             appendAddresses(qb, addresses);
             qb.appendWhere(")");
         } else if (SELECTION_QUERY.equals(originalSelection)) {
-            final String query = '%' + originalSelectionArgs[0].trim() + '%';
-            selection = KEY_ADDRESS + " LIKE ? OR " + KEY_LABEL + " LIKE ?";
-            selectionArgs = new String[] { query, query };
+            final String query = originalSelectionArgs[0].trim();
+            final String match = ftsPrefixQuery(query);
+            // prefix of the address ignoring case, as a range so that it can use the case-insensitive index
+            final String addressSelection = "SELECT " + KEY_ROWID + " FROM " + DATABASE_TABLE + " WHERE "
+                    + KEY_ADDRESS + " >= ? COLLATE NOCASE AND " + KEY_ADDRESS + " < ? COLLATE NOCASE";
+            if (!match.isEmpty()) {
+                // or prefix of any label word via full-text index; a union, because OR would defeat both indexes
+                selection = KEY_ROWID + " IN (SELECT docid FROM " + DATABASE_TABLE_FTS + " WHERE " + KEY_LABEL
+                        + " MATCH ? UNION " + addressSelection + ")";
+                selectionArgs = new String[] { match, query, prefixUpperBound(query) };
+            } else if (!query.isEmpty()) {
+                selection = KEY_ROWID + " IN (" + addressSelection + ")";
+                selectionArgs = new String[] { query, prefixUpperBound(query) };
+            }
         }
 
         final Cursor cursor = qb.query(helper.getReadableDatabase(), projection, selection, selectionArgs, null, null,
@@ -170,6 +422,32 @@ public class AddressBookProvider extends ContentProvider {
         return cursor;
     }
 
+    private static String ftsPrefixQuery(final String query) {
+        final StringBuilder match = new StringBuilder();
+        for (final String word : query.split("\\s+")) {
+            final String token = word.replace("\"", "");
+            if (token.isEmpty())
+                continue;
+            if (match.length() > 0)
+                match.append(' ');
+            match.append('"').append(token).append("*\"");
+        }
+        return match.toString();
+    }
+
+    /**
+     * @return the smallest string that sorts after all strings starting with the given prefix, in the order of the
+     *         NOCASE collation
+     */
+    private static String prefixUpperBound(final String prefix) {
+        final StringBuilder bound = new StringBuilder(prefix.length());
+        for (final char c : prefix.toCharArray())
+            bound.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c); // NOCASE only folds ASCII
+        final int last = bound.length() - 1;
+        bound.setCharAt(last, (char) (bound.charAt(last) + 1));
+        return bound.toString();
+    }
+
     private static void appendAddresses(final SQLiteQueryBuilder qb, final String[] addresses) {
         for (final String address : addresses) {
             qb.appendWhereEscapeString(address.trim());
@@ -180,13 +458,40 @@ public class AddressBookProvider extends ContentProvider {
 
     private static class Helper extends SQLiteOpenHelper {
         private static final String DATABASE_NAME = "address_book";
-        private static final int DATABASE_VERSION = 1;
+        private static final int DATABASE_VERSION = 3;
 
         private static final String DATABASE_CREATE = "CREATE TABLE " + DATABASE_TABLE + " (" //
                 + KEY_ROWID + " INTEGER PRIMARY KEY AUTOINCREMENT, " //
                 + KEY_ADDRESS + " TEXT NOT NULL, " //
                 + KEY_LABEL + " TEXT NULL);";
 
+        private static final String DATABASE_DEDUPLICATE = "DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID
+                + " NOT IN (SELECT MAX(" + KEY_ROWID + ") FROM " + DATABASE_TABLE + " GROUP BY " + KEY_ADDRESS + ");";
+
+        private static final String DATABASE_CREATE_ADDRESS_INDEX = "CREATE UNIQUE INDEX " + DATABASE_TABLE
+                + "_address ON " + DATABASE_TABLE + " (" + KEY_ADDRESS + ");";
+
+        private static final String DATABASE_CREATE_ADDRESS_NOCASE_INDEX = "CREATE INDEX " + DATABASE_TABLE
+                + "_address_nocase ON " + DATABASE_TABLE + " (" + KEY_ADDRESS + " COLLATE NOCASE);";
+
+        // external content table, kept in sync with the main table by triggers
+        private static final String[] DATABASE_CREATE_FTS = { //
+                "CREATE VIRTUAL TABLE " + DATABASE_TABLE_FTS + " USING fts4(content=\"" + DATABASE_TABLE + "\", "
+                        + KEY_LABEL + ");",
+                "CREATE TRIGGER " + DATABASE_TABLE + "_bu BEFORE UPDATE ON " + DATABASE_TABLE + " BEGIN DELETE FROM "
+                        + DATABASE_TABLE_FTS + " WHERE docid=old." + KEY_ROWID + "; END;",
+                "CREATE TRIGGER " + DATABASE_TABLE + "_bd BEFORE DELETE ON " + DATABASE_TABLE + " BEGIN DELETE FROM "
+                        + DATABASE_TABLE_FTS + " WHERE docid=old." + KEY_ROWID + "; END;",
+                "CREATE TRIGGER " + DATABASE_TABLE + "_au AFTER UPDATE ON " + DATABASE_TABLE + " BEGIN INSERT INTO "
+                        + DATABASE_TABLE_FTS + "(docid, " + KEY_LABEL + ") VALUES(new." + KEY_ROWID + ", new."
+                        + KEY_LABEL + "); END;",
+                "CREATE TRIGGER " + DATABASE_TABLE + "_ai AFTER INSERT ON " + DATABASE_TABLE + " BEGIN INSERT INTO "
+                        + DATABASE_TABLE_FTS + "(docid, " + KEY_LABEL + ") VALUES(new." + KEY_ROWID + ", new."
+                        + KEY_LABEL + "); END;" };
+
+        private static final String DATABASE_REBUILD_FTS = "INSERT INTO " + DATABASE_TABLE_FTS + "("
+                + DATABASE_TABLE_FTS + ") VALUES('rebuild');";
+
         public Helper(final Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
@@ -194,6 +499,10 @@ public class AddressBookProvider extends ContentProvider {
         @Override
         public void onCreate(final SQLiteDatabase db) {
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(DATABASE_CREATE_ADDRESS_INDEX);
+            db.execSQL(DATABASE_CREATE_ADDRESS_NOCASE_INDEX);
+            for (final String sql : DATABASE_CREATE_FTS)
+                db.execSQL(sql);
         }
 
         @Override
@@ -211,6 +520,14 @@ public class AddressBookProvider extends ContentProvider {
 
         private void upgrade(final SQLiteDatabase db, final int oldVersion) {
             if (oldVersion == 1) {
+                db.execSQL(DATABASE_DEDUPLICATE);
+                db.execSQL(DATABASE_CREATE_ADDRESS_INDEX);
+                for (final String sql : DATABASE_CREATE_FTS)
+                    db.execSQL(sql);
+                db.execSQL(DATABASE_REBUILD_FTS);
+            } else if (oldVersion == 2) {
+                db.execSQL(DATABASE_CREATE_ADDRESS_NOCASE_INDEX);
+            } else if (oldVersion == 3) {
                 // future
             } else {
                 throw new UnsupportedOperationException("old=" + oldVersion);
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Search index over a table of exchange rates, answering prefix queries on the currency code, its symbol and the words
+ * of its localized name.
+ *
+ * <p>
+ * All terms are looked up via {@link Currency} and lower-cased once, when the index is built. A query is then a binary
+ * search into the sorted terms, so an index should be built whenever the rate table is replaced (or the locale
+ * changes) and reused for all queries against it.
+ *
+ * @author Andreas Schildbach
+ */
+public final class CurrencySearchIndex {
+    private final Map<String, ExchangeRate> indexed;
+    private final List<ExchangeRate> exchangeRates;
+    private final Locale locale;
+    // sorted, with the index into exchangeRates at the same position
+    private final String[] terms;
+    private final int[] termRates;
+
+    /**
+     * @param exchangeRates
+     *            rates to index, in the order queries should return them
+     * @param locale
+     *            locale for symbols and names
+     * @param names
+     *            whether to index localized currency names, which needs {@link Currency#getDisplayName(Locale)}
+     */
+    public CurrencySearchIndex(final Map<String, ExchangeRate> exchangeRates, final Locale locale,
+            final boolean names) {
+        this.indexed = exchangeRates;
+        this.exchangeRates = new ArrayList<ExchangeRate>(exchangeRates.values());
+        this.locale = locale;
+
+        final List<Term> terms = new ArrayList<Term>();
+        for (int i = 0; i < this.exchangeRates.size(); i++) {
+            final String currencyCode = this.exchangeRates.get(i).getCurrencyCode();
+            terms.add(new Term(fold(currencyCode), i));
+            try {
+                final Currency currency = Currency.getInstance(currencyCode);
+                final String symbol = fold(currency.getSymbol(locale));
+                if (!symbol.equals(terms.get(terms.size() - 1).term))
+                    terms.add(new Term(symbol, i));
+                if (names)
+                    for (final String word : fold(currency.getDisplayName(locale)).split("[\\s()]+"))
+                        if (!word.isEmpty())
+                            terms.add(new Term(word, i));
+            } catch (final IllegalArgumentException x) {
+                // not an ISO 4217 currency, like mBTC
+            }
+        }
+        Collections.sort(terms);
+
+        this.terms = new String[terms.size()];
+        this.termRates = new int[terms.size()];
+        for (int i = 0; i < terms.size(); i++) {
+            this.terms[i] = terms.get(i).term;
+            this.termRates[i] = terms.get(i).rate;
+        }
+    }
+
+    /** @return if this index was built from exactly the given table, for the given locale */
+    public boolean isFor(final Map<String, ExchangeRate> exchangeRates, final Locale locale) {
+        return indexed == exchangeRates && this.locale.equals(locale);
+    }
+
+    /**
+     * @return rates with a code, symbol or name word starting with the query, ignoring case, in the order they were
+     *         indexed
+     */
+    public List<ExchangeRate> search(final String query) {
+        final String prefix = fold(query.trim());
+        if (prefix.isEmpty())
+            return Collections.unmodifiableList(exchangeRates);
+
+        final BitSet matches = new BitSet(exchangeRates.size());
+        for (int i = lowerBound(prefix); i < terms.length && terms[i].startsWith(prefix); i++)
+            matches.set(termRates[i]);
+
+        final List<ExchangeRate> result = new ArrayList<ExchangeRate>(matches.cardinality());
+        for (int rate = matches.nextSetBit(0); rate >= 0; rate = matches.nextSetBit(rate + 1))
+            result.add(exchangeRates.get(rate));
+        return result;
+    }
+
+    /**
+     * Lower-cases the same way regardless of locale, so that e.g. in Turkish "INR" still finds "inr". The dot that
+     * remains of a dotted capital I is dropped, so that it finds a plain i as well.
+     */
+    private static String fold(final String str) {
+        return str.toLowerCase(Locale.US).replace("\u0307", "");
+    }
+
+    /** @return position of the first term not less than the key, as terms may occur more than once */
+    private int lowerBound(final String key) {
+        int low = 0;
+        int high = terms.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (terms[middle].compareTo(key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private static final class Term implements Comparable<Term> {
+        public final String term;
+        public final int rate;
+
+        public Term(final String term, final int rate) {
+            this.term = term;
+            this.rate = rate;
+        }
+
+        @Override
+        public int compareTo(final Term other) {
+            return term.compareTo(other.term);
+        }
+    }
+}
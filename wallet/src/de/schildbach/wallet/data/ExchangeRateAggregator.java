@@ -0,0 +1,292 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Fetches prices from several {@link ExchangeRateSource}s at once and combines them into one price per currency pair.
+ *
+ * <p>
+ * All sources are asked concurrently, and whatever has arrived when the deadline passes is used; slow or failing
+ * sources just don't contribute. Per currency pair, prices too far away from the median of all sources are rejected
+ * as outliers, and the median of the remaining ones is taken. Latency and errors are tracked per source.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ExchangeRateAggregator {
+    /** Combined price of one unit of the base currency, and the sources it is based on. */
+    public static final class Rate {
+        public final BigDecimal value;
+        public final List<String> sources;
+
+        public Rate(final BigDecimal value, final List<String> sources) {
+            this.value = value;
+            this.sources = Collections.unmodifiableList(new ArrayList<String>(sources));
+        }
+
+        @Override
+        public String toString() {
+            return value.toPlainString() + " from " + sources;
+        }
+    }
+
+    public static final class Result {
+        private final Map<String, Map<String, Rate>> rates;
+
+        private Result(final Map<String, Map<String, Rate>> rates) {
+            this.rates = rates;
+        }
+
+        /** @return prices of one unit of the given base currency, by currency code */
+        public Map<String, Rate> forBase(final String baseCurrencyCode) {
+            final Map<String, Rate> forBase = rates.get(baseCurrencyCode);
+            return forBase != null ? forBase : Collections.<String, Rate> emptyMap();
+        }
+
+        public @Nullable Rate get(final String baseCurrencyCode, final String currencyCode) {
+            return forBase(baseCurrencyCode).get(currencyCode);
+        }
+    }
+
+    public static final class SourceMetrics {
+        public final int requests;
+        public final int errors;
+        public final int timeouts;
+        /** exponentially weighted average over successful requests, or -1 if there was none */
+        public final long averageLatencyMs;
+        @Nullable
+        public final String lastError;
+
+        private SourceMetrics(final int requests, final int errors, final int timeouts, final long averageLatencyMs,
+                @Nullable final String lastError) {
+            this.requests = requests;
+            this.errors = errors;
+            this.timeouts = timeouts;
+            this.averageLatencyMs = averageLatencyMs;
+            this.lastError = lastError;
+        }
+
+        @Override
+        public String toString() {
+            return requests + " requests, " + errors + " errors, " + timeouts + " timeouts, average latency "
+                    + averageLatencyMs + " ms" + (lastError != null ? ", last error: " + lastError : "");
+        }
+    }
+
+    private static final class Metrics {
+        public int requests = 0;
+        public int errors = 0;
+        public int timeouts = 0;
+        public double averageLatencyMs = -1;
+        public String lastError = null;
+    }
+
+    /** prices deviating further than this fraction from the median are outliers, if there are enough to tell */
+    private static final BigDecimal MAX_DEVIATION = new BigDecimal("0.1");
+    private static final int MIN_SOURCES_FOR_OUTLIERS = 3;
+    private static final double LATENCY_EWMA_WEIGHT = 0.3;
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+
+    private final List<ExchangeRateSource> sources;
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("exchangeRateSource-%d").setDaemon(true).build());
+    // same order as the sources, guarded by itself
+    private final List<Metrics> metrics;
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRateAggregator.class);
+
+    public ExchangeRateAggregator(final List<ExchangeRateSource> sources) {
+        checkArgument(!sources.isEmpty(), "need at least one source");
+        this.sources = new ArrayList<ExchangeRateSource>(sources);
+        this.metrics = new ArrayList<Metrics>(sources.size());
+        for (int i = 0; i < sources.size(); i++)
+            metrics.add(new Metrics());
+    }
+
+    /**
+     * Fetches from all sources concurrently and combines what arrives within the given time. Blocks until then, so
+     * don't call it on the main thread.
+     */
+    public Result fetch(final long timeoutMs) throws InterruptedException {
+        final List<Callable<Map<String, BigDecimal>>> tasks = new ArrayList<Callable<Map<String, BigDecimal>>>(
+                sources.size());
+        final long[] latencies = new long[sources.size()];
+        for (int i = 0; i < sources.size(); i++) {
+            final ExchangeRateSource source = sources.get(i);
+            final int index = i;
+            tasks.add(new Callable<Map<String, BigDecimal>>() {
+                @Override
+                public Map<String, BigDecimal> call() throws Exception {
+                    final long start = System.currentTimeMillis();
+                    final Map<String, BigDecimal> rates = source.fetchRates();
+                    latencies[index] = System.currentTimeMillis() - start;
+                    return rates;
+                }
+            });
+        }
+        final List<Future<Map<String, BigDecimal>>> futures = executor.invokeAll(tasks, timeoutMs,
+                TimeUnit.MILLISECONDS);
+
+        // base currency, currency, source name, price
+        final Map<String, Map<String, Map<String, BigDecimal>>> prices =
+                new TreeMap<String, Map<String, Map<String, BigDecimal>>>();
+        for (int i = 0; i < sources.size(); i++) {
+            final ExchangeRateSource source = sources.get(i);
+            final Map<String, BigDecimal> rates;
+            try {
+                rates = futures.get(i).get();
+            } catch (final CancellationException x) {
+                onTimeout(i);
+                continue;
+            } catch (final ExecutionException x) {
+                onError(i, x.getCause());
+                continue;
+            }
+            onSuccess(i, latencies[i]);
+
+            Map<String, Map<String, BigDecimal>> forBase = prices.get(source.getBaseCurrencyCode());
+            if (forBase == null) {
+                forBase = new TreeMap<String, Map<String, BigDecimal>>();
+                prices.put(source.getBaseCurrencyCode(), forBase);
+            }
+            for (final Map.Entry<String, BigDecimal> rate : rates.entrySet()) {
+                if (rate.getValue().signum() <= 0)
+                    continue;
+                Map<String, BigDecimal> forCurrency = forBase.get(rate.getKey());
+                if (forCurrency == null) {
+                    forCurrency = new LinkedHashMap<String, BigDecimal>();
+                    forBase.put(rate.getKey(), forCurrency);
+                }
+                forCurrency.put(source.getName(), rate.getValue());
+            }
+        }
+
+        final Map<String, Map<String, Rate>> rates = new TreeMap<String, Map<String, Rate>>();
+        for (final Map.Entry<String, Map<String, Map<String, BigDecimal>>> forBase : prices.entrySet()) {
+            final Map<String, Rate> combined = new TreeMap<String, Rate>();
+            for (final Map.Entry<String, Map<String, BigDecimal>> forCurrency : forBase.getValue().entrySet()) {
+                final Rate rate = combine(forCurrency.getValue());
+                if (rate.sources.size() < forCurrency.getValue().size())
+                    log.info("rejected outliers for {}/{}: {}, using {}", forBase.getKey(), forCurrency.getKey(),
+                            forCurrency.getValue(), rate.value.toPlainString());
+                combined.put(forCurrency.getKey(), rate);
+            }
+            rates.put(forBase.getKey(), combined);
+        }
+
+        log.info("exchange rate sources: {}", getMetrics());
+        return new Result(rates);
+    }
+
+    /** @return metrics of each source, by name and base currency, e.g. "CoinGecko/BTC" */
+    public Map<String, SourceMetrics> getMetrics() {
+        synchronized (metrics) {
+            final Map<String, SourceMetrics> snapshot = new LinkedHashMap<String, SourceMetrics>();
+            for (int i = 0; i < sources.size(); i++) {
+                final ExchangeRateSource source = sources.get(i);
+                final Metrics m = metrics.get(i);
+                snapshot.put(source.getName() + '/' + source.getBaseCurrencyCode(), new SourceMetrics(m.requests,
+                        m.errors, m.timeouts, Math.round(m.averageLatencyMs), m.lastError));
+            }
+            return snapshot;
+        }
+    }
+
+    /** Combines the prices of one currency pair, by source name. */
+    static Rate combine(final Map<String, BigDecimal> prices) {
+        checkArgument(!prices.isEmpty(), "need at least one price");
+        final BigDecimal median = median(new ArrayList<BigDecimal>(prices.values()));
+        if (prices.size() < MIN_SOURCES_FOR_OUTLIERS)
+            return new Rate(median, new ArrayList<String>(prices.keySet()));
+
+        final BigDecimal maxDeviation = median.multiply(MAX_DEVIATION);
+        final List<BigDecimal> accepted = new ArrayList<BigDecimal>(prices.size());
+        final List<String> sources = new ArrayList<String>(prices.size());
+        for (final Map.Entry<String, BigDecimal> price : prices.entrySet()) {
+            if (price.getValue().subtract(median).abs().compareTo(maxDeviation) <= 0) {
+                accepted.add(price.getValue());
+                sources.add(price.getKey());
+            }
+        }
+        // with an even number of prices in two camps, the median may be far from all of them
+        if (accepted.isEmpty())
+            return new Rate(median, new ArrayList<String>(prices.keySet()));
+        return new Rate(median(accepted), sources);
+    }
+
+    static BigDecimal median(final List<BigDecimal> values) {
+        final List<BigDecimal> sorted = new ArrayList<BigDecimal>(values);
+        Collections.sort(sorted);
+        final int middle = sorted.size() / 2;
+        if (sorted.size() % 2 == 1)
+            return sorted.get(middle);
+        return sorted.get(middle - 1).add(sorted.get(middle)).divide(TWO, MathContext.DECIMAL64);
+    }
+
+    private void onSuccess(final int index, final long latencyMs) {
+        synchronized (metrics) {
+            final Metrics m = metrics.get(index);
+            m.requests++;
+            m.averageLatencyMs = m.averageLatencyMs < 0 ? latencyMs
+                    : LATENCY_EWMA_WEIGHT * latencyMs + (1 - LATENCY_EWMA_WEIGHT) * m.averageLatencyMs;
+        }
+    }
+
+    private void onError(final int index, final Throwable x) {
+        log.info("problem fetching exchange rates from {}: {}", sources.get(index).getName(), x.toString());
+        synchronized (metrics) {
+            final Metrics m = metrics.get(index);
+            m.requests++;
+            m.errors++;
+            m.lastError = x.toString();
+        }
+    }
+
+    private void onTimeout(final int index) {
+        log.info("exchange rates from {} didn't arrive in time", sources.get(index).getName());
+        synchronized (metrics) {
+            final Metrics m = metrics.get(index);
+            m.requests++;
+            m.timeouts++;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Somewhere to fetch the prices of one currency from, e.g. an exchange or a price index.
+ *
+ * @author Andreas Schildbach
+ */
+public interface ExchangeRateSource {
+    /** @return name to credit the source with, and to tell it apart in logs */
+    String getName();
+
+    /** @return code of the currency whose prices this source quotes */
+    String getBaseCurrencyCode();
+
+    /**
+     * Fetches the current prices. Called on a background thread.
+     *
+     * @return price of one unit of the base currency, by currency code
+     */
+    Map<String, BigDecimal> fetchRates() throws IOException;
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * The {@link ExchangeRateSource}s the wallet uses: indices that quote BTC in fiat currencies, and markets that quote
+ * DOGM in BTC.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ExchangeRateSources {
+    public static final String CODE_BTC = "BTC";
+    public static final String CODE_DOGM = "DOGM";
+
+    public static final HttpUrl BITCOINAVERAGE_URL = HttpUrl
+            .parse("https://apiv2.bitcoinaverage.com/indices/global/ticker/short?crypto=BTC");
+    public static final HttpUrl BLOCKCHAININFO_URL = HttpUrl.parse("https://blockchain.info/ticker");
+    public static final HttpUrl COINGECKO_BTC_URL = HttpUrl.parse("https://api.coingecko.com/api/v3/exchange_rates");
+    public static final HttpUrl COINMARKETCAP_URL = HttpUrl.parse("https://api.coinmarketcap.com/v1/ticker/dogmcoin/");
+    public static final HttpUrl COINGECKO_DOGM_URL = HttpUrl
+            .parse("https://api.coingecko.com/api/v3/simple/price?ids=dogmcoin&vs_currencies=btc");
+
+    private ExchangeRateSources() {
+    }
+
+    public static List<ExchangeRateSource> defaults(final String userAgent) {
+        final OkHttpClient client = Constants.HTTP_CLIENT;
+        return Arrays.<ExchangeRateSource> asList(new BitcoinAverage(BITCOINAVERAGE_URL, client, userAgent),
+                new BlockchainInfo(BLOCKCHAININFO_URL, client, userAgent),
+                new CoinGeckoBtc(COINGECKO_BTC_URL, client, userAgent),
+                new CoinMarketCapDogm(COINMARKETCAP_URL, client, userAgent),
+                new CoinGeckoDogm(COINGECKO_DOGM_URL, client, userAgent));
+    }
+
+    /**
+     * Source that answers with JSON over HTTP. The response is parsed as it streams in, picking out the prices and
+     * skipping everything else, so no tree of the whole document is built.
+     */
+    private abstract static class HttpSource implements ExchangeRateSource {
+        private final String name;
+        private final String baseCurrencyCode;
+        private final HttpUrl url;
+        private final OkHttpClient client;
+        private final String userAgent;
+
+        public HttpSource(final String name, final String baseCurrencyCode, final HttpUrl url,
+                final OkHttpClient client, final String userAgent) {
+            this.name = name;
+            this.baseCurrencyCode = baseCurrencyCode;
+            this.url = url;
+            this.client = client;
+            this.userAgent = userAgent;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getBaseCurrencyCode() {
+            return baseCurrencyCode;
+        }
+
+        @Override
+        public Map<String, BigDecimal> fetchRates() throws IOException {
+            final Request.Builder request = new Request.Builder();
+            request.url(url);
+            request.header("User-Agent", userAgent);
+
+            final Call call = client.newCall(request.build());
+            final Response response = call.execute();
+            final JsonReader reader = JsonReader.of(response.body().source());
+            try {
+                if (!response.isSuccessful())
+                    throw new IOException("http status " + response.code() + " from " + url);
+                return parse(reader);
+            } catch (final JsonDataException x) {
+                throw new IOException("cannot parse response from " + url, x);
+            } finally {
+                reader.close();
+            }
+        }
+
+        protected abstract Map<String, BigDecimal> parse(JsonReader reader) throws IOException;
+
+        /**
+         * Reads the number at the given path of names into the object at the reader, skipping everything else.
+         *
+         * @return the number, or {@code null} if it is missing or isn't a number, so that a single odd price doesn't
+         *         spoil all the others
+         */
+        protected static @Nullable BigDecimal readDecimal(final JsonReader reader, final String... path)
+                throws IOException {
+            return readDecimal(reader, path, 0);
+        }
+
+        private static @Nullable BigDecimal readDecimal(final JsonReader reader, final String[] path,
+                final int depth) throws IOException {
+            if (depth == path.length)
+                return nextDecimal(reader);
+            if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                reader.skipValue();
+                return null;
+            }
+
+            BigDecimal value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(path[depth]))
+                    value = readDecimal(reader, path, depth + 1);
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            return value;
+        }
+
+        /** @return the number at the reader, or {@code null} if it is something else, like {@code null} */
+        protected static @Nullable BigDecimal nextDecimal(final JsonReader reader) throws IOException {
+            final JsonReader.Token token = reader.peek();
+            if (token != JsonReader.Token.NUMBER && token != JsonReader.Token.STRING) {
+                reader.skipValue();
+                return null;
+            }
+            try {
+                return new BigDecimal(reader.nextString()); // numbers as written, without going through double
+            } catch (final NumberFormatException x) {
+                return null;
+            }
+        }
+    }
+
+    /** {@code {"BTCUSD": {"averages": {"day": 1234.56, ...}, ...}, ...}} */
+    public static final class BitcoinAverage extends HttpSource {
+        public BitcoinAverage(final HttpUrl url, final OkHttpClient client, final String userAgent) {
+            super("BitcoinAverage.com", CODE_BTC, url, client, userAgent);
+        }
+
+        @Override
+        protected Map<String, BigDecimal> parse(final JsonReader reader) throws IOException {
+            final Map<String, BigDecimal> rates = new TreeMap<String, BigDecimal>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String symbol = reader.nextName();
+                if (symbol.startsWith(CODE_BTC)) {
+                    final BigDecimal rate = readDecimal(reader, "averages", "day");
+                    if (rate != null)
+                        rates.put(symbol.substring(CODE_BTC.length()), rate);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return rates;
+        }
+    }
+
+    /** {@code {"USD": {"last": 1234.56, ...}, ...}} */
+    public static final class BlockchainInfo extends HttpSource {
+        public BlockchainInfo(final HttpUrl url, final OkHttpClient client, final String userAgent) {
+            super("blockchain.info", CODE_BTC, url, client, userAgent);
+        }
+
+        @Override
+        protected Map<String, BigDecimal> parse(final JsonReader reader) throws IOException {
+            final Map<String, BigDecimal> rates = new TreeMap<String, BigDecimal>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String currencyCode = reader.nextName();
+                final BigDecimal rate = readDecimal(reader, "last");
+                if (rate != null)
+                    rates.put(currencyCode, rate);
+            }
+            reader.endObject();
+            return rates;
+        }
+    }
+
+    /** {@code {"rates": {"usd": {"value": 1234.56, "type": "fiat", ...}, ...}}} */
+    public static final class CoinGeckoBtc extends HttpSource {
+        public CoinGeckoBtc(final HttpUrl url, final OkHttpClient client, final String userAgent) {
+            super("CoinGecko", CODE_BTC, url, client, userAgent);
+        }
+
+        @Override
+        protected Map<String, BigDecimal> parse(final JsonReader reader) throws IOException {
+            final Map<String, BigDecimal> rates = new TreeMap<String, BigDecimal>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("rates")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    final String key = reader.nextName();
+                    if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    BigDecimal value = null;
+                    boolean fiat = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        final String name = reader.nextName();
+                        if (name.equals("value"))
+                            value = nextDecimal(reader);
+                        else if (name.equals("type") && reader.peek() == JsonReader.Token.STRING)
+                            fiat = "fiat".equals(reader.nextString());
+                        else
+                            reader.skipValue();
+                    }
+                    reader.endObject();
+                    if (fiat && value != null)
+                        rates.put(key.toUpperCase(Locale.US), value);
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+            return rates;
+        }
+    }
+
+    /** {@code [{"price_btc": "0.00000123", ...}]} */
+    public static final class CoinMarketCapDogm extends HttpSource {
+        public CoinMarketCapDogm(final HttpUrl url, final OkHttpClient client, final String userAgent) {
+            super("coinmarketcap.com", CODE_DOGM, url, client, userAgent);
+        }
+
+        @Override
+        protected Map<String, BigDecimal> parse(final JsonReader reader) throws IOException {
+            final Map<String, BigDecimal> rates = new TreeMap<String, BigDecimal>();
+            reader.beginArray();
+            if (reader.hasNext()) {
+                final BigDecimal rate = readDecimal(reader, "price_btc");
+                if (rate != null)
+                    rates.put(CODE_BTC, rate);
+            }
+            while (reader.hasNext())
+                reader.skipValue();
+            reader.endArray();
+            return rates;
+        }
+    }
+
+    /** {@code {"dogmcoin": {"btc": 1.23e-6}}} */
+    public static final class CoinGeckoDogm extends HttpSource {
+        public CoinGeckoDogm(final HttpUrl url, final OkHttpClient client, final String userAgent) {
+            super("CoinGecko", CODE_DOGM, url, client, userAgent);
+        }
+
+        @Override
+        protected Map<String, BigDecimal> parse(final JsonReader reader) throws IOException {
+            final Map<String, BigDecimal> rates = new TreeMap<String, BigDecimal>();
+            final BigDecimal rate = readDecimal(reader, "dogmcoin", "btc");
+            if (rate != null)
+                rates.put(CODE_BTC, rate);
+            return rates;
+        }
+    }
+}
@@ -17,36 +17,28 @@
 
 package de.schildbach.wallet.data;
 
+import java.io.File;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import java.util.Currency;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Stopwatch;
-import com.squareup.okhttp.Call;
-import com.squareup.okhttp.HttpUrl;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
+import com.google.common.base.Joiner;
 
 import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.util.GenericUtils;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -54,11 +46,15 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
 import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
 import android.text.format.DateUtils;
 
 /**
+ * Serves exchange rates from memory. Queries never wait for the network: if the rates are stale, a refresh is started
+ * in the background, and observers of the content URI are notified once fresh rates have arrived.
+ *
  * @author Andreas Schildbach
  */
 public class ExchangeRatesProvider extends ContentProvider {
@@ -70,23 +66,32 @@ public class ExchangeRatesProvider extends ContentProvider {
 
     public static final String QUERY_PARAM_Q = "q";
     private static final String QUERY_PARAM_OFFLINE = "offline";
+    private static final String CODE_MBTC = "mBTC";
 
     private Configuration config;
-    private String userAgent;
+    private File snapshotFile;
+    private ExchangeRateAggregator aggregator;
 
+    // replaced as a whole, never modified
     @Nullable
-    private Map<String, ExchangeRate> exchangeRates = null;
-    private long lastUpdated = 0;
-    private double dogmBtcConversion = -1;
-
-    private static final HttpUrl BITCOINAVERAGE_URL = HttpUrl
-            .parse("https://apiv2.bitcoinaverage.com/indices/global/ticker/short?crypto=BTC");
-    private static final String BITCOINAVERAGE_SOURCE = "BitcoinAverage.com";
-    private static final HttpUrl COINMARKETCAP_URL = HttpUrl
-            .parse("https://api.coinmarketcap.com/v1/ticker/dogmcoin/");
-    private static final String COINMARKETCAP_SOURCE = "coinmarketcap.com";
+    private volatile Map<String, ExchangeRate> exchangeRates = null;
+    // built from exchangeRates on the first search against them
+    @Nullable
+    private volatile CurrencySearchIndex searchIndex = null;
+    private volatile long lastUpdated = 0;
+    private volatile long lastAttempted = 0;
+    // exact, as quoted by the sources
+    @Nullable
+    private volatile BigDecimal dogmBtcConversion = null;
+    private volatile long dogmBtcConversionUpdated = 0;
+    @Nullable
+    private volatile String dogmBtcConversionSource = null;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
 
     private static final long UPDATE_FREQ_MS = 10 * DateUtils.MINUTE_IN_MILLIS;
+    private static final long RETRY_FREQ_MS = DateUtils.MINUTE_IN_MILLIS;
+    private static final long FETCH_TIMEOUT_MS = 10 * DateUtils.SECOND_IN_MILLIS;
+    private static final Joiner SOURCES_JOINER = Joiner.on(", ");
 
     private static final Logger log = LoggerFactory.getLogger(ExchangeRatesProvider.class);
 
@@ -98,12 +103,25 @@ public class ExchangeRatesProvider extends ContentProvider {
         final Context context = getContext();
 
         this.config = new Configuration(PreferenceManager.getDefaultSharedPreferences(context), context.getResources());
-        this.userAgent = WalletApplication.httpUserAgent(WalletApplication.packageInfoFromContext(context).versionName);
+        final String userAgent = WalletApplication
+                .httpUserAgent(WalletApplication.packageInfoFromContext(context).versionName);
+        this.aggregator = new ExchangeRateAggregator(ExchangeRateSources.defaults(userAgent));
 
+        this.snapshotFile = new File(context.getFilesDir(), Constants.Files.EXCHANGE_RATES_FILENAME);
+
+        final ExchangeRatesSnapshot snapshot = ExchangeRatesSnapshot.read(snapshotFile);
         final ExchangeRate cachedExchangeRate = config.getCachedExchangeRate();
-        if (cachedExchangeRate != null) {
-            exchangeRates = new TreeMap<String, ExchangeRate>();
+        if (snapshot != null) {
+            exchangeRates = snapshot.exchangeRates;
+            lastUpdated = snapshot.exchangeRatesTime;
+            dogmBtcConversion = snapshot.dogmBtcConversion;
+            dogmBtcConversionUpdated = snapshot.dogmBtcConversionTime;
+            final ExchangeRate mbtcRate = snapshot.exchangeRates.get(CODE_MBTC);
+            dogmBtcConversionSource = mbtcRate != null ? mbtcRate.source : null;
+        } else if (cachedExchangeRate != null) {
+            final Map<String, ExchangeRate> exchangeRates = new TreeMap<String, ExchangeRate>();
             exchangeRates.put(cachedExchangeRate.getCurrencyCode(), cachedExchangeRate);
+            this.exchangeRates = exchangeRates;
         }
 
         return true;
@@ -119,45 +137,19 @@ public class ExchangeRatesProvider extends ContentProvider {
     @Override
     public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs,
             final String sortOrder) {
-        final long now = System.currentTimeMillis();
-
         final boolean offline = uri.getQueryParameter(QUERY_PARAM_OFFLINE) != null;
 
-        if (!offline && (lastUpdated == 0 || now - lastUpdated > UPDATE_FREQ_MS)) {
-            double newDogeBtcConversion = -1;
-            if ((dogmBtcConversion == -1))
-                newDogeBtcConversion = requestDogeBtcConversion();
-
-            if (newDogeBtcConversion != -1)
-                dogmBtcConversion = newDogeBtcConversion;
-
-            if (dogmBtcConversion == -1)
-                return null;
-
-            Map<String, ExchangeRate> newExchangeRates = null;
-            if (newExchangeRates == null)
-                newExchangeRates = requestExchangeRates(dogmBtcConversion);
-
-            if (newExchangeRates != null) {
-                double mBTCRate = dogmBtcConversion*1000;
-                String strmBTCRate = String.format(Locale.US, "%.4f", mBTCRate).replace(',', '.');
-                newExchangeRates.put("mBTC", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("mBTC", strmBTCRate)), COINMARKETCAP_SOURCE));
-                newExchangeRates.put("DOGM", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("DOGM", "1")), "priceofdogm.com"));
-
-                exchangeRates = newExchangeRates;
-                lastUpdated = now;
-
-                final ExchangeRate exchangeRateToCache = bestExchangeRate(config.getExchangeCurrencyCode());
-                if (exchangeRateToCache != null)
-                    config.setCachedExchangeRate(exchangeRateToCache);
-            }
-        }
-
-        if (exchangeRates == null || dogmBtcConversion == -1)
-            return null;
+        if (!offline)
+            maybeRefresh();
 
         final MatrixCursor cursor = new MatrixCursor(
                 new String[] { BaseColumns._ID, KEY_CURRENCY_CODE, KEY_RATE_COIN, KEY_RATE_FIAT, KEY_SOURCE });
+        // even if there are no rates yet, so that the caller is notified once they arrive
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+        final Map<String, ExchangeRate> exchangeRates = this.exchangeRates;
+        if (exchangeRates == null)
+            return cursor;
 
         if (selection == null) {
             for (final Map.Entry<String, ExchangeRate> entry : exchangeRates.entrySet()) {
@@ -168,20 +160,15 @@ public class ExchangeRatesProvider extends ContentProvider {
                         .add(exchangeRate.source);
             }
         } else if (selection.equals(QUERY_PARAM_Q)) {
-            final String selectionArg = selectionArgs[0].toLowerCase(Locale.US);
-            for (final Map.Entry<String, ExchangeRate> entry : exchangeRates.entrySet()) {
-                final ExchangeRate exchangeRate = entry.getValue();
+            for (final ExchangeRate exchangeRate : searchIndex(exchangeRates).search(selectionArgs[0])) {
                 final org.bitcoinj.utils.ExchangeRate rate = exchangeRate.rate;
                 final String currencyCode = exchangeRate.getCurrencyCode();
-                final String currencySymbol = GenericUtils.currencySymbol(currencyCode);
-                if (currencyCode.toLowerCase(Locale.US).contains(selectionArg)
-                        || currencySymbol.toLowerCase(Locale.US).contains(selectionArg))
-                    cursor.newRow().add(currencyCode.hashCode()).add(currencyCode).add(rate.coin.value)
-                            .add(rate.fiat.value).add(exchangeRate.source);
+                cursor.newRow().add(currencyCode.hashCode()).add(currencyCode).add(rate.coin.value).add(rate.fiat.value)
+                        .add(exchangeRate.source);
             }
         } else if (selection.equals(KEY_CURRENCY_CODE)) {
             final String selectionArg = selectionArgs[0];
-            final ExchangeRate exchangeRate = bestExchangeRate(selectionArg);
+            final ExchangeRate exchangeRate = bestExchangeRate(exchangeRates, selectionArg);
             if (exchangeRate != null) {
                 final org.bitcoinj.utils.ExchangeRate rate = exchangeRate.rate;
                 final String currencyCode = exchangeRate.getCurrencyCode();
@@ -193,7 +180,101 @@ public class ExchangeRatesProvider extends ContentProvider {
         return cursor;
     }
 
-    private ExchangeRate bestExchangeRate(final String currencyCode) {
+    private CurrencySearchIndex searchIndex(final Map<String, ExchangeRate> exchangeRates) {
+        final Locale locale = Locale.getDefault();
+        CurrencySearchIndex searchIndex = this.searchIndex;
+        if (searchIndex == null || !searchIndex.isFor(exchangeRates, locale)) {
+            searchIndex = new CurrencySearchIndex(exchangeRates, locale,
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+            this.searchIndex = searchIndex;
+        }
+        return searchIndex;
+    }
+
+    private void maybeRefresh() {
+        final long now = System.currentTimeMillis();
+        if (lastUpdated != 0 && now - lastUpdated <= UPDATE_FREQ_MS)
+            return;
+        if (now - lastAttempted <= RETRY_FREQ_MS)
+            return;
+        if (!refreshing.compareAndSet(false, true))
+            return;
+        lastAttempted = now;
+
+        new Thread("exchangeRatesRefresh") {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        }.start();
+    }
+
+    private void refresh() {
+        final ExchangeRateAggregator.Result result;
+        try {
+            result = aggregator.fetch(FETCH_TIMEOUT_MS);
+        } catch (final InterruptedException x) {
+            return;
+        }
+
+        final ExchangeRateAggregator.Rate newDogmBtcConversion = result.get(ExchangeRateSources.CODE_DOGM,
+                ExchangeRateSources.CODE_BTC);
+        if (newDogmBtcConversion != null) {
+            dogmBtcConversion = newDogmBtcConversion.value;
+            dogmBtcConversionSource = SOURCES_JOINER.join(newDogmBtcConversion.sources);
+            dogmBtcConversionUpdated = System.currentTimeMillis();
+        }
+        final BigDecimal dogmBtcConversion = this.dogmBtcConversion;
+        if (dogmBtcConversion == null)
+            return;
+
+        final Map<String, ExchangeRateAggregator.Rate> btcRates = result.forBase(ExchangeRateSources.CODE_BTC);
+        if (btcRates.isEmpty())
+            return;
+
+        final Map<String, ExchangeRate> newExchangeRates = new TreeMap<String, ExchangeRate>();
+        for (final Map.Entry<String, ExchangeRateAggregator.Rate> entry : btcRates.entrySet()) {
+            final String fiatCurrencyCode = entry.getKey();
+            if (!fiatCurrencyCode.equals(MonetaryFormat.CODE_BTC) && !fiatCurrencyCode.equals(MonetaryFormat.CODE_MBTC)
+                    && !fiatCurrencyCode.equals(MonetaryFormat.CODE_UBTC)) {
+                try {
+                    final Fiat dogmRate = toFiat(fiatCurrencyCode, entry.getValue().value.multiply(dogmBtcConversion));
+                    if (dogmRate.signum() > 0)
+                        newExchangeRates.put(fiatCurrencyCode,
+                                new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(dogmRate),
+                                        SOURCES_JOINER.join(entry.getValue().sources)));
+                } catch (final IllegalArgumentException x) {
+                    log.warn("problem converting {} exchange rate: {}", fiatCurrencyCode, x.getMessage());
+                } catch (final ArithmeticException x) {
+                    log.warn("problem converting {} exchange rate: {}", fiatCurrencyCode, x.getMessage());
+                }
+            }
+        }
+
+        final Fiat mbtcRate = toFiat(CODE_MBTC, dogmBtcConversion.movePointRight(3));
+        newExchangeRates.put(CODE_MBTC,
+                new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(mbtcRate), dogmBtcConversionSource));
+        newExchangeRates.put("DOGM", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("DOGM", "1")), "priceofdogm.com"));
+
+        final ExchangeRatesSnapshot snapshot = new ExchangeRatesSnapshot(newExchangeRates, System.currentTimeMillis(),
+                dogmBtcConversion, dogmBtcConversionUpdated);
+        exchangeRates = snapshot.exchangeRates;
+        lastUpdated = snapshot.exchangeRatesTime;
+        snapshot.write(snapshotFile);
+
+        final ExchangeRate exchangeRateToCache = bestExchangeRate(newExchangeRates, config.getExchangeCurrencyCode());
+        if (exchangeRateToCache != null)
+            config.setCachedExchangeRate(exchangeRateToCache);
+
+        final Context context = getContext();
+        context.getContentResolver().notifyChange(contentUri(context.getPackageName(), false), null);
+    }
+
+    private ExchangeRate bestExchangeRate(final Map<String, ExchangeRate> exchangeRates, final String currencyCode) {
         ExchangeRate rate = currencyCode != null ? exchangeRates.get(currencyCode) : null;
         if (rate != null)
             return rate;
@@ -247,99 +328,9 @@ public class ExchangeRatesProvider extends ContentProvider {
         throw new UnsupportedOperationException();
     }
 
-    private Map<String, ExchangeRate> requestExchangeRates(double dogmBtcConversion) {
-        final Stopwatch watch = Stopwatch.createStarted();
-
-        final Request.Builder request = new Request.Builder();
-        request.url(BITCOINAVERAGE_URL);
-        request.header("User-Agent", userAgent);
-
-        final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-        try {
-            final Response response = call.execute();
-            if (response.isSuccessful()) {
-                final String content = response.body().string();
-                final JSONObject head = new JSONObject(content);
-                final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
-
-                for (final Iterator<String> i = head.keys(); i.hasNext();) {
-                    final String currencyCode = i.next();
-                    if (currencyCode.startsWith("BTC")) {
-                        final String fiatCurrencyCode = currencyCode.substring(3);
-                        if (!fiatCurrencyCode.equals(MonetaryFormat.CODE_BTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_MBTC)
-                                && !fiatCurrencyCode.equals(MonetaryFormat.CODE_UBTC)) {
-                            final JSONObject exchangeRate = head.getJSONObject(currencyCode);
-                            final JSONObject averages = exchangeRate.getJSONObject("averages");
-                            try {
-                                final String rate = averages.getString("day");
-                                final double btcRate = Double.parseDouble(parseFiatInexact(fiatCurrencyCode, rate).toPlainString());
-                                DecimalFormat df = new DecimalFormat("#.########");
-                                df.setRoundingMode(RoundingMode.HALF_UP);
-                                DecimalFormatSymbols dfs = new DecimalFormatSymbols();
-                                dfs.setDecimalSeparator('.');
-                                dfs.setGroupingSeparator(',');
-                                df.setDecimalFormatSymbols(dfs);
-                                final Fiat dogmRate = parseFiatInexact(fiatCurrencyCode, df.format(btcRate*dogmBtcConversion));
-
-                                if (dogmRate.signum() > 0)
-                                    rates.put(fiatCurrencyCode, new ExchangeRate(
-                                            new org.bitcoinj.utils.ExchangeRate(dogmRate), BITCOINAVERAGE_SOURCE));
-                            } catch (final IllegalArgumentException x) {
-                                log.warn("problem fetching {} exchange rate from {}: {}", currencyCode,
-                                        BITCOINAVERAGE_URL, x.getMessage());
-                            }
-                        }
-                    }
-                }
-
-                watch.stop();
-                log.info("fetched exchange rates from {}, {} chars, took {}", BITCOINAVERAGE_URL, content.length(),
-                        watch);
-
-                return rates;
-            } else {
-                log.warn("http status {} when fetching exchange rates from {}", response.code(), BITCOINAVERAGE_URL);
-            }
-        } catch (final Exception x) {
-            log.warn("problem fetching exchange rates from " + BITCOINAVERAGE_URL, x);
-        }
-
-        return null;
-    }
-
-    // backport from bitcoinj 0.15
-    private static Fiat parseFiatInexact(final String currencyCode, final String str) {
-        final long val = new BigDecimal(str).movePointRight(Fiat.SMALLEST_UNIT_EXPONENT).longValue();
-        return Fiat.valueOf(currencyCode, val);
+    /** Rounds half up to the smallest fiat unit, without a round trip through a string or a double. */
+    private static Fiat toFiat(final String currencyCode, final BigDecimal value) {
+        final BigDecimal units = value.movePointRight(Fiat.SMALLEST_UNIT_EXPONENT).setScale(0, RoundingMode.HALF_UP);
+        return Fiat.valueOf(currencyCode, units.longValueExact());
     }
-
-    private double requestDogeBtcConversion() {
-        final Request.Builder request = new Request.Builder();
-        request.url(COINMARKETCAP_URL);
-        request.header("User-Agent", userAgent);
-
-        final Call call = Constants.HTTP_CLIENT.newCall(request.build());
-        try {
-            final Response response = call.execute();
-            if (response.isSuccessful()) {
-                final String content = response.body().string();
-                try {
-                    final JSONArray json = new JSONArray(content);
-                    return Double.valueOf(json.getJSONObject(0).getString("price_btc"));
-                } catch (NumberFormatException e) {
-                    log.debug("Couldn't get the current exchange rate from cmc.");
-                    return -1;
-                }
-
-            } else {
-                log.warn("http status {} when fetching exchange rates from {}", response.code(), COINMARKETCAP_URL);
-            }
-        } catch (final Exception x) {
-            log.debug("problem reading exchange rates", x);
-        }
-
-        return -1;
-    }
-
 }
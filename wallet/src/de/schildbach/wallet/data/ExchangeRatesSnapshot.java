@@ -0,0 +1,171 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.Fiat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Complete table of exchange rates as last fetched, along with the DOGM/BTC conversion they were derived from.
+ *
+ * <p>
+ * On disk, the sources are stored once and referred to by index, so that a rate takes little more than its currency
+ * code and two longs.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ExchangeRatesSnapshot {
+    public final Map<String, ExchangeRate> exchangeRates;
+    public final long exchangeRatesTime;
+    @Nullable
+    public final BigDecimal dogmBtcConversion;
+    public final long dogmBtcConversionTime;
+
+    private static final int VERSION = 2;
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRatesSnapshot.class);
+
+    public ExchangeRatesSnapshot(final Map<String, ExchangeRate> exchangeRates, final long exchangeRatesTime,
+            @Nullable final BigDecimal dogmBtcConversion, final long dogmBtcConversionTime) {
+        this.exchangeRates = Collections.unmodifiableMap(new TreeMap<String, ExchangeRate>(exchangeRates));
+        this.exchangeRatesTime = exchangeRatesTime;
+        this.dogmBtcConversion = dogmBtcConversion;
+        this.dogmBtcConversionTime = dogmBtcConversionTime;
+    }
+
+    /** Writes the snapshot, replacing the file atomically. */
+    public void write(final File file) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream os = null;
+        try {
+            final List<String> sources = new ArrayList<String>();
+            for (final ExchangeRate exchangeRate : exchangeRates.values())
+                if (!sources.contains(exchangeRate.source))
+                    sources.add(exchangeRate.source);
+
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            os.writeInt(VERSION);
+            os.writeLong(exchangeRatesTime);
+            writeNullableUTF(os, dogmBtcConversion != null ? dogmBtcConversion.toPlainString() : null);
+            os.writeLong(dogmBtcConversionTime);
+            os.writeByte(sources.size());
+            for (final String source : sources)
+                writeNullableUTF(os, source);
+            os.writeShort(exchangeRates.size());
+            for (final ExchangeRate exchangeRate : exchangeRates.values()) {
+                os.writeUTF(exchangeRate.getCurrencyCode());
+                os.writeLong(exchangeRate.rate.coin.value);
+                os.writeLong(exchangeRate.rate.fiat.value);
+                os.writeByte(sources.indexOf(exchangeRate.source));
+            }
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(file))
+                throw new IOException("Cannot rename " + tempFile + " to " + file);
+            log.info("{} exchange rates written to '{}'", exchangeRates.size(), file);
+        } catch (final IOException x) {
+            log.warn("problem writing exchange rates", x);
+            tempFile.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    /** @return snapshot from the file, or {@code null} if there is none or it can't be read */
+    public static @Nullable ExchangeRatesSnapshot read(final File file) {
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (is.readInt() != VERSION)
+                return null;
+            final long exchangeRatesTime = is.readLong();
+            final String dogmBtcConversionStr = readNullableUTF(is);
+            final BigDecimal dogmBtcConversion = dogmBtcConversionStr != null ? new BigDecimal(dogmBtcConversionStr)
+                    : null;
+            final long dogmBtcConversionTime = is.readLong();
+            final int numSources = is.readUnsignedByte();
+            final List<String> sources = new ArrayList<String>(numSources);
+            for (int i = 0; i < numSources; i++)
+                sources.add(readNullableUTF(is));
+            final int numRates = is.readUnsignedShort();
+            final Map<String, ExchangeRate> exchangeRates = new TreeMap<String, ExchangeRate>();
+            for (int i = 0; i < numRates; i++) {
+                final String currencyCode = is.readUTF();
+                final Coin coin = Coin.valueOf(is.readLong());
+                final Fiat fiat = Fiat.valueOf(currencyCode, is.readLong());
+                final String source = sources.get(is.readUnsignedByte());
+                exchangeRates.put(currencyCode,
+                        new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(coin, fiat), source));
+            }
+            return new ExchangeRatesSnapshot(exchangeRates, exchangeRatesTime, dogmBtcConversion,
+                    dogmBtcConversionTime);
+        } catch (final FileNotFoundException x) {
+            return null;
+        } catch (final IOException x) {
+            log.warn("problem reading exchange rates, ignoring", x);
+            return null;
+        } catch (final RuntimeException x) {
+            log.warn("problem parsing exchange rates, ignoring", x);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    private static void writeNullableUTF(final DataOutputStream os, @Nullable final String str) throws IOException {
+        os.writeBoolean(str != null);
+        if (str != null)
+            os.writeUTF(str);
+    }
+
+    private static @Nullable String readNullableUTF(final DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+}
@@ -24,6 +24,8 @@ import javax.annotation.Nullable;
 import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.StoredBlock;
 
+import de.schildbach.wallet.util.ActivityHistory;
+
 /**
  * @author Andreas Schildbach
  */
@@ -31,9 +33,6 @@ public interface BlockchainService {
     public static final String ACTION_PEER_STATE = BlockchainService.class.getPackage().getName() + ".peer_state";
     public static final String ACTION_PEER_STATE_NUM_PEERS = "num_peers";
 
-    public static final String ACTION_BLOCKCHAIN_STATE = BlockchainService.class.getPackage().getName()
-            + ".blockchain_state";
-
     public static final String ACTION_CANCEL_COINS_RECEIVED = BlockchainService.class.getPackage().getName()
             + ".cancel_coins_received";
     public static final String ACTION_RESET_BLOCKCHAIN = BlockchainService.class.getPackage().getName()
@@ -44,6 +43,12 @@ public interface BlockchainService {
 
     BlockchainState getBlockchainState();
 
+    /**
+     * @return copy of the per-minute history of transactions received and blocks downloaded, most recent first; call
+     *         on the main thread
+     */
+    ActivityHistory getActivityHistory();
+
     @Nullable
     List<Peer> getConnectedPeers();
 
@@ -18,16 +18,22 @@
 package de.schildbach.wallet.service;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -36,28 +42,33 @@ import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressMessage;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.BlockChain;
 import org.bitcoinj.core.CheckpointManager;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Message;
 import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.PeerGroup;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.VersionMessage;
 import org.bitcoinj.core.listeners.AbstractPeerDataEventListener;
 import org.bitcoinj.core.listeners.PeerConnectedEventListener;
 import org.bitcoinj.core.listeners.PeerDataEventListener;
 import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
 import org.bitcoinj.net.discovery.DnsDiscovery;
 import org.bitcoinj.net.discovery.MultiplexingDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscovery;
 import org.bitcoinj.net.discovery.PeerDiscoveryException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
-import org.bitcoinj.store.SPVBlockStore;
 import org.bitcoinj.utils.MonetaryFormat;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
@@ -70,9 +81,12 @@ import de.schildbach.wallet.Configuration;
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.WalletBalanceWidgetProvider;
+import de.schildbach.wallet.WalletJournal;
 import de.schildbach.wallet.data.AddressBookProvider;
+import de.schildbach.wallet.service.BlockchainState.CatchUpPhase;
 import de.schildbach.wallet.service.BlockchainState.Impediment;
 import de.schildbach.wallet.ui.WalletActivity;
+import de.schildbach.wallet.util.ActivityHistory;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.ThrottlingWalletChangeListener;
 import de.schildbach.wallet.util.WalletUtils;
@@ -109,9 +123,26 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
     private BlockStore blockStore;
     private File blockChainFile;
-    private BlockChain blockChain;
     @Nullable
-    private PeerGroup peerGroup;
+    private volatile BlockChain blockChain;
+    private WalletJournal walletJournal;
+    // whoever is last of the checkpoint thread and onDestroy() closes the block store
+    private final Object checkpointLock = new Object();
+    private boolean checkpointLoading = false; // guarded by checkpointLock
+    private volatile boolean destroyed = false;
+    @Nullable
+    private volatile PeerGroup peerGroup;
+    private PeerScores peerScores;
+    private final AtomicBoolean pipelinedDownloadRunning = new AtomicBoolean(false);
+    @Nullable
+    private volatile ParallelBlockDownload pipelinedDownload;
+    @Nullable
+    private volatile CatchUpPhase catchUpPhase;
+    private volatile int catchUpStartHeight, catchUpHeight, catchUpTargetHeight;
+    private SyncScheduler syncScheduler;
+    private int syncStartHeight = -1;
+    private volatile long syncDoneAt = 0;
+    private volatile int syncDoneHeight;
 
     private final Handler handler = new Handler();
     private final Handler delayHandler = new Handler();
@@ -130,8 +161,19 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
     private static final int MIN_COLLECT_HISTORY = 2;
     private static final int IDLE_BLOCK_TIMEOUT_MIN = 2;
-    private static final int IDLE_TRANSACTION_TIMEOUT_MIN = 9;
-    private static final int MAX_HISTORY_SIZE = Math.max(IDLE_TRANSACTION_TIMEOUT_MIN, IDLE_BLOCK_TIMEOUT_MIN);
+    /** downloading no faster than this means the chain is just moving on, rather than being caught up */
+    private static final double IDLE_BLOCKS_PER_MIN = 2;
+    private static final double TRANSACTION_ACTIVITY_HALF_LIFE_MIN = 1;
+    private static final double IDLE_TRANSACTION_ACTIVITY = 0.1;
+    private static final int MAX_HISTORY_SIZE = 60;
+    private static final int MAX_CACHED_PEERS_FACTOR = 4;
+    private static final int PIPELINED_DOWNLOAD_MIN_BLOCKS_BEHIND = 500;
+    private static final int PIPELINED_DOWNLOAD_MIN_PEERS = 2;
+    private static final int PIPELINED_DOWNLOAD_BATCH_SIZE = 100;
+    private static final int PIPELINED_DOWNLOAD_MAX_BUFFERED_BLOCKS = 1000;
+    private static final int MAX_HEADERS_PER_MESSAGE = 2000;
+    /** blocks to collect hashes for before downloading them, bounding memory use */
+    private static final int CATCH_UP_WINDOW_BLOCKS = 20000;
     private static final long APPWIDGET_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
     private static final long BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
 
@@ -155,6 +197,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
             final Coin amount = tx.getValue(wallet);
             final ConfidenceType confidenceType = tx.getConfidence().getConfidenceType();
             final Sha256Hash hash = tx.getHash();
+            final long updateTime = tx.getUpdateTime().getTime();
 
             handler.post(new Runnable() {
                 @Override
@@ -163,8 +206,11 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                     final boolean replaying = bestChainHeight < config.getBestChainHeightEver();
                     final boolean isReplayedTx = confidenceType == ConfidenceType.BUILDING && replaying;
 
-                    if (isReceived && !isReplayedTx)
+                    if (isReceived && !isReplayedTx) {
                         notifyCoinsReceived(address, amount, hash);
+                        syncScheduler.onTransactionReceived(
+                                updateTime > 0 ? updateTime : System.currentTimeMillis());
+                    }
                 }
             });
         }
@@ -199,12 +245,16 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 getString(R.string.notification_coins_received_msg, btcFormat.format(notificationAccumulatedAmount))
                         + msgSuffix);
         if (!notificationAddresses.isEmpty()) {
+            final List<String> addressStrs = new ArrayList<String>(notificationAddresses.size());
+            for (final Address notificationAddress : notificationAddresses)
+                addressStrs.add(notificationAddress.toBase58());
+            final Map<String, String> labels = AddressBookProvider.resolveLabels(getApplicationContext(),
+                    addressStrs);
             final StringBuilder text = new StringBuilder();
-            for (final Address notificationAddress : notificationAddresses) {
+            for (final String addressStr : addressStrs) {
                 if (text.length() > 0)
                     text.append(", ");
-                final String addressStr = notificationAddress.toBase58();
-                final String label = AddressBookProvider.resolveLabel(getApplicationContext(), addressStr);
+                final String label = labels.get(addressStr);
                 text.append(label != null ? label : addressStr);
             }
             summaryNotification.setContentText(text);
@@ -256,12 +306,19 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
         @Override
         public void onPeerConnected(final Peer peer, final int peerCount) {
+            peerScores.onConnected(peer.getAddress().getSocketAddress());
+
             this.peerCount = peerCount;
             changed(peerCount);
+
+            maybeSyncDone(peer);
+            maybeStartPipelinedDownload(peer);
         }
 
         @Override
         public void onPeerDisconnected(final Peer peer, final int peerCount) {
+            peerScores.onDisconnected(peer.getAddress().getSocketAddress(), peer.getLastPingTime());
+
             this.peerCount = peerCount;
             changed(peerCount);
         }
@@ -303,30 +360,63 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
     }
 
-    private final PeerDataEventListener blockchainDownloadListener = new AbstractPeerDataEventListener() {
-        private final AtomicLong lastMessageTime = new AtomicLong(0);
+    private final PreMessageReceivedEventListener peerAddressListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(final Peer peer, final Message m) {
+            if (m instanceof AddressMessage) {
+                final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+                for (final PeerAddress address : ((AddressMessage) m).getAddresses())
+                    if (address.getServices().testBit(0)) // NODE_NETWORK
+                        addresses.add(address.getSocketAddress());
+                peerScores.learnedFromPeer(peer.getAddress().getSocketAddress(), addresses);
+            }
+            return m;
+        }
+    };
+
+    /** Remembers when the chain first caught up with the given peer, which is when the service synced. */
+    private void maybeSyncDone(final Peer peer) {
+        final BlockChain blockChain = this.blockChain;
+        if (syncDoneAt == 0 && blockChain != null && blockChain.getBestChainHeight() >= peer.getBestHeight()) {
+            syncDoneHeight = blockChain.getBestChainHeight();
+            syncDoneAt = System.currentTimeMillis();
+            log.info("synced up to {} in {} ms", syncDoneHeight, syncDoneAt - serviceCreatedAt);
+        }
+    }
 
+    private final PeerDataEventListener blockchainDownloadListener = new AbstractPeerDataEventListener() {
         @Override
         public void onBlocksDownloaded(final Peer peer, final Block block, final FilteredBlock filteredBlock,
                 final int blocksLeft) {
-            delayHandler.removeCallbacksAndMessages(null);
+            peerScores.onBlockDownloaded(peer.getAddress().getSocketAddress());
+            if (blocksLeft == 0)
+                maybeSyncDone(peer);
 
-            final long now = System.currentTimeMillis();
-            if (now - lastMessageTime.get() > BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS)
-                delayHandler.post(runnable);
-            else
-                delayHandler.postDelayed(runnable, BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS);
+            onChainProgress();
         }
+    };
 
-        private final Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-                lastMessageTime.set(System.currentTimeMillis());
+    private final AtomicLong lastChainProgressBroadcast = new AtomicLong(0);
 
-                config.maybeIncrementBestChainHeightEver(blockChain.getChainHead().getHeight());
-                broadcastBlockchainState();
-            }
-        };
+    /** Broadcasts the blockchain state, throttled, as the chain moves on. */
+    private void onChainProgress() {
+        delayHandler.removeCallbacksAndMessages(null);
+
+        final long now = System.currentTimeMillis();
+        if (now - lastChainProgressBroadcast.get() > BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS)
+            delayHandler.post(chainProgressRunnable);
+        else
+            delayHandler.postDelayed(chainProgressRunnable, BLOCKCHAIN_STATE_BROADCAST_THROTTLE_MS);
+    }
+
+    private final Runnable chainProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            lastChainProgressBroadcast.set(System.currentTimeMillis());
+
+            config.maybeIncrementBestChainHeightEver(blockChain.getChainHead().getHeight());
+            broadcastBlockchainState();
+        }
     };
 
     private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
@@ -392,12 +482,20 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 }
 
                 log.info("starting peergroup");
-                peerGroup = new PeerGroup(Constants.NETWORK_PARAMETERS, blockChain);
+                peerGroup = new PeerGroup(Constants.NETWORK_PARAMETERS, blockChain) {
+                    @Override
+                    protected Peer createPeer(final PeerAddress address, final VersionMessage ver) {
+                        // start of the connection attempt, for measuring the handshake
+                        peerScores.onConnecting(address.getSocketAddress());
+                        return super.createPeer(address, ver);
+                    }
+                };
                 peerGroup.setDownloadTxDependencies(0); // recursive implementation causes StackOverflowError
                 peerGroup.addWallet(wallet);
                 peerGroup.setUserAgent(Constants.USER_AGENT, application.packageInfo().versionName);
                 peerGroup.addConnectedEventListener(peerConnectivityListener);
                 peerGroup.addDisconnectedEventListener(peerConnectivityListener);
+                peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, peerAddressListener);
 
                 final int maxConnectedPeers = application.maxConnectedPeers();
 
@@ -411,6 +509,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
                 peerGroup.addPeerDiscovery(new PeerDiscovery() {
                     private final PeerDiscovery normalPeerDiscovery = new DnsDiscovery(Constants.NETWORK_PARAMETERS); // DOGM only has DNS
+                    private final AtomicBoolean refilling = new AtomicBoolean(false);
 
                     @Override
                     public InetSocketAddress[] getPeers(final long services, final long timeoutValue,
@@ -431,9 +530,33 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                             }
                         }
 
-                        if (!connectTrustedPeerOnly)
-                            peers.addAll(
-                                    Arrays.asList(normalPeerDiscovery.getPeers(0, timeoutValue, timeoutUnit)));
+                        if (!connectTrustedPeerOnly) {
+                            final List<InetSocketAddress> bestPeers = peerScores.best(maxConnectedPeers);
+                            if (bestPeers.size() >= maxConnectedPeers) {
+                                // enough peers known to be fast, so only offer those
+                                log.info("preferring peers known to be fast: {}", bestPeers);
+                                peers.addAll(bestPeers);
+                                needsTrimPeersWorkaround = true;
+                            } else {
+                                final List<InetSocketAddress> cachedPeers = peerScores
+                                        .candidates(maxConnectedPeers * MAX_CACHED_PEERS_FACTOR);
+                                if (cachedPeers.size() >= maxConnectedPeers) {
+                                    // warm start, so don't wait for DNS
+                                    log.info("using {} cached peer addresses", cachedPeers.size());
+                                    peers.addAll(cachedPeers);
+                                    needsTrimPeersWorkaround = true;
+                                    refillInBackground(timeoutValue, timeoutUnit);
+                                } else {
+                                    final List<InetSocketAddress> dnsPeers = Arrays
+                                            .asList(normalPeerDiscovery.getPeers(0, timeoutValue, timeoutUnit));
+                                    peerScores.learnedFromSeeds(dnsPeers);
+                                    final Set<InetSocketAddress> candidates = new LinkedHashSet<InetSocketAddress>(
+                                            cachedPeers);
+                                    candidates.addAll(dnsPeers);
+                                    peers.addAll(peerScores.sortBestFirst(candidates));
+                                }
+                            }
+                        }
 
                         // workaround because PeerGroup will shuffle peers
                         if (needsTrimPeersWorkaround)
@@ -443,6 +566,26 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                         return peers.toArray(new InetSocketAddress[0]);
                     }
 
+                    private void refillInBackground(final long timeoutValue, final TimeUnit timeoutUnit) {
+                        if (!refilling.compareAndSet(false, true))
+                            return;
+
+                        new Thread("peerCacheRefill") {
+                            @Override
+                            public void run() {
+                                try {
+                                    final InetSocketAddress[] dnsPeers = normalPeerDiscovery.getPeers(0, timeoutValue,
+                                            timeoutUnit);
+                                    peerScores.learnedFromSeeds(Arrays.asList(dnsPeers));
+                                    log.info("refilled peer address cache with {} addresses from DNS", dnsPeers.length);
+                                } catch (final Exception x) {
+                                    // the cache will be refilled next time
+                                    log.info("problem refilling peer address cache: {}", x.toString());
+                                }
+                            }
+                        }.start();
+                    }
+
                     @Override
                     public void shutdown() {
                         normalPeerDiscovery.shutdown();
@@ -454,12 +597,18 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
                 peerGroup.startBlockChainDownload(blockchainDownloadListener);
             } else if (!impediments.isEmpty() && peerGroup != null) {
                 log.info("stopping peergroup");
+                final ParallelBlockDownload pipelinedDownload = BlockchainServiceImpl.this.pipelinedDownload;
+                if (pipelinedDownload != null)
+                    pipelinedDownload.cancel();
+                peerGroup.removePreMessageReceivedEventListener(peerAddressListener);
                 peerGroup.removeDisconnectedEventListener(peerConnectivityListener);
                 peerGroup.removeConnectedEventListener(peerConnectivityListener);
                 peerGroup.removeWallet(wallet);
                 peerGroup.stopAsync();
                 peerGroup = null;
 
+                peerScores.save();
+
                 log.debug("releasing wakelock");
                 wakeLock.release();
             }
@@ -468,65 +617,209 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
     };
 
-    private final static class ActivityHistoryEntry {
-        public final int numTransactionsReceived;
-        public final int numBlocksDownloaded;
+    /**
+     * Catches up from several peers in parallel, if the chain is far behind. The download peer of the peer group keeps
+     * downloading as usual, and skips the blocks that have already been added.
+     *
+     * <p>
+     * Catching up is headers-first: headers are fetched ahead from one peer. Up to the fast catch-up time, which is
+     * before the wallet's earliest key, no block can concern the wallet, so these headers go into the chain as they
+     * are. Only the blocks after that are downloaded, as filtered blocks and in windows of limited size.
+     */
+    private void maybeStartPipelinedDownload(final Peer newPeer) {
+        final PeerGroup peerGroup = this.peerGroup;
+        final BlockChain blockChain = this.blockChain;
+        if (peerGroup == null || blockChain == null)
+            return;
+        if (newPeer.getBestHeight() - blockChain.getBestChainHeight() < PIPELINED_DOWNLOAD_MIN_BLOCKS_BEHIND)
+            return;
+        final Peer downloadPeer = peerGroup.getDownloadPeer();
+        final List<Peer> peers = new ArrayList<Peer>(peerGroup.getConnectedPeers());
+        peers.remove(downloadPeer);
+        if (peers.size() < PIPELINED_DOWNLOAD_MIN_PEERS)
+            return;
+        if (!pipelinedDownloadRunning.compareAndSet(false, true))
+            return;
+        final long fastCatchupTimeSecs = peerGroup.getFastCatchupTimeSecs();
+
+        new Thread("pipelinedDownload") {
+            @Override
+            public void run() {
+                org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+                try {
+                    runPipelinedDownload(peerGroup, blockChain, fastCatchupTimeSecs, peers);
+                } finally {
+                    pipelinedDownload = null;
+                    pipelinedDownloadRunning.set(false);
+                    setCatchUpState(null, 0, 0, 0);
+                }
+            }
+        }.start();
+    }
 
-        public ActivityHistoryEntry(final int numTransactionsReceived, final int numBlocksDownloaded) {
-            this.numTransactionsReceived = numTransactionsReceived;
-            this.numBlocksDownloaded = numBlocksDownloaded;
+    private void runPipelinedDownload(final PeerGroup peerGroup, final BlockChain blockChain,
+            final long fastCatchupTimeSecs, final List<Peer> peers) {
+        final Wallet wallet = application.getWallet();
+        final List<PeerBlockSource> sources = new ArrayList<PeerBlockSource>(peers.size());
+        for (final Peer peer : peers)
+            sources.add(new PeerBlockSource(peer));
+        final ParallelBlockDownload.BlockSink sink = new ParallelBlockDownload.BlockSink() {
+            @Override
+            public void add(final FilteredBlock block, final ParallelBlockDownload.BlockSource source,
+                    final int blocksLeft) throws Exception {
+                // like Peer does: the block might match keys beyond the filter, so it must be fetched again
+                if (wallet.checkForFilterExhaustion(block))
+                    throw new FilterExhaustedException(block.getHash());
+                if (!blockChain.add(block))
+                    throw new VerificationException("does not connect: " + block.getHash());
+                catchUpHeight = catchUpTargetHeight - blocksLeft;
+                blockchainDownloadListener.onBlocksDownloaded(((PeerBlockSource) source).getPeer(),
+                        block.getBlockHeader(), block, blocksLeft);
+            }
+        };
+        final Stopwatch watch = Stopwatch.createStarted();
+        int numHeaders = 0;
+        int numBlocks = 0;
+
+        try {
+            final PeerBlockSource headerSource = sources.get(0);
+            final int targetHeight = headerSource.getPeer().getBestHeight();
+            final StoredBlock chainHead = blockChain.getChainHead();
+            Sha256Hash lastHash = chainHead.getHeader().getHash();
+            int lastHeight = chainHead.getHeight();
+            boolean headersComplete = false;
+
+            while (!headersComplete) {
+                // headers phase: headers before the fast catch-up time are all that's needed of their blocks
+                final int windowStartHeight = lastHeight;
+                final List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>();
+                setCatchUpState(CatchUpPhase.HEADERS, windowStartHeight, lastHeight, targetHeight);
+                while (blockHashes.size() < CATCH_UP_WINDOW_BLOCKS) {
+                    final List<Block> headers = headerSource.getHeaders(Collections.singletonList(lastHash))
+                            .get(Constants.PEER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    for (final Block header : headers) {
+                        if (!header.getPrevBlockHash().equals(lastHash))
+                            throw new VerificationException("headers don't connect: " + header.getHash());
+                        lastHash = header.getHash();
+                        lastHeight++;
+                        if (blockHashes.isEmpty() && header.getTimeSeconds() < fastCatchupTimeSecs) {
+                            if (!blockChain.add(header))
+                                throw new VerificationException("does not connect: " + lastHash);
+                            numHeaders++;
+                            // not a block download, so not for scoring the peer
+                            onChainProgress();
+                        } else {
+                            blockHashes.add(lastHash);
+                        }
+                    }
+                    setCatchUpState(CatchUpPhase.HEADERS, windowStartHeight, lastHeight, targetHeight);
+                    if (headers.size() < MAX_HEADERS_PER_MESSAGE) {
+                        headersComplete = true;
+                        break;
+                    }
+                }
+                if (blockHashes.isEmpty())
+                    continue;
+
+                // blocks phase: filtered blocks of the window, from all peers
+                setCatchUpState(CatchUpPhase.BLOCKS, lastHeight - blockHashes.size(), lastHeight - blockHashes.size(),
+                        lastHeight);
+                List<Sha256Hash> remainingHashes = blockHashes;
+                while (!remainingHashes.isEmpty()) {
+                    final ParallelBlockDownload download = new ParallelBlockDownload(remainingHashes, sink,
+                            PIPELINED_DOWNLOAD_BATCH_SIZE, PIPELINED_DOWNLOAD_MAX_BUFFERED_BLOCKS);
+                    for (final PeerBlockSource source : sources)
+                        download.addSource(source, source.getPeer().getAddress().toString());
+                    pipelinedDownload = download;
+                    try {
+                        download.start().get();
+                        remainingHashes = Collections.emptyList();
+                    } catch (final ExecutionException x) {
+                        if (!(x.getCause() instanceof FilterExhaustedException))
+                            throw x;
+                        log.info("bloom filter exhausted at block {}, waiting for the recalculated filter",
+                                ((FilterExhaustedException) x.getCause()).blockHash);
+                        remainingHashes = remainingHashes.subList(download.getNumBlocksApplied(),
+                                remainingHashes.size());
+                        // blocks still in flight were filtered by the old filter
+                        for (final PeerBlockSource source : sources)
+                            source.awaitBlocks(Constants.PEER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        // once sent, the new filter is in use for all blocks requested afterwards
+                        peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED)
+                                .get(Constants.PEER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } finally {
+                        numBlocks += download.getNumBlocksApplied();
+                        for (final Map.Entry<String, ParallelBlockDownload.Contribution> entry : download
+                                .getContributions().entrySet())
+                            log.info("pipelined download from {}: {}", entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } catch (final Exception x) {
+            log.info("pipelined download stopped: {}", x.toString());
+        } finally {
+            for (final PeerBlockSource source : sources)
+                source.close();
         }
 
-        @Override
-        public String toString() {
-            return numTransactionsReceived + "/" + numBlocksDownloaded;
+        log.info("pipelined download of {} headers and {} blocks from {} peers took {}", numHeaders, numBlocks,
+                sources.size(), watch);
+    }
+
+    private static final class FilterExhaustedException extends Exception {
+        public final Sha256Hash blockHash;
+
+        public FilterExhaustedException(final Sha256Hash blockHash) {
+            super("bloom filter exhausted at block " + blockHash);
+            this.blockHash = blockHash;
         }
     }
 
+    private void setCatchUpState(@Nullable final CatchUpPhase phase, final int startHeight, final int height,
+            final int targetHeight) {
+        catchUpPhase = phase;
+        catchUpStartHeight = startHeight;
+        catchUpHeight = height;
+        catchUpTargetHeight = targetHeight;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                broadcastBlockchainState();
+            }
+        });
+    }
+
+    private final ActivityHistory activityHistory = new ActivityHistory(MAX_HISTORY_SIZE);
+
     private final BroadcastReceiver tickReceiver = new BroadcastReceiver() {
         private int lastChainHeight = 0;
-        private final List<ActivityHistoryEntry> activityHistory = new LinkedList<ActivityHistoryEntry>();
 
         @Override
         public void onReceive(final Context context, final Intent intent) {
             final int chainHeight = blockChain.getBestChainHeight();
 
+            if (peerGroup != null)
+                for (final Peer peer : peerGroup.getConnectedPeers())
+                    peerScores.onPing(peer.getAddress().getSocketAddress(), peer.getLastPingTime());
+
             if (lastChainHeight > 0) {
                 final int numBlocksDownloaded = chainHeight - lastChainHeight;
                 final int numTransactionsReceived = transactionsReceived.getAndSet(0);
 
                 // push history
-                activityHistory.add(0, new ActivityHistoryEntry(numTransactionsReceived, numBlocksDownloaded));
-
-                // trim
-                while (activityHistory.size() > MAX_HISTORY_SIZE)
-                    activityHistory.remove(activityHistory.size() - 1);
-
-                // print
-                final StringBuilder builder = new StringBuilder();
-                for (final ActivityHistoryEntry entry : activityHistory) {
-                    if (builder.length() > 0)
-                        builder.append(", ");
-                    builder.append(entry);
-                }
-                log.info("History of transactions/blocks: " + builder);
+                activityHistory.push(numTransactionsReceived, numBlocksDownloaded);
 
                 // determine if block and transaction activity is idling
-                boolean isIdle = false;
-                if (activityHistory.size() >= MIN_COLLECT_HISTORY) {
-                    isIdle = true;
-                    for (int i = 0; i < activityHistory.size(); i++) {
-                        final ActivityHistoryEntry entry = activityHistory.get(i);
-                        final boolean blocksActive = entry.numBlocksDownloaded > 0 && i <= IDLE_BLOCK_TIMEOUT_MIN;
-                        final boolean transactionsActive = entry.numTransactionsReceived > 0
-                                && i <= IDLE_TRANSACTION_TIMEOUT_MIN;
-
-                        if (blocksActive || transactionsActive) {
-                            isIdle = false;
-                            break;
-                        }
-                    }
-                }
+                final double blocksPerMin = activityHistory.averageBlocks(IDLE_BLOCK_TIMEOUT_MIN + 1);
+                final double transactionActivity = activityHistory
+                        .transactionActivity(TRANSACTION_ACTIVITY_HALF_LIFE_MIN);
+                final boolean isIdle = activityHistory.size() >= MIN_COLLECT_HISTORY
+                        && blocksPerMin <= IDLE_BLOCKS_PER_MIN && transactionActivity < IDLE_TRANSACTION_ACTIVITY;
+
+                log.info("transactions/blocks in the last minute: {}/{}, blocks per minute: {}, "
+                        + "transaction activity: {}", numTransactionsReceived, numBlocksDownloaded,
+                        String.format(Locale.US, "%.1f", blocksPerMin),
+                        String.format(Locale.US, "%.2f", transactionActivity));
 
                 // if idling, shutdown service
                 if (isIdle) {
@@ -576,8 +869,9 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
         application = (WalletApplication) getApplication();
         config = application.getConfiguration();
-        final Wallet wallet = application.getWallet();
 
+        peerScores = new PeerScores(getFileStreamPath(Constants.Files.PEER_SCORES_FILENAME));
+        syncScheduler = new SyncScheduler(getFileStreamPath(Constants.Files.SYNC_HISTORY_FILENAME));
         peerConnectivityListener = new PeerConnectivityListener();
 
         broadcastPeerState(0);
@@ -585,42 +879,185 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         blockChainFile = new File(getDir("blockstore", Context.MODE_PRIVATE), Constants.Files.BLOCKCHAIN_FILENAME);
         final boolean blockChainFileExists = blockChainFile.exists();
 
+        try {
+            blockStore = new MappedBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile,
+                    config.getBlockStoreCapacity());
+            blockStore.getChainHead(); // detect corruptions as early as possible
+        } catch (final BlockStoreException x) {
+            blockChainFile.delete();
+
+            final String msg = "blockstore cannot be created";
+            log.error(msg, x);
+            throw new Error(msg, x);
+        }
+
+        // the service may be started while the wallet is still loading, so don't block the main thread on it
+        if (application.isWalletLoaded()) {
+            onWalletLoaded(blockChainFileExists);
+        } else {
+            application.runWhenWalletLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    if (!destroyed)
+                        onWalletLoaded(blockChainFileExists);
+                }
+            });
+        }
+    }
+
+    private void onWalletLoaded(final boolean blockChainFileExists) {
+        final Wallet wallet = application.getWallet();
+
         if (!blockChainFileExists) {
             log.info("blockchain does not exist, resetting wallet");
             wallet.reset();
         }
 
-        try {
-            blockStore = new SPVBlockStore(Constants.NETWORK_PARAMETERS, blockChainFile);
-            blockStore.getChainHead(); // detect corruptions as early as possible
+        final long earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
+        final long checkpointTime = blockChainFileExists ? rewindToWallet(wallet, earliestKeyCreationTime)
+                : earliestKeyCreationTime;
 
-            final long earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
+        if (checkpointTime > 0) {
+            // the chain head must be in place before the block chain is created, so the peergroup waits for this
+            checkpointLoading = true;
+            new Thread("checkpoints") {
+                @Override
+                public void run() {
+                    org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
+                    if (!destroyed)
+                        loadCheckpoint(checkpointTime);
+
+                    synchronized (checkpointLock) {
+                        checkpointLoading = false;
+                        if (destroyed) {
+                            log.info("service destroyed while loading checkpoint, closing block store");
+                            try {
+                                blockStore.close();
+                            } catch (final BlockStoreException x) {
+                                log.warn("problem closing block store", x);
+                            }
+                            return;
+                        }
+                    }
 
-            if (!blockChainFileExists && earliestKeyCreationTime > 0) {
-                try {
-                    final Stopwatch watch = Stopwatch.createStarted();
-                    final InputStream checkpointsInputStream = getAssets().open(Constants.Files.CHECKPOINTS_FILENAME);
-                    CheckpointManager.checkpoint(Constants.NETWORK_PARAMETERS, checkpointsInputStream, blockStore,
-                            earliestKeyCreationTime);
-                    watch.stop();
-                    log.info("checkpoints loaded from '{}', took {}", Constants.Files.CHECKPOINTS_FILENAME, watch);
-                } catch (final IOException x) {
-                    log.error("problem reading checkpoints, continuing without", x);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!destroyed)
+                                onBlockStoreReady();
+                        }
+                    });
+                }
+            }.start();
+        } else {
+            onBlockStoreReady();
+        }
+    }
+
+    /**
+     * Rolls the block store back to the block the wallet has seen last, if the wallet is behind. That happens if the
+     * app was killed after blocks were stored, but before the wallet was saved. The wallet then doesn't know about
+     * the transactions in the blocks in between, and resetting the blockchain used to be the only way to get them.
+     *
+     * @return time to load a checkpoint for, if the wallet's block isn't in the store anymore, or 0 if the chain head
+     *         is in place
+     */
+    private long rewindToWallet(final Wallet wallet, final long earliestKeyCreationTime) {
+        final int walletHeight = wallet.getLastBlockSeenHeight();
+        final Sha256Hash walletHash = wallet.getLastBlockSeenHash();
+        final int chainHeight;
+        final int resumeHeight;
+        final long checkpointTime;
+        try {
+            final StoredBlock chainHead = blockStore.getChainHead();
+            chainHeight = chainHead.getHeight();
+            if (walletHeight == -1 || walletHash == null || walletHeight >= chainHeight)
+                return 0;
+
+            final StoredBlock walletBlock = blockStore.get(walletHash);
+            if (walletBlock != null) {
+                // if the block is on a side chain by now, the block chain reorganizes the wallet once it catches up
+                blockStore.setChainHead(walletBlock);
+                resumeHeight = walletHeight;
+                checkpointTime = 0;
+            } else {
+                checkpointTime = wallet.getLastBlockSeenTimeSecs();
+                resumeHeight = checkpointHeightBefore(checkpointTime);
+                if (resumeHeight <= 0) {
+                    log.warn("wallet/blockchain out of sync: {}/{}, no block to rewind to", walletHeight,
+                            chainHeight);
+                    return 0;
                 }
             }
         } catch (final BlockStoreException x) {
-            blockChainFile.delete();
+            log.warn("cannot rewind blockchain to wallet", x);
+            return 0;
+        }
 
-            final String msg = "blockstore cannot be created";
-            log.error(msg, x);
-            throw new Error(msg, x);
+        final int numBlocks = chainHeight - resumeHeight;
+        final int resetHeight = checkpointHeightBefore(earliestKeyCreationTime);
+        final long savedMs = resetHeight >= 0 ? syncScheduler.estimateSyncDurationMs(resumeHeight - resetHeight) : -1;
+        log.info("wallet/blockchain out of sync: {}/{}, rewinding to {}{}, re-syncing {} blocks instead of {} after "
+                + "a reset, saving {}", walletHeight, chainHeight, checkpointTime > 0 ? "checkpoint at " : "",
+                resumeHeight, numBlocks, resetHeight >= 0 ? chainHeight - resetHeight : "?",
+                savedMs >= 0 ? "about " + savedMs / DateUtils.SECOND_IN_MILLIS + " seconds" : "unknown time");
+        return checkpointTime;
+    }
+
+    /** @return height of the checkpoint {@link #loadCheckpoint(long)} would load, 0 if none or -1 if unknown */
+    private int checkpointHeightBefore(final long timeSecs) {
+        try {
+            final StoredBlock checkpoint = Checkpoints.checkpointBefore(Constants.NETWORK_PARAMETERS, getAssets(),
+                    Constants.Files.CHECKPOINTS_BINARY_FILENAME, timeSecs);
+            return checkpoint != null ? checkpoint.getHeight() : 0;
+        } catch (final IOException x) {
+            log.info("cannot look up checkpoint: {}", x.toString());
+            return -1;
         }
+    }
 
+    private void loadCheckpoint(final long timeSecs) {
+        final Stopwatch watch = Stopwatch.createStarted();
         try {
-            blockChain = new BlockChain(Constants.NETWORK_PARAMETERS, wallet, blockStore);
+            try {
+                final StoredBlock checkpoint = Checkpoints.checkpointBefore(Constants.NETWORK_PARAMETERS, getAssets(),
+                        Constants.Files.CHECKPOINTS_BINARY_FILENAME, timeSecs);
+                if (checkpoint != null) {
+                    blockStore.put(checkpoint);
+                    blockStore.setChainHead(checkpoint);
+                }
+                watch.stop();
+                log.info("checkpoint at height {} loaded from '{}', took {}",
+                        checkpoint != null ? checkpoint.getHeight() : 0, Constants.Files.CHECKPOINTS_BINARY_FILENAME,
+                        watch);
+            } catch (final FileNotFoundException x) {
+                // binary checkpoints missing or compressed, fall back to parsing the text file
+                final InputStream checkpointsInputStream = getAssets().open(Constants.Files.CHECKPOINTS_FILENAME);
+                CheckpointManager.checkpoint(Constants.NETWORK_PARAMETERS, checkpointsInputStream, blockStore,
+                        timeSecs);
+                watch.stop();
+                log.info("checkpoints loaded from '{}', took {}", Constants.Files.CHECKPOINTS_FILENAME, watch);
+            }
+        } catch (final IOException x) {
+            log.error("problem reading checkpoints, continuing without", x);
+        } catch (final BlockStoreException x) {
+            log.error("problem storing checkpoint, continuing without", x);
+        }
+    }
+
+    private void onBlockStoreReady() {
+        try {
+            blockChain = new BlockChain(Constants.NETWORK_PARAMETERS, application.getWallet(), blockStore);
         } catch (final BlockStoreException x) {
             throw new Error("blockchain cannot be created", x);
         }
+        syncStartHeight = blockChain.getBestChainHeight();
+
+        // after the wallet, so that it knows which transactions the wallet kept
+        walletJournal = application.getWalletJournal();
+        blockChain.addTransactionReceivedListener(Threading.SAME_THREAD, walletJournal);
+        blockChain.addNewBestBlockListener(Threading.SAME_THREAD, walletJournal);
+        blockChain.addReorganizeListener(Threading.SAME_THREAD, walletJournal);
 
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
@@ -677,15 +1114,33 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     public void onDestroy() {
         log.debug(".onDestroy()");
 
+        // a service that never caught up doesn't tell how long syncing takes
+        final long syncDoneAt = this.syncDoneAt;
+        if (syncDoneAt != 0)
+            syncScheduler.onSynced(syncDoneAt, syncDoneAt - serviceCreatedAt, syncDoneHeight - syncStartHeight);
+        syncScheduler.save();
         WalletApplication.scheduleStartBlockchainService(this);
 
-        unregisterReceiver(tickReceiver);
+        final boolean closeBlockStore;
+        synchronized (checkpointLock) {
+            destroyed = true;
+            // don't close the block store under the checkpoint thread's feet, and don't wait for it either
+            closeBlockStore = !checkpointLoading;
+        }
+
+        if (blockChain != null) {
+            blockChain.removeReorganizeListener(walletJournal);
+            blockChain.removeNewBestBlockListener(walletJournal);
+            blockChain.removeTransactionReceivedListener(walletJournal);
 
-        application.getWallet().removeChangeEventListener(walletEventListener);
-        application.getWallet().removeCoinsSentEventListener(walletEventListener);
-        application.getWallet().removeCoinsReceivedEventListener(walletEventListener);
+            unregisterReceiver(tickReceiver);
 
-        unregisterReceiver(connectivityReceiver);
+            application.getWallet().removeChangeEventListener(walletEventListener);
+            application.getWallet().removeCoinsSentEventListener(walletEventListener);
+            application.getWallet().removeCoinsReceivedEventListener(walletEventListener);
+
+            unregisterReceiver(connectivityReceiver);
+        }
 
         if (peerGroup != null) {
             peerGroup.removeDisconnectedEventListener(peerConnectivityListener);
@@ -696,17 +1151,22 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
             log.info("peergroup stopped");
         }
 
+        peerScores.save();
+
         peerConnectivityListener.stop();
 
         delayHandler.removeCallbacksAndMessages(null);
 
-        try {
-            blockStore.close();
-        } catch (final BlockStoreException x) {
-            throw new RuntimeException(x);
+        if (closeBlockStore) {
+            try {
+                blockStore.close();
+            } catch (final BlockStoreException x) {
+                throw new RuntimeException(x);
+            }
         }
 
-        application.saveWallet();
+        if (application.isWalletLoaded())
+            application.saveWallet();
 
         if (wakeLock.isHeld()) {
             log.debug("wakelock still held, releasing");
@@ -735,14 +1195,20 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         }
     }
 
+    @Override
+    public ActivityHistory getActivityHistory() {
+        return new ActivityHistory(activityHistory);
+    }
+
     @Override
     public BlockchainState getBlockchainState() {
-        final StoredBlock chainHead = blockChain.getChainHead();
+        final StoredBlock chainHead = getChainHead();
         final Date bestChainDate = chainHead.getHeader().getTime();
         final int bestChainHeight = chainHead.getHeight();
         final boolean replaying = chainHead.getHeight() < config.getBestChainHeightEver();
 
-        return new BlockchainState(bestChainDate, bestChainHeight, replaying, impediments);
+        return new BlockchainState(bestChainDate, bestChainHeight, replaying, impediments, catchUpPhase,
+                catchUpStartHeight, catchUpHeight, catchUpTargetHeight);
     }
 
     @Override
@@ -758,7 +1224,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         final List<StoredBlock> blocks = new ArrayList<StoredBlock>(maxBlocks);
 
         try {
-            StoredBlock block = blockChain.getChainHead();
+            StoredBlock block = getChainHead();
 
             while (block != null) {
                 blocks.add(block);
@@ -775,6 +1241,19 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
         return blocks;
     }
 
+    /** While checkpoints are being loaded, the block chain doesn't exist yet, so take the chain head from the store. */
+    private StoredBlock getChainHead() {
+        final BlockChain blockChain = this.blockChain;
+        if (blockChain != null)
+            return blockChain.getChainHead();
+
+        try {
+            return blockStore.getChainHead();
+        } catch (final BlockStoreException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
     private void broadcastPeerState(final int numPeers) {
         final Intent broadcast = new Intent(ACTION_PEER_STATE);
         broadcast.setPackage(getPackageName());
@@ -784,9 +1263,6 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
     }
 
     private void broadcastBlockchainState() {
-        final Intent broadcast = new Intent(ACTION_BLOCKCHAIN_STATE);
-        broadcast.setPackage(getPackageName());
-        getBlockchainState().putExtras(broadcast);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+        application.getBlockchainStateHolder().publish(getBlockchainState());
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Holds the latest {@link BlockchainState} for observers in this process.
+ *
+ * <p>
+ * Publishing replaces the current snapshot without locking and can be done from any thread. Observers are called on
+ * the main thread, at most once per display frame and only with the newest snapshot, so intermediate states that
+ * nobody could have seen are skipped.
+ *
+ * @author Andreas Schildbach
+ */
+public final class BlockchainStateHolder {
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    public interface Observer {
+        void onBlockchainStateChanged(BlockchainState blockchainState);
+    }
+
+    private static final class Snapshot {
+        public final BlockchainState state;
+        public final long version;
+
+        public Snapshot(final BlockchainState state, final long version) {
+            this.state = state;
+            this.version = version;
+        }
+    }
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<Snapshot>(new Snapshot(null, 0));
+    private final AtomicBoolean dispatchPending = new AtomicBoolean(false);
+    private final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<Observer>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // only accessed on the main thread
+    private long lastDispatchTime = 0;
+    private long lastDispatchedVersion = 0;
+
+    public void publish(final BlockchainState state) {
+        while (true) {
+            final Snapshot snapshot = current.get();
+            if (current.compareAndSet(snapshot, new Snapshot(state, snapshot.version + 1)))
+                break;
+        }
+
+        if (dispatchPending.compareAndSet(false, true))
+            handler.post(scheduleDispatch);
+    }
+
+    /** @return latest snapshot, or {@code null} if nothing has been published yet */
+    @Nullable
+    public BlockchainState get() {
+        return current.get().state;
+    }
+
+    /** @return number of snapshots published so far */
+    public long version() {
+        return current.get().version;
+    }
+
+    public void addObserver(final Observer observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(final Observer observer) {
+        observers.remove(observer);
+    }
+
+    private final Runnable scheduleDispatch = new Runnable() {
+        @Override
+        public void run() {
+            final long sinceLastDispatch = SystemClock.uptimeMillis() - lastDispatchTime;
+            if (sinceLastDispatch >= FRAME_INTERVAL_MS)
+                dispatch.run();
+            else
+                handler.postDelayed(dispatch, FRAME_INTERVAL_MS - sinceLastDispatch);
+        }
+    };
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            // clear first, so that states published while dispatching get their own dispatch
+            dispatchPending.set(false);
+            lastDispatchTime = SystemClock.uptimeMillis();
+
+            final Snapshot snapshot = current.get();
+            if (snapshot.version == lastDispatchedVersion)
+                return;
+            lastDispatchedVersion = snapshot.version;
+
+            for (final Observer observer : observers)
+                observer.onBlockchainStateChanged(snapshot.state);
+        }
+    };
+}
@@ -22,40 +22,35 @@ import java.util.concurrent.RejectedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.ui.AbstractBindServiceActivity;
 
 import android.content.AsyncTaskLoader;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.support.v4.content.LocalBroadcastManager;
 
 /**
  * @author Andreas Schildbach
  */
 public class BlockchainStateLoader extends AsyncTaskLoader<BlockchainState> {
     private final AbstractBindServiceActivity activity;
-    private final LocalBroadcastManager broadcastManager;
+    private final BlockchainStateHolder blockchainStateHolder;
 
     private static final Logger log = LoggerFactory.getLogger(BlockchainStateLoader.class);
 
     public BlockchainStateLoader(final AbstractBindServiceActivity activity) {
         super(activity);
         this.activity = activity;
-        this.broadcastManager = LocalBroadcastManager.getInstance(activity.getApplicationContext());
+        this.blockchainStateHolder = ((WalletApplication) activity.getApplication()).getBlockchainStateHolder();
     }
 
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        broadcastManager.registerReceiver(broadcastReceiver,
-                new IntentFilter(BlockchainService.ACTION_BLOCKCHAIN_STATE));
+        blockchainStateHolder.addObserver(blockchainStateObserver);
     }
 
     @Override
     protected void onStopLoading() {
-        broadcastManager.unregisterReceiver(broadcastReceiver);
+        blockchainStateHolder.removeObserver(blockchainStateObserver);
         super.onStopLoading();
     }
 
@@ -64,11 +59,11 @@ public class BlockchainStateLoader extends AsyncTaskLoader<BlockchainState> {
         return activity.getBlockchainService().getBlockchainState();
     }
 
-    private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
+    private final BlockchainStateHolder.Observer blockchainStateObserver = new BlockchainStateHolder.Observer() {
         @Override
-        public void onReceive(final Context context, final Intent broadcast) {
+        public void onBlockchainStateChanged(final BlockchainState blockchainState) {
             try {
-                deliverResult(BlockchainState.fromIntent(broadcast));
+                deliverResult(blockchainState);
             } catch (final RejectedExecutionException x) {
                 log.info("rejected execution: " + BlockchainStateLoader.this.toString());
             }
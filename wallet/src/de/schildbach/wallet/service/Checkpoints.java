@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.StoredBlock;
+
+import com.google.common.base.Charsets;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * Lookup in the binary checkpoints asset, which is generated at build time from the textual checkpoints file. The
+ * layout is a magic, a version and a count, followed by the checkpoints in compact {@link StoredBlock} serialization
+ * and in ascending order of block time. That way a checkpoint can be found by binary search, touching only a few
+ * records of the mapped asset.
+ *
+ * @author Andreas Schildbach
+ */
+public final class Checkpoints {
+    public static final byte[] MAGIC = "CHKP".getBytes(Charsets.US_ASCII);
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = MAGIC.length + 4 + 4;
+    public static final int RECORD_SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    /** chain work and height, then version, previous block and merkle root of the header */
+    private static final int TIME_OFFSET = 12 + 4 + 4 + 32 + 32;
+
+    /** same safety margin as bitcoinj's {@code CheckpointManager}, to cover inaccurate block times */
+    private static final long MARGIN_SECS = 60 * 60 * 24 * 7;
+
+    private Checkpoints() {
+    }
+
+    /**
+     * Looks up the checkpoint for a wallet in the given asset, which must be stored uncompressed.
+     *
+     * @return the newest checkpoint that is at least a week older than the given time, or {@code null} if none is
+     */
+    public static @Nullable StoredBlock checkpointBefore(final NetworkParameters params, final AssetManager assets,
+            final String filename, final long timeSecs) throws IOException {
+        final AssetFileDescriptor fd = assets.openFd(filename);
+        final FileInputStream is = fd.createInputStream();
+        try {
+            final ByteBuffer buffer = is.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(),
+                    fd.getLength());
+            return checkpointBefore(params, buffer, timeSecs);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @return the newest checkpoint in the buffer that is at least a week older than the given time, or {@code null}
+     *         if none is
+     */
+    public static @Nullable StoredBlock checkpointBefore(final NetworkParameters params, final ByteBuffer buffer,
+            final long timeSecs) throws IOException {
+        final byte[] magic = new byte[MAGIC.length];
+        buffer.position(0);
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("not a binary checkpoints file");
+        final int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("unsupported binary checkpoints version: " + version);
+        final int count = buffer.getInt();
+        if (count < 0 || buffer.limit() < HEADER_SIZE + (long) count * RECORD_SIZE)
+            throw new IOException("truncated binary checkpoints file, expected " + count + " records");
+
+        final long maxTimeSecs = timeSecs - MARGIN_SECS;
+
+        // find the first record newer than maxTimeSecs; the one before it is ours
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (timeOf(buffer, mid) <= maxTimeSecs)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if (low == 0)
+            return null;
+
+        try {
+            buffer.position(HEADER_SIZE + (low - 1) * RECORD_SIZE);
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (final ProtocolException x) {
+            throw new IOException(x);
+        }
+    }
+
+    private static long timeOf(final ByteBuffer buffer, final int index) {
+        // block header fields are little endian
+        return Integer.reverseBytes(buffer.getInt(HEADER_SIZE + index * RECORD_SIZE + TIME_OFFSET)) & 0xffffffffL;
+    }
+}
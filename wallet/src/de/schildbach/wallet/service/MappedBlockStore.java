@@ -0,0 +1,369 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.ChainFileLockedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Ring buffer of the most recent block headers in a memory-mapped file. The file format is the same as the one of
+ * bitcoinj's {@code SPVBlockStore}, so existing block chain files can be opened as they are. Unlike that store, lookups
+ * go through an in-memory index of record positions instead of scanning the ring, and the most recently used blocks
+ * are kept decoded. If the file was written with a different capacity, the newest records are carried over.
+ *
+ * @author Andreas Schildbach
+ */
+public final class MappedBlockStore implements BlockStore {
+    private final NetworkParameters params;
+    private final int capacity;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+
+    /** position of each stored block's record in the file */
+    private final Map<Sha256Hash, Integer> index;
+    private final Map<Sha256Hash, StoredBlock> cache;
+    private StoredBlock chainHead;
+    private boolean closed = false;
+
+    public static final int DEFAULT_CAPACITY = 5000;
+    private static final int CACHE_SIZE = 1024;
+
+    private static final byte[] HEADER_MAGIC = "SPVB".getBytes(Charsets.US_ASCII);
+    private static final int CURSOR_OFFSET = 4;
+    private static final int CHAIN_HEAD_OFFSET = 8;
+    private static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int RECORD_SIZE = Sha256Hash.LENGTH + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    private static final Logger log = LoggerFactory.getLogger(MappedBlockStore.class);
+
+    public MappedBlockStore(final NetworkParameters params, final File file, final int capacity)
+            throws BlockStoreException {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.params = params;
+        this.capacity = capacity;
+        this.index = new HashMap<Sha256Hash, Integer>(capacity * 4 / 3 + 1);
+        this.cache = new LinkedHashMap<Sha256Hash, StoredBlock>(CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Sha256Hash, StoredBlock> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final long fileLength = fileLength(capacity);
+        final boolean exists = file.exists();
+        RandomAccessFile randomAccessFile = null;
+        try {
+            if (exists && file.length() != fileLength)
+                resize(file, capacity);
+
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            this.randomAccessFile = randomAccessFile;
+            this.channel = randomAccessFile.getChannel();
+            this.lock = channel.tryLock();
+            if (lock == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            if (!exists)
+                randomAccessFile.setLength(fileLength);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+
+            if (exists) {
+                final byte[] magic = new byte[HEADER_MAGIC.length];
+                buffer.position(0);
+                buffer.get(magic);
+                if (!Arrays.equals(magic, HEADER_MAGIC))
+                    throw new BlockStoreException(
+                            "Header bytes do not equal " + new String(HEADER_MAGIC, Charsets.US_ASCII));
+                buildIndex();
+                final byte[] headHash = new byte[Sha256Hash.LENGTH];
+                buffer.position(CHAIN_HEAD_OFFSET);
+                buffer.get(headHash);
+                chainHead = get(Sha256Hash.wrap(headHash));
+                if (chainHead == null)
+                    throw new BlockStoreException("Corrupted block store: could not find chain head");
+            } else {
+                buffer.position(0);
+                buffer.put(HEADER_MAGIC);
+                setRingCursor(FILE_PROLOGUE_BYTES);
+                final Block genesisHeader = params.getGenesisBlock().cloneAsHeader();
+                final StoredBlock genesis = new StoredBlock(genesisHeader, genesisHeader.getWork(), 0);
+                put(genesis);
+                setChainHead(genesis);
+            }
+        } catch (final IOException x) {
+            closeQuietly(randomAccessFile);
+            throw new BlockStoreException(x);
+        } catch (final BlockStoreException x) {
+            closeQuietly(randomAccessFile);
+            throw x;
+        } catch (final RuntimeException x) {
+            closeQuietly(randomAccessFile);
+            throw new BlockStoreException(x);
+        }
+
+        watch.stop();
+        log.info("opened block store '{}' with {} of {} records, took {}", file, index.size(), capacity, watch);
+    }
+
+    public static long fileLength(final int capacity) {
+        return FILE_PROLOGUE_BYTES + (long) RECORD_SIZE * capacity;
+    }
+
+    @Override
+    public synchronized void put(final StoredBlock block) throws BlockStoreException {
+        ensureOpen();
+
+        int cursor = getRingCursor();
+        if (cursor == buffer.capacity())
+            cursor = FILE_PROLOGUE_BYTES;
+
+        // the record about to be overwritten drops out of the store
+        final Sha256Hash evicted = readHash(cursor);
+        if (evicted != null) {
+            final Integer evictedPosition = index.get(evicted);
+            if (evictedPosition != null && evictedPosition == cursor) {
+                index.remove(evicted);
+                cache.remove(evicted);
+            }
+        }
+
+        final Sha256Hash hash = block.getHeader().getHash();
+        buffer.position(cursor);
+        buffer.put(hash.getBytes());
+        block.serializeCompact(buffer);
+        setRingCursor(buffer.position());
+
+        index.put(hash, cursor);
+        cache.put(hash, block);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        ensureOpen();
+
+        final StoredBlock cached = cache.get(hash);
+        if (cached != null)
+            return cached;
+
+        final Integer position = index.get(hash);
+        if (position == null)
+            return null;
+
+        try {
+            buffer.position(position + Sha256Hash.LENGTH);
+            final StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+            cache.put(hash, block);
+            return block;
+        } catch (final ProtocolException x) {
+            throw new BlockStoreException(x);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        ensureOpen();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(final StoredBlock chainHead) throws BlockStoreException {
+        ensureOpen();
+        buffer.position(CHAIN_HEAD_OFFSET);
+        buffer.put(chainHead.getHeader().getHash().getBytes());
+        this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        closed = true;
+        index.clear();
+        cache.clear();
+        try {
+            buffer.force();
+            lock.release();
+            randomAccessFile.close();
+        } catch (final IOException x) {
+            throw new BlockStoreException(x);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void ensureOpen() throws BlockStoreException {
+        if (closed)
+            throw new BlockStoreException("Store closed");
+    }
+
+    private void buildIndex() {
+        // oldest to newest, so that a block stored more than once maps to its latest record
+        final int cursor = getRingCursor();
+        final int end = buffer.capacity();
+        for (int position = cursor; position + RECORD_SIZE <= end; position += RECORD_SIZE)
+            indexRecord(position);
+        for (int position = FILE_PROLOGUE_BYTES; position < cursor; position += RECORD_SIZE)
+            indexRecord(position);
+    }
+
+    private void indexRecord(final int position) {
+        final Sha256Hash hash = readHash(position);
+        if (hash != null)
+            index.put(hash, position);
+    }
+
+    /** @return hash of the record at the given position, or {@code null} if the record is unused */
+    private @Nullable Sha256Hash readHash(final int position) {
+        final byte[] hash = new byte[Sha256Hash.LENGTH];
+        buffer.position(position);
+        buffer.get(hash);
+        for (final byte b : hash)
+            if (b != 0)
+                return Sha256Hash.wrap(hash);
+        return null;
+    }
+
+    private int getRingCursor() {
+        final int cursor = buffer.getInt(CURSOR_OFFSET);
+        if (cursor < FILE_PROLOGUE_BYTES || cursor > buffer.capacity()
+                || (cursor - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+            throw new IllegalStateException("Corrupted ring cursor: " + cursor);
+        return cursor;
+    }
+
+    private void setRingCursor(final int cursor) {
+        buffer.putInt(CURSOR_OFFSET, cursor);
+    }
+
+    /** Rewrites a block store file to a new capacity, keeping the newest records. */
+    private static void resize(final File file, final int capacity) throws IOException, BlockStoreException {
+        final long oldLength = file.length();
+        if (oldLength < FILE_PROLOGUE_BYTES || (oldLength - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0
+                || oldLength > Integer.MAX_VALUE)
+            throw new BlockStoreException("Unexpected block store file length: " + oldLength);
+
+        final Stopwatch watch = Stopwatch.createStarted();
+        final byte[] old = new byte[(int) oldLength];
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(old);
+        } finally {
+            in.close();
+        }
+
+        final ByteBuffer oldBuffer = ByteBuffer.wrap(old);
+        final int oldCursor = oldBuffer.getInt(CURSOR_OFFSET);
+        if (oldCursor < FILE_PROLOGUE_BYTES || oldCursor > oldLength)
+            throw new BlockStoreException("Corrupted ring cursor: " + oldCursor);
+
+        // newest records first, walking the ring backwards from the cursor
+        final int oldRecords = (int) ((oldLength - FILE_PROLOGUE_BYTES) / RECORD_SIZE);
+        final int keep = Math.min(capacity, oldRecords);
+        final byte[] resized = new byte[(int) fileLength(capacity)];
+        System.arraycopy(old, 0, resized, 0, FILE_PROLOGUE_BYTES);
+        int written = 0;
+        int position = oldCursor;
+        for (int i = 0; i < oldRecords && written < keep; i++) {
+            position = position == FILE_PROLOGUE_BYTES ? (int) oldLength - RECORD_SIZE : position - RECORD_SIZE;
+            if (isUnused(old, position))
+                continue;
+            final int target = FILE_PROLOGUE_BYTES + (keep - 1 - written) * RECORD_SIZE;
+            System.arraycopy(old, position, resized, target, RECORD_SIZE);
+            written++;
+        }
+
+        // records were placed from the end of the kept range, so close the gap if fewer were found
+        final int unused = keep - written;
+        if (unused > 0) {
+            System.arraycopy(resized, FILE_PROLOGUE_BYTES + unused * RECORD_SIZE, resized, FILE_PROLOGUE_BYTES,
+                    written * RECORD_SIZE);
+            Arrays.fill(resized, FILE_PROLOGUE_BYTES + written * RECORD_SIZE, FILE_PROLOGUE_BYTES + keep * RECORD_SIZE,
+                    (byte) 0);
+        }
+        ByteBuffer.wrap(resized).putInt(CURSOR_OFFSET, FILE_PROLOGUE_BYTES + written * RECORD_SIZE);
+
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+        try {
+            out.setLength(0);
+            out.write(resized);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+
+        watch.stop();
+        log.info("resized block store '{}' from {} to {} records, kept {}, took {}", file, oldRecords, capacity,
+                written, watch);
+    }
+
+    private static boolean isUnused(final byte[] file, final int position) {
+        for (int i = position; i < position + Sha256Hash.LENGTH; i++)
+            if (file[i] != 0)
+                return false;
+        return true;
+    }
+
+    private static void closeQuietly(@Nullable final RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (final IOException x) {
+                // swallow
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Downloads a known sequence of filtered blocks from several sources in parallel.
+ *
+ * <p>
+ * The block hashes are split into batches, and each source gets one batch at a time. Blocks that arrive ahead of
+ * their turn wait in a reorder buffer, so that the sink receives them strictly in chain order. To bound that buffer,
+ * no batch is handed out that starts more than a given number of blocks ahead of the next block to apply. A source
+ * that runs out of work while the batch everyone is waiting for is still in flight requests that batch as well, so a
+ * single slow source can't stall the download. Sources that fail repeatedly are dropped.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ParallelBlockDownload {
+    public interface BlockSource {
+        /**
+         * Requests the given filtered blocks. The result may miss blocks the source doesn't have; these are requested
+         * again.
+         */
+        ListenableFuture<List<FilteredBlock>> getFilteredBlocks(List<Sha256Hash> blockHashes);
+    }
+
+    public interface BlockSink {
+        /** Called in chain order, with the source that delivered the block and the number of blocks left. */
+        void add(FilteredBlock block, BlockSource source, int blocksLeft) throws Exception;
+    }
+
+    public static final class Contribution {
+        public final int blocks;
+        public final int batches;
+        public final int failures;
+        public final long busyMs;
+
+        private Contribution(final int blocks, final int batches, final int failures, final long busyMs) {
+            this.blocks = blocks;
+            this.batches = batches;
+            this.failures = failures;
+            this.busyMs = busyMs;
+        }
+
+        @Override
+        public String toString() {
+            return blocks + " blocks in " + batches + " batches, " + failures + " failures, busy " + busyMs + " ms";
+        }
+    }
+
+    private static final int MAX_FAILURES = 3;
+
+    private static final class SourceState {
+        public final String name;
+        public int inFlight = -1;
+        public long requestedAt;
+        public boolean dropped = false;
+        public int blocks = 0;
+        public int batches = 0;
+        public int failures = 0;
+        public int consecutiveFailures = 0;
+        public long busyMs = 0;
+
+        public SourceState(final String name) {
+            this.name = name;
+        }
+    }
+
+    private final List<Sha256Hash> blockHashes;
+    private final BlockSink sink;
+    private final int batchSize;
+    private final int maxBufferedBlocks;
+
+    private final FilteredBlock[] buffer;
+    private final BlockSource[] bufferSources;
+    private final Deque<Integer> unassigned = new ArrayDeque<Integer>();
+    private final Map<BlockSource, SourceState> sources = new LinkedHashMap<BlockSource, SourceState>();
+    private final SettableFuture<Void> result = SettableFuture.create();
+    private int nextToApply = 0;
+    private boolean started = false;
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownload.class);
+
+    public ParallelBlockDownload(final List<Sha256Hash> blockHashes, final BlockSink sink, final int batchSize,
+            final int maxBufferedBlocks) {
+        checkArgument(batchSize > 0, "batchSize must be positive");
+        checkArgument(maxBufferedBlocks >= batchSize, "maxBufferedBlocks must be at least batchSize");
+        this.blockHashes = new ArrayList<Sha256Hash>(blockHashes);
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.maxBufferedBlocks = maxBufferedBlocks;
+        this.buffer = new FilteredBlock[blockHashes.size()];
+        this.bufferSources = new BlockSource[blockHashes.size()];
+        for (int start = 0; start < blockHashes.size(); start += batchSize)
+            unassigned.add(start);
+    }
+
+    public synchronized void addSource(final BlockSource source, final String name) {
+        if (sources.containsKey(source))
+            return;
+        sources.put(source, new SourceState(name));
+        if (started)
+            assign(source);
+    }
+
+    /** @return future that completes once all blocks have been added to the sink */
+    public synchronized ListenableFuture<Void> start() {
+        if (!started) {
+            started = true;
+            if (blockHashes.isEmpty())
+                result.set(null);
+            else if (sources.isEmpty())
+                result.setException(new IOException("no sources"));
+            else
+                assignAll();
+        }
+        return result;
+    }
+
+    public synchronized void cancel() {
+        result.cancel(false);
+    }
+
+    /** @return number of blocks added to the sink so far */
+    public synchronized int getNumBlocksApplied() {
+        return nextToApply;
+    }
+
+    /** @return what each source contributed, by name */
+    public synchronized Map<String, Contribution> getContributions() {
+        final Map<String, Contribution> contributions = new LinkedHashMap<String, Contribution>();
+        for (final SourceState state : sources.values())
+            contributions.put(state.name,
+                    new Contribution(state.blocks, state.batches, state.failures, state.busyMs));
+        return contributions;
+    }
+
+    private void assignAll() {
+        for (final BlockSource source : new ArrayList<BlockSource>(sources.keySet()))
+            assign(source);
+    }
+
+    private void assign(final BlockSource source) {
+        final SourceState state = sources.get(source);
+        if (result.isDone() || state.dropped || state.inFlight >= 0)
+            return;
+
+        final int start;
+        final Integer next = unassigned.peekFirst();
+        if (next != null && next < nextToApply + maxBufferedBlocks) {
+            start = unassigned.pollFirst();
+        } else {
+            // help with the batch everyone is waiting for
+            final int head = nextToApply - nextToApply % batchSize;
+            if (buffer[nextToApply] != null || inFlightCount(head) != 1)
+                return;
+            start = head;
+        }
+
+        final int end = Math.min(start + batchSize, blockHashes.size());
+        final List<Sha256Hash> requested = new ArrayList<Sha256Hash>(blockHashes.subList(start, end));
+        state.inFlight = start;
+        state.requestedAt = System.currentTimeMillis();
+
+        ListenableFuture<List<FilteredBlock>> future;
+        try {
+            future = source.getFilteredBlocks(requested);
+        } catch (final RuntimeException x) {
+            future = Futures.immediateFailedFuture(x);
+        }
+        Futures.addCallback(future, new FutureCallback<List<FilteredBlock>>() {
+            @Override
+            public void onSuccess(final List<FilteredBlock> blocks) {
+                onBatchReceived(source, start, requested, blocks);
+            }
+
+            @Override
+            public void onFailure(final Throwable x) {
+                log.info("{} failed to deliver blocks {}-{}: {}", state.name, start, end - 1, x.toString());
+                onBatchFailed(source, start);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private synchronized void onBatchReceived(final BlockSource source, final int start,
+            final List<Sha256Hash> requested, final List<FilteredBlock> blocks) {
+        final SourceState state = sources.get(source);
+        state.inFlight = -1;
+        state.busyMs += System.currentTimeMillis() - state.requestedAt;
+        if (result.isDone())
+            return;
+
+        final Map<Sha256Hash, Integer> indexes = new HashMap<Sha256Hash, Integer>(requested.size());
+        for (int i = 0; i < requested.size(); i++)
+            indexes.put(requested.get(i), start + i);
+        int numDelivered = 0;
+        for (final FilteredBlock block : blocks) {
+            final Integer index = indexes.get(block.getHash());
+            if (index != null) {
+                numDelivered++;
+                if (index >= nextToApply && buffer[index] == null) {
+                    buffer[index] = block;
+                    bufferSources[index] = source;
+                    state.blocks++;
+                }
+            }
+        }
+        if (numDelivered > 0) {
+            state.batches++;
+            state.consecutiveFailures = 0;
+        } else {
+            failed(state);
+        }
+
+        // anything still missing needs to be requested again
+        for (int i = Math.max(start, nextToApply); i < start + requested.size(); i++) {
+            if (buffer[i] == null) {
+                requeue(start);
+                break;
+            }
+        }
+
+        drain();
+        assignAll();
+        checkSourcesLeft();
+    }
+
+    private synchronized void onBatchFailed(final BlockSource source, final int start) {
+        final SourceState state = sources.get(source);
+        state.inFlight = -1;
+        state.busyMs += System.currentTimeMillis() - state.requestedAt;
+        if (result.isDone())
+            return;
+
+        failed(state);
+        requeue(start);
+        assignAll();
+        checkSourcesLeft();
+    }
+
+    private void drain() {
+        try {
+            while (nextToApply < buffer.length && buffer[nextToApply] != null) {
+                sink.add(buffer[nextToApply], bufferSources[nextToApply], buffer.length - nextToApply - 1);
+                buffer[nextToApply] = null;
+                bufferSources[nextToApply] = null;
+                nextToApply++;
+            }
+        } catch (final Exception x) {
+            log.warn("cannot add block " + nextToApply + ", giving up", x);
+            result.setException(x);
+            return;
+        }
+
+        if (nextToApply == buffer.length) {
+            log.info("downloaded {} blocks: {}", buffer.length, getContributions());
+            result.set(null);
+        }
+    }
+
+    private void requeue(final int start) {
+        if (start + batchSize <= nextToApply || unassigned.contains(start) || inFlightCount(start) > 0)
+            return;
+        // keep the queue in chain order, so that the blocks needed first are requested first
+        final Deque<Integer> sorted = new ArrayDeque<Integer>(unassigned.size() + 1);
+        while (!unassigned.isEmpty() && unassigned.peekFirst() < start)
+            sorted.add(unassigned.pollFirst());
+        sorted.add(start);
+        sorted.addAll(unassigned);
+        unassigned.clear();
+        unassigned.addAll(sorted);
+    }
+
+    private void failed(final SourceState state) {
+        state.failures++;
+        state.consecutiveFailures++;
+        if (state.consecutiveFailures >= MAX_FAILURES && !state.dropped) {
+            log.info("dropping {} after {} failures in a row", state.name, state.consecutiveFailures);
+            state.dropped = true;
+        }
+    }
+
+    private void checkSourcesLeft() {
+        if (result.isDone())
+            return;
+        for (final SourceState state : sources.values())
+            if (!state.dropped || state.inFlight >= 0)
+                return;
+        result.setException(new IOException("all sources failed, " + nextToApply + " of " + buffer.length
+                + " blocks applied"));
+    }
+
+    private int inFlightCount(final int start) {
+        int count = 0;
+        for (final SourceState state : sources.values())
+            if (state.inFlight == start)
+                count++;
+        return count;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.GetDataMessage;
+import org.bitcoinj.core.GetHeadersMessage;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.utils.Threading;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.schildbach.wallet.Constants;
+
+/**
+ * Fetches headers and filtered blocks from a connected peer, next to whatever the peer group does with it.
+ *
+ * <p>
+ * Filtered blocks are requested with a {@code getdata}, followed by a ping. Peers answer in order, so by the time the
+ * pong arrives, all blocks and their matched transactions have been received. Messages are looked at before the
+ * {@link Peer} handles them, which it still does as usual, except for the headers requested here.
+ *
+ * @author Andreas Schildbach
+ */
+final class PeerBlockSource
+        implements ParallelBlockDownload.BlockSource, PreMessageReceivedEventListener, PeerDisconnectedEventListener {
+    private final Peer peer;
+
+    // guarded by this
+    private List<FilteredBlock> receivedBlocks = null;
+    private FilteredBlock currentBlock = null;
+    private SettableFuture<List<FilteredBlock>> pendingBlocks = null;
+    private SettableFuture<List<Block>> pendingHeaders = null;
+    private Sha256Hash pendingHeadersAfter = null;
+
+    public PeerBlockSource(final Peer peer) {
+        this.peer = peer;
+        peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, this);
+        peer.addDisconnectedEventListener(Threading.SAME_THREAD, this);
+    }
+
+    public void close() {
+        peer.removePreMessageReceivedEventListener(this);
+        peer.removeDisconnectedEventListener(this);
+        onPeerDisconnected(peer, 0);
+    }
+
+    public Peer getPeer() {
+        return peer;
+    }
+
+    /** @return up to 2000 headers following the given locator */
+    public synchronized ListenableFuture<List<Block>> getHeaders(final List<Sha256Hash> locator) {
+        if (pendingHeaders != null)
+            return Futures.immediateFailedFuture(new IllegalStateException("headers already requested"));
+        pendingHeaders = SettableFuture.create();
+        pendingHeadersAfter = locator.get(0);
+        final ListenableFuture<List<Block>> future = pendingHeaders;
+        peer.sendMessage(new GetHeadersMessage(Constants.NETWORK_PARAMETERS, locator, Sha256Hash.ZERO_HASH));
+        return future;
+    }
+
+    @Override
+    public synchronized ListenableFuture<List<FilteredBlock>> getFilteredBlocks(final List<Sha256Hash> blockHashes) {
+        if (pendingBlocks != null)
+            return Futures.immediateFailedFuture(new IllegalStateException("blocks already requested"));
+
+        final GetDataMessage getdata = new GetDataMessage(Constants.NETWORK_PARAMETERS);
+        for (final Sha256Hash hash : blockHashes)
+            getdata.addFilteredBlock(hash);
+        final ListenableFuture<Long> pong;
+        try {
+            receivedBlocks = new ArrayList<FilteredBlock>(blockHashes.size());
+            peer.sendMessage(getdata);
+            pong = peer.ping();
+        } catch (final Exception x) {
+            receivedBlocks = null;
+            return Futures.immediateFailedFuture(x);
+        }
+        pendingBlocks = SettableFuture.create();
+        final ListenableFuture<List<FilteredBlock>> future = pendingBlocks;
+
+        Futures.addCallback(pong, new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(final Long pingTime) {
+                completeBlocks(null);
+            }
+
+            @Override
+            public void onFailure(final Throwable x) {
+                completeBlocks(x);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /** Waits until the filtered blocks requested last have arrived, or failed to. */
+    public void awaitBlocks(final long timeout, final TimeUnit unit) {
+        final ListenableFuture<List<FilteredBlock>> future;
+        synchronized (this) {
+            future = pendingBlocks;
+        }
+        if (future == null)
+            return;
+        try {
+            future.get(timeout, unit);
+        } catch (final Exception x) {
+            // done waiting either way
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(final Peer peer, final int peerCount) {
+        final IOException x = new IOException("disconnected: " + peer);
+        synchronized (this) {
+            if (pendingHeaders != null) {
+                pendingHeaders.setException(x);
+                pendingHeaders = null;
+            }
+        }
+        completeBlocks(x);
+    }
+
+    @Override
+    public synchronized Message onPreMessageReceived(final Peer peer, final Message m) {
+        if (m instanceof HeadersMessage) {
+            final List<Block> headers = ((HeadersMessage) m).getBlockHeaders();
+            if (pendingHeaders != null
+                    && (headers.isEmpty() || headers.get(0).getPrevBlockHash().equals(pendingHeadersAfter))) {
+                pendingHeaders.set(headers);
+                pendingHeaders = null;
+                // the peer didn't ask for these headers, and fails on headers it didn't ask for
+                return null;
+            }
+        } else if (receivedBlocks != null) {
+            if (m instanceof FilteredBlock) {
+                finishBlock();
+                currentBlock = (FilteredBlock) m;
+            } else if (m instanceof Transaction && currentBlock != null
+                    && currentBlock.provideTransaction((Transaction) m)) {
+                // matched transaction of the current block
+            } else {
+                finishBlock();
+            }
+        }
+        return m;
+    }
+
+    private void finishBlock() {
+        if (currentBlock != null) {
+            receivedBlocks.add(currentBlock);
+            currentBlock = null;
+        }
+    }
+
+    private void completeBlocks(@Nullable final Throwable failure) {
+        final SettableFuture<List<FilteredBlock>> future;
+        final List<FilteredBlock> blocks;
+        synchronized (this) {
+            if (pendingBlocks == null)
+                return;
+            finishBlock();
+            future = pendingBlocks;
+            blocks = receivedBlocks;
+            pendingBlocks = null;
+            receivedBlocks = null;
+        }
+        // outside of the lock, as listeners might request more blocks from other sources
+        if (failure == null)
+            future.set(blocks);
+        else
+            future.setException(failure);
+    }
+}
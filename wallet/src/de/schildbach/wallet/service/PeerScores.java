@@ -0,0 +1,375 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.net.InetAddresses;
+
+/**
+ * Keeps track of how well peers performed, so that connections can be made to fast peers first. Also serves as a cache
+ * of peer addresses learned from DNS seeds and {@code addr} messages, so that a warm start doesn't need to wait for
+ * DNS.
+ *
+ * <p>
+ * Per address, handshake latency, ping time and block download throughput are smoothed with an exponentially weighted
+ * moving average. Failed connection attempts count against a peer until it connects successfully again. From that, a
+ * cost in milliseconds is derived; lower is better. Peers that have never been seen get a neutral cost, so they rank
+ * behind peers known to be fast but ahead of peers known to be slow or unreachable.
+ *
+ * @author Andreas Schildbach
+ */
+public final class PeerScores {
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final long UNKNOWN_COST_MS = 1000;
+    private static final long FAILURE_PENALTY_MS = 5000;
+    /** download speed in blocks per second that halves the cost of a peer */
+    private static final double THROUGHPUT_SCALE = 100;
+    private static final int MIN_BLOCKS_FOR_THROUGHPUT = 10;
+    private static final int MAX_ENTRIES = 500;
+    private static final int MAX_FAILURES = 3;
+    private static final long MAX_AGE_MS = 14 * 24 * 60 * 60 * 1000L;
+    /** so a single peer can't fill the cache with addresses of its choosing */
+    private static final int MAX_LEARNED_PER_PEER = 32;
+
+    private final File file;
+    private final Map<InetSocketAddress, Score> scores = new HashMap<InetSocketAddress, Score>();
+    private final Map<InetAddress, Integer> learnedPerPeer = new HashMap<InetAddress, Integer>();
+
+    private static final Logger log = LoggerFactory.getLogger(PeerScores.class);
+
+    private static final class Score {
+        public double handshakeMs = -1;
+        public double pingMs = -1;
+        public double blocksPerSecond = -1;
+        public int failures = 0;
+        public long lastSeen = 0;
+        public long learnedAt = 0;
+        public boolean fromSeed = false;
+
+        // current connection, not persisted
+        public long connectingAt = 0;
+        public boolean connected = false;
+        public int sessionBlocks = 0;
+        public long firstBlockAt = 0;
+        public long lastBlockAt = 0;
+
+        public long lastHeardOf() {
+            return Math.max(lastSeen, learnedAt);
+        }
+
+        public long cost() {
+            double cost = (handshakeMs >= 0 ? handshakeMs : UNKNOWN_COST_MS / 2)
+                    + (pingMs >= 0 ? pingMs : UNKNOWN_COST_MS / 2);
+            if (blocksPerSecond > 0)
+                cost /= 1 + blocksPerSecond / THROUGHPUT_SCALE;
+            return (long) cost + failures * FAILURE_PENALTY_MS;
+        }
+    }
+
+    public PeerScores(final File file) {
+        this.file = file;
+        load();
+    }
+
+    public synchronized void onConnecting(final InetSocketAddress address) {
+        if (address.getAddress() == null)
+            return;
+        final Score score = getOrCreate(address);
+        score.connectingAt = System.currentTimeMillis();
+        score.connected = false;
+    }
+
+    public synchronized void onConnected(final InetSocketAddress address) {
+        final Score score = scores.get(address);
+        if (score == null)
+            return;
+        final long now = System.currentTimeMillis();
+        if (score.connectingAt > 0)
+            score.handshakeMs = ewma(score.handshakeMs, now - score.connectingAt);
+        score.connected = true;
+        score.failures = 0;
+        score.lastSeen = now;
+        score.sessionBlocks = 0;
+    }
+
+    public synchronized void onPing(final InetSocketAddress address, final long pingMs) {
+        final Score score = scores.get(address);
+        if (score == null || pingMs < 0 || pingMs == Long.MAX_VALUE)
+            return;
+        score.pingMs = ewma(score.pingMs, pingMs);
+        score.lastSeen = System.currentTimeMillis();
+        updateThroughput(score);
+    }
+
+    public synchronized void onBlockDownloaded(final InetSocketAddress address) {
+        final Score score = scores.get(address);
+        if (score == null)
+            return;
+        final long now = System.currentTimeMillis();
+        if (score.sessionBlocks++ == 0)
+            score.firstBlockAt = now;
+        score.lastBlockAt = now;
+    }
+
+    public synchronized void onDisconnected(final InetSocketAddress address, final long lastPingMs) {
+        final Score score = scores.get(address);
+        if (score == null)
+            return;
+        if (score.connected) {
+            onPing(address, lastPingMs);
+        } else if (score.connectingAt > 0) {
+            score.failures++;
+            log.debug("connection to {} failed, {} failures in a row", address, score.failures);
+        }
+        score.connectingAt = 0;
+        score.connected = false;
+        score.sessionBlocks = 0;
+    }
+
+    /** Remembers addresses from DNS seeds, so they can be tried without asking DNS. */
+    public synchronized void learnedFromSeeds(final Collection<InetSocketAddress> addresses) {
+        final long now = System.currentTimeMillis();
+        for (final InetSocketAddress address : addresses) {
+            if (address.getAddress() != null) {
+                final Score score = getOrCreate(address);
+                score.learnedAt = now;
+                score.fromSeed = true;
+            }
+        }
+    }
+
+    /**
+     * Remembers addresses from an {@code addr} message of the given peer. Only the first few addresses of each peer
+     * are taken.
+     */
+    public synchronized void learnedFromPeer(final InetSocketAddress peer,
+            final Collection<InetSocketAddress> addresses) {
+        final Integer learned = learnedPerPeer.get(peer.getAddress());
+        int numLearned = learned != null ? learned : 0;
+        final long now = System.currentTimeMillis();
+        for (final InetSocketAddress address : addresses) {
+            if (numLearned >= MAX_LEARNED_PER_PEER) {
+                log.debug("ignoring further addresses from {}", peer);
+                break;
+            }
+            if (address.getAddress() != null) {
+                getOrCreate(address).learnedAt = now;
+                numLearned++;
+            }
+        }
+        learnedPerPeer.put(peer.getAddress(), numLearned);
+    }
+
+    /**
+     * @return up to the given number of known addresses worth trying, best first; addresses that failed repeatedly or
+     *         haven't been heard of for two weeks are left out. Addresses from DNS seeds and from elsewhere take turns,
+     *         so that peers advertising addresses can't crowd out the seeds.
+     */
+    public synchronized List<InetSocketAddress> candidates(final int maxPeers) {
+        final long minTime = System.currentTimeMillis() - MAX_AGE_MS;
+        final List<InetSocketAddress> fromSeeds = new ArrayList<InetSocketAddress>();
+        final List<InetSocketAddress> fromElsewhere = new ArrayList<InetSocketAddress>();
+        for (final Map.Entry<InetSocketAddress, Score> entry : scores.entrySet()) {
+            final Score score = entry.getValue();
+            if (score.failures < MAX_FAILURES && score.lastHeardOf() > minTime)
+                (score.fromSeed ? fromSeeds : fromElsewhere).add(entry.getKey());
+        }
+
+        final Iterator<InetSocketAddress> seeds = sortBestFirst(fromSeeds).iterator();
+        final Iterator<InetSocketAddress> others = sortBestFirst(fromElsewhere).iterator();
+        final List<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+        InetSocketAddress seed = seeds.hasNext() ? seeds.next() : null;
+        InetSocketAddress other = others.hasNext() ? others.next() : null;
+        boolean seedsTurn = seed != null && (other == null || cost(seed) <= cost(other));
+        while (candidates.size() < maxPeers && (seed != null || other != null)) {
+            if (seed != null && (seedsTurn || other == null)) {
+                candidates.add(seed);
+                seed = seeds.hasNext() ? seeds.next() : null;
+            } else {
+                candidates.add(other);
+                other = others.hasNext() ? others.next() : null;
+            }
+            seedsTurn = !seedsTurn;
+        }
+        return candidates;
+    }
+
+    /** @return cost of connecting to the given peer in milliseconds, lower is better */
+    public synchronized long cost(final InetSocketAddress address) {
+        final Score score = scores.get(address);
+        return score != null ? score.cost() : UNKNOWN_COST_MS;
+    }
+
+    /** @return the given addresses, ordered by ascending cost */
+    public synchronized List<InetSocketAddress> sortBestFirst(final Collection<InetSocketAddress> addresses) {
+        final List<InetSocketAddress> sorted = new ArrayList<InetSocketAddress>(addresses);
+        final Map<InetSocketAddress, Long> costs = new HashMap<InetSocketAddress, Long>();
+        for (final InetSocketAddress address : sorted)
+            costs.put(address, cost(address));
+        // stable, so equally unknown peers keep the order of discovery
+        Collections.sort(sorted, new Comparator<InetSocketAddress>() {
+            @Override
+            public int compare(final InetSocketAddress lhs, final InetSocketAddress rhs) {
+                return costs.get(lhs).compareTo(costs.get(rhs));
+            }
+        });
+        return sorted;
+    }
+
+    /** @return up to the given number of known peers that are cheaper than an unknown peer, best first */
+    public synchronized List<InetSocketAddress> best(final int maxPeers) {
+        final List<InetSocketAddress> good = new ArrayList<InetSocketAddress>();
+        for (final Map.Entry<InetSocketAddress, Score> entry : scores.entrySet())
+            if (entry.getValue().lastSeen > 0 && entry.getValue().cost() < UNKNOWN_COST_MS)
+                good.add(entry.getKey());
+        final List<InetSocketAddress> sorted = sortBestFirst(good);
+        return sorted.subList(0, Math.min(maxPeers, sorted.size()));
+    }
+
+    public synchronized void save() {
+        prune();
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tempFile), Charsets.UTF_8);
+            for (final Map.Entry<InetSocketAddress, Score> entry : scores.entrySet()) {
+                final InetSocketAddress address = entry.getKey();
+                final Score score = entry.getValue();
+                writer.write(InetAddresses.toAddrString(address.getAddress()) + ' ' + address.getPort() + ' '
+                        + Math.round(score.handshakeMs) + ' ' + Math.round(score.pingMs) + ' '
+                        + score.blocksPerSecond + ' ' + score.failures + ' ' + score.lastSeen + ' '
+                        + score.learnedAt + ' ' + score.fromSeed + '\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(file))
+                throw new IOException("cannot rename " + tempFile + " to " + file);
+            log.info("saved {} peer scores to '{}'", scores.size(), file);
+        } catch (final IOException x) {
+            log.warn("problem saving peer scores", x);
+            tempFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    private void load() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    final Iterator<String> i = Splitter.on(' ').split(line).iterator();
+                    final InetAddress address = InetAddresses.forString(i.next());
+                    final Score score = new Score();
+                    final int port = Integer.parseInt(i.next());
+                    score.handshakeMs = Double.parseDouble(i.next());
+                    score.pingMs = Double.parseDouble(i.next());
+                    score.blocksPerSecond = Double.parseDouble(i.next());
+                    score.failures = Integer.parseInt(i.next());
+                    score.lastSeen = Long.parseLong(i.next());
+                    score.learnedAt = i.hasNext() ? Long.parseLong(i.next()) : 0;
+                    score.fromSeed = i.hasNext() && Boolean.parseBoolean(i.next());
+                    scores.put(new InetSocketAddress(address, port), score);
+                } catch (final RuntimeException x) {
+                    log.info("cannot parse peer score, skipping: '{}'", line);
+                }
+            }
+            log.info("loaded {} peer scores from '{}'", scores.size(), file);
+        } catch (final FileNotFoundException x) {
+            // nothing learned yet
+        } catch (final IOException x) {
+            log.warn("problem loading peer scores", x);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    private Score getOrCreate(final InetSocketAddress address) {
+        Score score = scores.get(address);
+        if (score == null) {
+            score = new Score();
+            scores.put(address, score);
+        }
+        return score;
+    }
+
+    private void updateThroughput(final Score score) {
+        final long durationMs = score.lastBlockAt - score.firstBlockAt;
+        if (score.sessionBlocks >= MIN_BLOCKS_FOR_THROUGHPUT && durationMs > 0)
+            score.blocksPerSecond = ewma(score.blocksPerSecond, score.sessionBlocks * 1000.0 / durationMs);
+    }
+
+    /** Drops the peers that haven't been seen or heard of for the longest time. */
+    private void prune() {
+        if (scores.size() <= MAX_ENTRIES)
+            return;
+        final List<Map.Entry<InetSocketAddress, Score>> entries = new ArrayList<Map.Entry<InetSocketAddress, Score>>(
+                scores.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<InetSocketAddress, Score>>() {
+            @Override
+            public int compare(final Map.Entry<InetSocketAddress, Score> lhs,
+                    final Map.Entry<InetSocketAddress, Score> rhs) {
+                return Long.valueOf(rhs.getValue().lastHeardOf()).compareTo(lhs.getValue().lastHeardOf());
+            }
+        });
+        for (final Map.Entry<InetSocketAddress, Score> entry : entries.subList(MAX_ENTRIES, entries.size()))
+            scores.remove(entry.getKey());
+    }
+
+    private static double ewma(final double average, final double sample) {
+        return average < 0 ? sample : average + EWMA_WEIGHT * (sample - average);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+
+import android.text.format.DateUtils;
+
+/**
+ * Decides when the blockchain should be synced next, based on the past activity of the wallet.
+ *
+ * <p>
+ * Received transactions are counted per hour of the day, with older observations decaying away. From that, an expected
+ * rate of incoming payments is derived for each of the upcoming hours. The next sync is scheduled as soon as half a
+ * payment is expected to have arrived, which bounds the notification latency where payments are likely and saves
+ * wakeups where they aren't. The result is clamped between a lower bound, derived from how long syncs take, and an
+ * upper bound given by the caller.
+ *
+ * @author Andreas Schildbach
+ */
+public final class SyncScheduler {
+    private static final double PAYMENTS_PER_SYNC = 0.5;
+    private static final long DECAY_HALF_LIFE_MS = 14 * DateUtils.DAY_IN_MILLIS;
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final long MIN_INTERVAL_MS = 15 * DateUtils.MINUTE_IN_MILLIS;
+    /** minimum interval, in multiples of the time a sync takes */
+    private static final int MIN_INTERVAL_SYNC_DURATIONS = 4;
+
+    private final File file;
+    private final TimeZone timeZone;
+    private final double[] hourlyTransactions = new double[24];
+    private long firstObservation = 0;
+    private long lastDecay = 0;
+    private double syncDurationMs = -1;
+    private double blocksPerSync = -1;
+
+    private static final Logger log = LoggerFactory.getLogger(SyncScheduler.class);
+
+    public SyncScheduler(final File file) {
+        this(file, TimeZone.getDefault());
+    }
+
+    public SyncScheduler(final File file, final TimeZone timeZone) {
+        this.file = file;
+        this.timeZone = timeZone;
+        load();
+    }
+
+    public synchronized void onTransactionReceived(final long time) {
+        decay(time);
+        hourlyTransactions[hourOfDay(time)]++;
+        if (firstObservation == 0 || time < firstObservation)
+            firstObservation = time;
+    }
+
+    public synchronized void onSynced(final long time, final long durationMs, final int blocks) {
+        decay(time);
+        if (firstObservation == 0)
+            firstObservation = time;
+        syncDurationMs = syncDurationMs < 0 ? durationMs
+                : EWMA_WEIGHT * durationMs + (1 - EWMA_WEIGHT) * syncDurationMs;
+        blocksPerSync = blocksPerSync < 0 ? blocks : EWMA_WEIGHT * blocks + (1 - EWMA_WEIGHT) * blocksPerSync;
+    }
+
+    /** @return expected number of received transactions in the given hour of the day */
+    public synchronized double transactionsPerHour(final int hourOfDay) {
+        if (firstObservation == 0)
+            return 0;
+        // decaying counts remember about half-life / ln(2) worth of days
+        final double memoryDays = DECAY_HALF_LIFE_MS / Math.log(2) / DateUtils.DAY_IN_MILLIS;
+        final double observedDays = Math.max(1,
+                Math.min(memoryDays, (double) (lastDecay - firstObservation) / DateUtils.DAY_IN_MILLIS));
+        return hourlyTransactions[hourOfDay] / observedDays;
+    }
+
+    /** @return expected duration of syncing the given number of blocks, or -1 if not known yet */
+    public synchronized long estimateSyncDurationMs(final int numBlocks) {
+        if (syncDurationMs < 0 || blocksPerSync <= 0)
+            return -1;
+        return (long) (syncDurationMs / blocksPerSync * numBlocks);
+    }
+
+    /** @return milliseconds from now until the next sync */
+    public synchronized long nextSyncDelay(final long now, final long maxIntervalMs) {
+        final long minIntervalMs = Math.min(maxIntervalMs,
+                Math.max(MIN_INTERVAL_MS, (long) (MIN_INTERVAL_SYNC_DURATIONS * syncDurationMs)));
+
+        final Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(now);
+        final long limit = now + maxIntervalMs;
+        double expected = 0;
+        long delay = maxIntervalMs;
+        for (long t = now; t < limit;) {
+            final int hour = calendar.get(Calendar.HOUR_OF_DAY);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+            final long end = Math.min(calendar.getTimeInMillis(), limit);
+            final double rate = transactionsPerHour(hour) / DateUtils.HOUR_IN_MILLIS;
+            if (rate > 0 && expected + rate * (end - t) >= PAYMENTS_PER_SYNC) {
+                delay = t + (long) ((PAYMENTS_PER_SYNC - expected) / rate) - now;
+                break;
+            }
+            expected += rate * (end - t);
+            t = end;
+        }
+        delay = Math.max(minIntervalMs, Math.min(maxIntervalMs, delay));
+
+        log.info(
+                "next sync in {} minutes: expecting {} transactions until then, bounds {}-{} minutes, "
+                        + "syncs take {} seconds for {} blocks, transactions per hour of day: {}",
+                delay / DateUtils.MINUTE_IN_MILLIS,
+                String.format(Locale.US, "%.2f", Math.min(expected, PAYMENTS_PER_SYNC)),
+                minIntervalMs / DateUtils.MINUTE_IN_MILLIS, maxIntervalMs / DateUtils.MINUTE_IN_MILLIS,
+                Math.round(syncDurationMs / DateUtils.SECOND_IN_MILLIS), Math.round(blocksPerSync),
+                hourlyRates());
+        return delay;
+    }
+
+    public synchronized void save() {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tempFile), Charsets.UTF_8);
+            writer.write(Long.toString(firstObservation) + ' ' + lastDecay + ' ' + syncDurationMs + ' '
+                    + blocksPerSync);
+            for (final double transactions : hourlyTransactions)
+                writer.write(" " + transactions);
+            writer.write('\n');
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(file))
+                throw new IOException("cannot rename " + tempFile + " to " + file);
+        } catch (final IOException x) {
+            log.warn("problem saving sync history", x);
+            tempFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    private void load() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+            final String line = reader.readLine();
+            if (line != null) {
+                try {
+                    final Iterator<String> i = Splitter.on(' ').split(line).iterator();
+                    final long firstObservation = Long.parseLong(i.next());
+                    final long lastDecay = Long.parseLong(i.next());
+                    final double syncDurationMs = Double.parseDouble(i.next());
+                    final double blocksPerSync = Double.parseDouble(i.next());
+                    final double[] hourlyTransactions = new double[24];
+                    for (int hour = 0; hour < 24; hour++)
+                        hourlyTransactions[hour] = Double.parseDouble(i.next());
+
+                    this.firstObservation = firstObservation;
+                    this.lastDecay = lastDecay;
+                    this.syncDurationMs = syncDurationMs;
+                    this.blocksPerSync = blocksPerSync;
+                    System.arraycopy(hourlyTransactions, 0, this.hourlyTransactions, 0, 24);
+                } catch (final RuntimeException x) {
+                    log.info("cannot parse sync history, starting over: '{}'", line);
+                }
+            }
+        } catch (final FileNotFoundException x) {
+            // nothing learned yet
+        } catch (final IOException x) {
+            log.warn("problem loading sync history", x);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    private void decay(final long now) {
+        if (lastDecay > 0 && now > lastDecay) {
+            final double factor = Math.pow(0.5, (double) (now - lastDecay) / DECAY_HALF_LIFE_MS);
+            for (int hour = 0; hour < 24; hour++)
+                hourlyTransactions[hour] *= factor;
+        }
+        if (now > lastDecay)
+            lastDecay = now;
+    }
+
+    private int hourOfDay(final long time) {
+        final Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(time);
+        return calendar.get(Calendar.HOUR_OF_DAY);
+    }
+
+    private String hourlyRates() {
+        final StringBuilder builder = new StringBuilder();
+        for (int hour = 0; hour < 24; hour++)
+            builder.append(hour == 0 ? "" : " ")
+                    .append(String.format(Locale.US, "%.2f", transactionsPerHour(hour)));
+        return builder.toString();
+    }
+}
@@ -80,6 +80,7 @@ public final class UpgradeWalletService extends IntentService {
             log.info("detected non-HD wallet, upgrading");
 
             // upgrade wallet to HD
+            application.initMnemonicCode();
             wallet.upgradeToDeterministic(null);
 
             // let other service pre-generate look-ahead keys
@@ -91,6 +92,7 @@ public final class UpgradeWalletService extends IntentService {
 
     private void maybeUpgradeToSecureChain(final Wallet wallet) {
         try {
+            application.initMnemonicCode();
             wallet.doMaintenance(null, false);
 
             // let other service pre-generate look-ahead keys
@@ -19,6 +19,7 @@ package de.schildbach.wallet.ui;
 
 import javax.annotation.Nullable;
 
+import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
 
@@ -47,20 +48,46 @@ public abstract class AbstractBindServiceActivity extends AbstractWalletActivity
         }
     };
 
+    private boolean resumed = false;
+    private boolean bound = false;
+
     @Override
     protected void onResume() {
         super.onResume();
 
-        bindService(new Intent(this, BlockchainServiceImpl.class), serviceConnection, Context.BIND_AUTO_CREATE);
+        resumed = true;
+
+        // the service needs the wallet, so don't let it block the main thread while the wallet is still loading
+        final WalletApplication application = getWalletApplication();
+        if (application.isWalletLoaded())
+            bindBlockchainService();
+        else
+            application.runWhenWalletLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    if (resumed && !bound)
+                        bindBlockchainService();
+                }
+            });
     }
 
     @Override
     protected void onPause() {
-        unbindService(serviceConnection);
+        resumed = false;
+
+        if (bound) {
+            unbindService(serviceConnection);
+            bound = false;
+        }
 
         super.onPause();
     }
 
+    private void bindBlockchainService() {
+        bindService(new Intent(this, BlockchainServiceImpl.class), serviceConnection, Context.BIND_AUTO_CREATE);
+        bound = true;
+    }
+
     public BlockchainService getBlockchainService() {
         return blockchainService;
     }
@@ -35,6 +35,8 @@ import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.BlockchainState;
+import de.schildbach.wallet.service.BlockchainStateHolder;
 import de.schildbach.wallet_test.R;
 
 import android.app.Activity;
@@ -52,7 +54,6 @@ import android.content.ServiceConnection;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -212,13 +213,14 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
     };
 
     private static class BlockLoader extends AsyncTaskLoader<List<StoredBlock>> {
-        private LocalBroadcastManager broadcastManager;
+        private BlockchainStateHolder blockchainStateHolder;
         private BlockchainService service;
 
         private BlockLoader(final Context context, final BlockchainService service) {
             super(context);
 
-            this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
+            this.blockchainStateHolder = ((WalletApplication) context.getApplicationContext())
+                    .getBlockchainStateHolder();
             this.service = service;
         }
 
@@ -226,15 +228,14 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
         protected void onStartLoading() {
             super.onStartLoading();
 
-            broadcastManager.registerReceiver(broadcastReceiver,
-                    new IntentFilter(BlockchainService.ACTION_BLOCKCHAIN_STATE));
+            blockchainStateHolder.addObserver(blockchainStateObserver);
 
             forceLoad();
         }
 
         @Override
         protected void onStopLoading() {
-            broadcastManager.unregisterReceiver(broadcastReceiver);
+            blockchainStateHolder.removeObserver(blockchainStateObserver);
 
             super.onStopLoading();
         }
@@ -244,9 +245,9 @@ public final class BlockListFragment extends Fragment implements BlockListAdapte
             return service.getRecentBlocks(MAX_BLOCKS);
         }
 
-        private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
+        private final BlockchainStateHolder.Observer blockchainStateObserver = new BlockchainStateHolder.Observer() {
             @Override
-            public void onReceive(final Context context, final Intent intent) {
+            public void onBlockchainStateChanged(final BlockchainState blockchainState) {
                 try {
                     forceLoad();
                 } catch (final RejectedExecutionException x) {
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.util.ActivityHistory;
 import de.schildbach.wallet_test.R;
 
 import android.app.Activity;
@@ -68,6 +69,7 @@ public final class PeerListFragment extends Fragment {
 
     private BlockchainService service;
 
+    private TextView activityView;
     private ViewAnimator viewGroup;
     private RecyclerView recyclerView;
     private PeerViewAdapter adapter;
@@ -75,6 +77,7 @@ public final class PeerListFragment extends Fragment {
     private final Handler handler = new Handler();
 
     private static final long REFRESH_MS = DateUtils.SECOND_IN_MILLIS;
+    private static final int ACTIVITY_AVERAGE_MIN = 5;
 
     private static final int ID_PEER_LOADER = 0;
     private static final int ID_REVERSE_DNS_LOADER = 1;
@@ -111,6 +114,7 @@ public final class PeerListFragment extends Fragment {
             final Bundle savedInstanceState) {
         final View view = inflater.inflate(R.layout.peer_list_fragment, container, false);
 
+        activityView = (TextView) view.findViewById(R.id.peer_list_activity);
         viewGroup = (ViewAnimator) view.findViewById(R.id.peer_list_group);
 
         recyclerView = (RecyclerView) view.findViewById(R.id.peer_list);
@@ -129,6 +133,7 @@ public final class PeerListFragment extends Fragment {
             @Override
             public void run() {
                 adapter.notifyDataSetChanged();
+                updateActivity();
 
                 final Loader<String> loader = loaderManager.getLoader(ID_REVERSE_DNS_LOADER);
                 final boolean loaderRunning = loader != null && loader.isStarted();
@@ -154,6 +159,18 @@ public final class PeerListFragment extends Fragment {
         }, REFRESH_MS);
     }
 
+    private void updateActivity() {
+        final ActivityHistory history = service != null ? service.getActivityHistory() : null;
+        if (history != null && history.size() > 0) {
+            activityView.setVisibility(View.VISIBLE);
+            activityView.setText(getString(R.string.peer_list_fragment_activity, history.transactions(0),
+                    history.blocks(0), Math.min(ACTIVITY_AVERAGE_MIN, history.size()),
+                    history.averageTransactions(ACTIVITY_AVERAGE_MIN), history.averageBlocks(ACTIVITY_AVERAGE_MIN)));
+        } else {
+            activityView.setVisibility(View.GONE);
+        }
+    }
+
     @Override
     public void onPause() {
         handler.removeCallbacksAndMessages(null);
@@ -17,6 +17,7 @@
 
 package de.schildbach.wallet.ui;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import javax.annotation.Nonnull;
@@ -58,6 +59,7 @@ import android.content.Loader;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.ActionMode;
@@ -86,6 +88,11 @@ public final class SendingAddressesFragment extends FancyListFragment
     private final Handler handler = new Handler();
 
     private static final int REQUEST_CODE_SCAN = 0;
+    private static final int REQUEST_CODE_IMPORT = 1;
+    private static final int REQUEST_CODE_EXPORT = 2;
+
+    private static final String CSV_MIMETYPE = "text/csv";
+    private static final String EXPORT_FILENAME = "address-book.csv";
 
     private static final Logger log = LoggerFactory.getLogger(SendingAddressesFragment.class);
 
@@ -185,6 +192,10 @@ public final class SendingAddressesFragment extends FancyListFragment
                     dialog(activity, null, R.string.address_book_options_scan_title, messageResId, messageArgs);
                 }
             }.parse();
+        } else if (requestCode == REQUEST_CODE_IMPORT && resultCode == Activity.RESULT_OK) {
+            handleImportOrExport(intent.getData(), true);
+        } else if (requestCode == REQUEST_CODE_EXPORT && resultCode == Activity.RESULT_OK) {
+            handleImportOrExport(intent.getData(), false);
         }
     }
 
@@ -195,6 +206,10 @@ public final class SendingAddressesFragment extends FancyListFragment
         final PackageManager pm = activity.getPackageManager();
         menu.findItem(R.id.sending_addresses_options_scan).setVisible(pm.hasSystemFeature(PackageManager.FEATURE_CAMERA)
                 || pm.hasSystemFeature(PackageManager.FEATURE_CAMERA_FRONT));
+        // picking documents to read from and write to needs the storage access framework
+        final boolean storageAccessFramework = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        menu.findItem(R.id.sending_addresses_options_import).setVisible(storageAccessFramework);
+        menu.findItem(R.id.sending_addresses_options_export).setVisible(storageAccessFramework);
 
         super.onCreateOptionsMenu(menu, inflater);
     }
@@ -216,6 +231,14 @@ public final class SendingAddressesFragment extends FancyListFragment
         case R.id.sending_addresses_options_scan:
             handleScan();
             return true;
+
+        case R.id.sending_addresses_options_import:
+            handleImport();
+            return true;
+
+        case R.id.sending_addresses_options_export:
+            handleExport();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -244,6 +267,49 @@ public final class SendingAddressesFragment extends FancyListFragment
         startActivityForResult(new Intent(activity, ScanActivity.class), REQUEST_CODE_SCAN);
     }
 
+    private void handleImport() {
+        final Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/*"); // CSV files come with all sorts of text types
+        startActivityForResult(intent, REQUEST_CODE_IMPORT);
+    }
+
+    private void handleExport() {
+        final Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(CSV_MIMETYPE);
+        intent.putExtra(Intent.EXTRA_TITLE, EXPORT_FILENAME);
+        startActivityForResult(intent, REQUEST_CODE_EXPORT);
+    }
+
+    private void handleImportOrExport(final Uri uri, final boolean isImport) {
+        final Context context = activity.getApplicationContext();
+        final Toast toast = new Toast(context);
+        new Thread("addressBookCsv") {
+            @Override
+            public void run() {
+                try {
+                    final int count = isImport ? AddressBookProvider.importCsv(context, uri)
+                            : AddressBookProvider.exportCsv(context, uri);
+                    showToast(toast, isImport ? R.string.address_book_import_success
+                            : R.string.address_book_export_success, count);
+                } catch (final IOException x) {
+                    log.info("problem with address book file " + uri, x);
+                    showToast(toast, R.string.address_book_import_export_failed, x.getMessage());
+                }
+            }
+        }.start();
+    }
+
+    private void showToast(final Toast toast, final int textResId, final Object... formatArgs) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                toast.longToast(textResId, formatArgs);
+            }
+        });
+    }
+
     @Override
     public void onListItemClick(final ListView l, final View v, final int position, final long id) {
         activity.startActionMode(new ActionMode.Callback() {
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Transaction.Purpose;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Fiat;
+import org.bitcoinj.wallet.DefaultCoinSelector;
+import org.bitcoinj.wallet.Wallet;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.Formats;
+import de.schildbach.wallet.util.WalletUtils;
+
+/**
+ * Everything needed to render a transaction row, so that binding doesn't need to touch the wallet.
+ *
+ * @author Andreas Schildbach
+ */
+public final class TransactionSummary {
+    public final Sha256Hash hash;
+    public final long time;
+    public final ConfidenceType confidenceType;
+    public final int depthInBlocks;
+    public final int numBroadcastPeers;
+    public final boolean isOwn;
+    public final boolean isCoinBase;
+    public final boolean isSelectable;
+    public final boolean isPayToMany;
+    public final boolean isOptInFullRBF;
+    public final Purpose purpose;
+    public final Coin value;
+    @Nullable
+    public final Coin fee;
+    public final boolean sent;
+    public final boolean self;
+    public final boolean showFee;
+    @Nullable
+    public final Address address;
+    @Nullable
+    public final String addressLabel;
+    @Nullable
+    public final String[] memo;
+    @Nullable
+    public final Fiat fiatValue;
+
+    final int labelsGeneration;
+
+    private TransactionSummary(final Sha256Hash hash, final long time, final ConfidenceType confidenceType,
+            final int depthInBlocks, final int numBroadcastPeers, final boolean isOwn, final boolean isCoinBase,
+            final boolean isSelectable, final boolean isPayToMany, final boolean isOptInFullRBF, final Purpose purpose,
+            final Coin value, @Nullable final Coin fee, final boolean sent, final boolean self, final boolean showFee,
+            @Nullable final Address address, @Nullable final String addressLabel, @Nullable final String[] memo,
+            @Nullable final Fiat fiatValue, final int labelsGeneration) {
+        this.hash = hash;
+        this.time = time;
+        this.confidenceType = confidenceType;
+        this.depthInBlocks = depthInBlocks;
+        this.numBroadcastPeers = numBroadcastPeers;
+        this.isOwn = isOwn;
+        this.isCoinBase = isCoinBase;
+        this.isSelectable = isSelectable;
+        this.isPayToMany = isPayToMany;
+        this.isOptInFullRBF = isOptInFullRBF;
+        this.purpose = purpose;
+        this.value = value;
+        this.fee = fee;
+        this.sent = sent;
+        this.self = self;
+        this.showFee = showFee;
+        this.address = address;
+        this.addressLabel = addressLabel;
+        this.memo = memo;
+        this.fiatValue = fiatValue;
+        this.labelsGeneration = labelsGeneration;
+    }
+
+    /** Summarizes a transaction. Label resolution is left to the caller, see {@link #withAddressLabel}. */
+    public static TransactionSummary of(final Transaction tx, final Wallet wallet) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        final ConfidenceType confidenceType = confidence.getConfidenceType();
+        final Date updateTime = tx.getUpdateTime();
+        final Coin value = tx.getValue(wallet);
+        final Coin fee = tx.getFee();
+        final boolean sent = value.signum() < 0;
+        final Address address = sent ? WalletUtils.getToAddressOfSent(tx, wallet)
+                : WalletUtils.getWalletAddressOfReceived(tx, wallet);
+        final ExchangeRate exchangeRate = tx.getExchangeRate();
+
+        return new TransactionSummary(tx.getHash(), updateTime != null ? updateTime.getTime() : 0, confidenceType,
+                confidenceType == ConfidenceType.BUILDING ? confidence.getDepthInBlocks() : 0,
+                confidence.numBroadcastPeers(), confidence.getSource().equals(TransactionConfidence.Source.SELF),
+                tx.isCoinBase(), DefaultCoinSelector.isSelectable(tx), WalletUtils.isPayToManyTransaction(tx),
+                tx.isOptInFullRBF(), tx.getPurpose(), value, fee, sent, WalletUtils.isEntirelySelf(tx, wallet),
+                sent && fee != null && !fee.isZero(), address, null, Formats.sanitizeMemo(tx.getMemo()),
+                exchangeRate != null ? exchangeRate.coinToFiat(value) : null, -1);
+    }
+
+    public TransactionSummary withAddressLabel(@Nullable final String addressLabel, final int labelsGeneration) {
+        return new TransactionSummary(hash, time, confidenceType, depthInBlocks, numBroadcastPeers, isOwn, isCoinBase,
+                isSelectable, isPayToMany, isOptInFullRBF, purpose, value, fee, sent, self, showFee, address,
+                addressLabel, memo, fiatValue, labelsGeneration);
+    }
+
+    public void write(final DataOutputStream os) throws IOException {
+        os.write(hash.getBytes());
+        os.writeLong(time);
+        os.writeUTF(confidenceType.name());
+        os.writeInt(depthInBlocks);
+        os.writeInt(numBroadcastPeers);
+        os.writeBoolean(isOwn);
+        os.writeBoolean(isCoinBase);
+        os.writeBoolean(isSelectable);
+        os.writeBoolean(isPayToMany);
+        os.writeBoolean(isOptInFullRBF);
+        os.writeUTF(purpose.name());
+        os.writeLong(value.value);
+        os.writeLong(fee != null ? fee.value : -1);
+        os.writeBoolean(sent);
+        os.writeBoolean(self);
+        os.writeBoolean(showFee);
+        writeNullableUTF(os, address != null ? address.toBase58() : null);
+        writeNullableUTF(os, addressLabel);
+        writeNullableUTF(os, memo != null ? memo[0] : null);
+        writeNullableUTF(os, memo != null && memo.length >= 2 ? memo[1] : null);
+        writeNullableUTF(os, fiatValue != null ? fiatValue.currencyCode : null);
+        os.writeLong(fiatValue != null ? fiatValue.value : 0);
+    }
+
+    public static TransactionSummary read(final DataInputStream is) throws IOException {
+        final byte[] hash = new byte[Sha256Hash.LENGTH];
+        is.readFully(hash);
+        final long time = is.readLong();
+        final ConfidenceType confidenceType = ConfidenceType.valueOf(is.readUTF());
+        final int depthInBlocks = is.readInt();
+        final int numBroadcastPeers = is.readInt();
+        final boolean isOwn = is.readBoolean();
+        final boolean isCoinBase = is.readBoolean();
+        final boolean isSelectable = is.readBoolean();
+        final boolean isPayToMany = is.readBoolean();
+        final boolean isOptInFullRBF = is.readBoolean();
+        final Purpose purpose = Purpose.valueOf(is.readUTF());
+        final Coin value = Coin.valueOf(is.readLong());
+        final long fee = is.readLong();
+        final boolean sent = is.readBoolean();
+        final boolean self = is.readBoolean();
+        final boolean showFee = is.readBoolean();
+        final String address = readNullableUTF(is);
+        final String addressLabel = readNullableUTF(is);
+        final String memo0 = readNullableUTF(is);
+        final String memo1 = readNullableUTF(is);
+        final String fiatCurrencyCode = readNullableUTF(is);
+        final long fiatValue = is.readLong();
+
+        final String[] memo = memo0 == null ? null : memo1 == null ? new String[] { memo0 }
+                : new String[] { memo0, memo1 };
+        return new TransactionSummary(Sha256Hash.wrap(hash), time, confidenceType, depthInBlocks, numBroadcastPeers,
+                isOwn, isCoinBase, isSelectable, isPayToMany, isOptInFullRBF, purpose, value,
+                fee >= 0 ? Coin.valueOf(fee) : null, sent, self, showFee,
+                address != null ? Address.fromBase58(Constants.NETWORK_PARAMETERS, address) : null, addressLabel,
+                memo, fiatCurrencyCode != null ? Fiat.valueOf(fiatCurrencyCode, fiatValue) : null, -1);
+    }
+
+    private static void writeNullableUTF(final DataOutputStream os, @Nullable final String str) throws IOException {
+        os.writeBoolean(str != null);
+        if (str != null)
+            os.writeUTF(str);
+    }
+
+    private static @Nullable String readNullableUTF(final DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.data.AddressBookProvider;
+
+import android.content.Context;
+import android.util.LruCache;
+
+/**
+ * Bounded cache of {@link TransactionSummary}s, keyed by transaction hash. Entries are dropped only when their
+ * transaction changes; address book changes merely cause labels to be re-resolved on next access.
+ *
+ * <p>
+ * Computing a summary reads the wallet and resolving a label may query the address book, so the UI thread uses
+ * {@link #getWithoutResolving(Transaction)}, which leaves both to a background thread.
+ *
+ * @author Andreas Schildbach
+ */
+public final class TransactionSummaryCache {
+    public interface OnSummariesResolvedListener {
+        /** Called on a background thread after one or more summaries or labels have been resolved. */
+        void onSummariesResolved();
+    }
+
+    private final Context context;
+    private final Wallet wallet;
+    @Nullable
+    private final OnSummariesResolvedListener listener;
+    private final LruCache<Sha256Hash, TransactionSummary> cache;
+    private final AtomicInteger labelsGeneration = new AtomicInteger();
+    private final AtomicInteger invalidations = new AtomicInteger();
+    private final Set<Sha256Hash> pending = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+
+    private static final Executor executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("transactionSummaries").setDaemon(true).build());
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionSummaryCache.class);
+
+    public TransactionSummaryCache(final Context context, final Wallet wallet, final int maxSize,
+            @Nullable final OnSummariesResolvedListener listener) {
+        this.context = context;
+        this.wallet = wallet;
+        this.listener = listener;
+        this.cache = new LruCache<Sha256Hash, TransactionSummary>(maxSize);
+    }
+
+    /**
+     * Returns the summary of a transaction, computing it and resolving its label if needed. Don't call from the UI
+     * thread.
+     */
+    public TransactionSummary get(final Transaction tx) {
+        final int generation = labelsGeneration.get();
+        TransactionSummary summary = cache.get(tx.getHash());
+        if (summary == null)
+            summary = TransactionSummary.of(tx, wallet);
+        else if (summary.labelsGeneration == generation)
+            return summary;
+
+        summary = withResolvedLabel(summary, generation);
+        cache.put(summary.hash, summary);
+        return summary;
+    }
+
+    /**
+     * Returns the summary of a transaction without ever reading the wallet or querying the address book, so it's safe
+     * to call from the UI thread. If the summary isn't cached, {@code null} is returned and the summary is computed in
+     * the background. If its label is outdated or missing, the summary comes with the previous or no label, and the
+     * label is resolved in the background. Either way, the listener is told when that's done.
+     */
+    public @Nullable TransactionSummary getWithoutResolving(final Transaction tx) {
+        final TransactionSummary summary = cache.get(tx.getHash());
+        if (summary == null)
+            resolveSummaryInBackground(tx);
+        else if (summary.labelsGeneration != labelsGeneration.get())
+            resolveLabelInBackground(summary.hash);
+        return summary;
+    }
+
+    private void resolveSummaryInBackground(final Transaction tx) {
+        final Sha256Hash hash = tx.getHash();
+        if (!pending.add(hash))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean resolved;
+                try {
+                    final int invalidation = invalidations.get();
+                    final int generation = labelsGeneration.get();
+                    if (cache.get(hash) != null)
+                        return; // computed by someone else in the meantime
+                    final TransactionSummary summary = withResolvedLabel(TransactionSummary.of(tx, wallet),
+                            generation);
+                    synchronized (cache) {
+                        // don't cache a summary that was computed from outdated state
+                        resolved = invalidations.get() == invalidation && cache.get(hash) == null;
+                        if (resolved)
+                            cache.put(hash, summary);
+                    }
+                } finally {
+                    pending.remove(hash);
+                }
+                if (resolved && listener != null)
+                    listener.onSummariesResolved();
+            }
+        });
+    }
+
+    private void resolveLabelInBackground(final Sha256Hash hash) {
+        if (!pending.add(hash))
+            return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean resolved;
+                try {
+                    final int generation = labelsGeneration.get();
+                    final TransactionSummary summary = cache.get(hash);
+                    if (summary == null || summary.labelsGeneration == generation)
+                        return; // dropped or resolved by someone else in the meantime
+                    final TransactionSummary labelled = withResolvedLabel(summary, generation);
+                    synchronized (cache) {
+                        // don't resurrect a summary that was invalidated while resolving
+                        resolved = cache.get(hash) == summary;
+                        if (resolved)
+                            cache.put(hash, labelled);
+                    }
+                } finally {
+                    pending.remove(hash);
+                }
+                if (resolved && listener != null)
+                    listener.onSummariesResolved();
+            }
+        });
+    }
+
+    private TransactionSummary withResolvedLabel(final TransactionSummary summary, final int generation) {
+        return summary.withAddressLabel(summary.address != null
+                ? AddressBookProvider.resolveLabel(context, summary.address.toBase58()) : null, generation);
+    }
+
+    /** Computes summaries for the first transactions, so that they don't show up as placeholders. */
+    public void prefetch(final List<Transaction> transactions, final int count) {
+        for (final Transaction tx : transactions.subList(0, Math.min(count, transactions.size())))
+            get(tx);
+    }
+
+    public void invalidate(final Collection<Sha256Hash> hashes) {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            for (final Sha256Hash hash : hashes)
+                cache.remove(hash);
+        }
+    }
+
+    /**
+     * Drops the summaries of transactions that are still gaining confirmations. Depth changes don't cause
+     * invalidations, so call this whenever the best block changes.
+     *
+     * @return hashes of the dropped summaries
+     */
+    public Set<Sha256Hash> invalidateConfirming() {
+        final Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            for (final TransactionSummary summary : cache.snapshot().values()) {
+                final int maxDepth = summary.isCoinBase ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth()
+                        : Constants.MAX_NUM_CONFIRMATIONS;
+                if (summary.confidenceType == ConfidenceType.BUILDING && summary.depthInBlocks < maxDepth) {
+                    cache.remove(summary.hash);
+                    hashes.add(summary.hash);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            cache.evictAll();
+        }
+    }
+
+    public void invalidateLabels() {
+        labelsGeneration.incrementAndGet();
+    }
+
+    /** Writes the summaries in a compact format, replacing the file atomically. */
+    public static void writeSnapshot(final File file, final List<TransactionSummary> summaries) {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream os = null;
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            os.writeInt(SNAPSHOT_VERSION);
+            os.writeInt(summaries.size());
+            for (final TransactionSummary summary : summaries)
+                summary.write(os);
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(file))
+                throw new IOException("Cannot rename " + tempFile + " to " + file);
+            watch.stop();
+            log.info("{} transaction summaries written to '{}', took {}", summaries.size(), file, watch);
+        } catch (final IOException x) {
+            log.warn("problem writing transaction summaries", x);
+            tempFile.delete();
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+
+    public static List<TransactionSummary> readSnapshot(final File file) {
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (is.readInt() != SNAPSHOT_VERSION)
+                return Collections.emptyList();
+            final int size = is.readInt();
+            final List<TransactionSummary> summaries = new ArrayList<TransactionSummary>(size);
+            for (int i = 0; i < size; i++)
+                summaries.add(TransactionSummary.read(is));
+            return summaries;
+        } catch (final FileNotFoundException x) {
+            return Collections.emptyList();
+        } catch (final IOException x) {
+            log.warn("problem reading transaction summaries, ignoring", x);
+            return Collections.emptyList();
+        } catch (final RuntimeException x) {
+            log.warn("problem parsing transaction summaries, ignoring", x);
+            return Collections.emptyList();
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (final IOException x) {
+                    // swallow
+                }
+            }
+        }
+    }
+}
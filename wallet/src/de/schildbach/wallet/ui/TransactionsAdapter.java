@@ -19,29 +19,20 @@ package de.schildbach.wallet.ui;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import javax.annotation.Nullable;
 
-import org.bitcoinj.core.Address;
 import org.bitcoinj.core.Coin;
-import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Transaction.Purpose;
-import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
-import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.MonetaryFormat;
-import org.bitcoinj.wallet.DefaultCoinSelector;
 import org.bitcoinj.wallet.Wallet;
 
 import de.schildbach.wallet.Constants;
-import de.schildbach.wallet.data.AddressBookProvider;
 import de.schildbach.wallet.util.CircularProgressView;
-import de.schildbach.wallet.util.Formats;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -49,6 +40,9 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.os.Handler;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.RecyclerView;
 import android.text.Html;
@@ -78,6 +72,12 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     private final OnClickListener onClickListener;
 
     private final List<Transaction> transactions = new ArrayList<Transaction>();
+    // when paging, only transactions [windowOffset, windowOffset + transactions.size()) of windowTotal are loaded
+    private int windowOffset = 0;
+    private int windowTotal = 0;
+    private List<TransactionSummary> snapshot = Collections.emptyList();
+    private final TransactionSummaryCache summaryCache;
+    private final Handler handler = new Handler();
     private MonetaryFormat format;
     private Warning warning = null;
 
@@ -98,28 +98,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     private static final int VIEW_TYPE_TRANSACTION = 0;
     private static final int VIEW_TYPE_WARNING = 1;
 
-    private Map<Sha256Hash, TransactionCacheEntry> transactionCache = new HashMap<Sha256Hash, TransactionCacheEntry>();
-
-    private static class TransactionCacheEntry {
-        private final Coin value;
-        private final boolean sent;
-        private final boolean self;
-        private final boolean showFee;
-        @Nullable
-        private final Address address;
-        @Nullable
-        private final String addressLabel;
-
-        private TransactionCacheEntry(final Coin value, final boolean sent, final boolean self, final boolean showFee,
-                final @Nullable Address address, final @Nullable String addressLabel) {
-            this.value = value;
-            this.sent = sent;
-            this.self = self;
-            this.showFee = showFee;
-            this.address = address;
-            this.addressLabel = addressLabel;
-        }
-    }
+    private static final int SUMMARY_CACHE_SIZE = 500;
 
     public TransactionsAdapter(final Context context, final Wallet wallet, final boolean useCards,
             final int maxConnectedPeers, final @Nullable OnClickListener onClickListener) {
@@ -130,6 +109,15 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         this.wallet = wallet;
         this.maxConnectedPeers = maxConnectedPeers;
         this.onClickListener = onClickListener;
+        this.summaryCache = new TransactionSummaryCache(context, wallet, SUMMARY_CACHE_SIZE,
+                new TransactionSummaryCache.OnSummariesResolvedListener() {
+                    @Override
+                    public void onSummariesResolved() {
+                        // summaries tend to arrive in bursts, so rebind once per burst
+                        handler.removeCallbacks(summariesResolvedRunnable);
+                        handler.post(summariesResolvedRunnable);
+                    }
+                });
 
         final Resources res = context.getResources();
         colorBackground = res.getColor(R.color.bg_bright);
@@ -160,8 +148,15 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         notifyDataSetChanged();
     }
 
+    public TransactionSummaryCache getSummaryCache() {
+        return summaryCache;
+    }
+
     public void clear() {
         transactions.clear();
+        windowOffset = 0;
+        windowTotal = 0;
+        snapshot = Collections.emptyList();
 
         notifyDataSetChanged();
     }
@@ -169,32 +164,130 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public void replace(final Transaction tx) {
         transactions.clear();
         transactions.add(tx);
+        windowOffset = 0;
+        windowTotal = 1;
+        snapshot = Collections.emptyList();
+        summaryCache.invalidate(Collections.singleton(tx.getHash()));
 
         notifyDataSetChanged();
     }
 
     public void replace(final Collection<Transaction> transactions) {
+        replace(transactions, 0, transactions.size());
+    }
+
+    /**
+     * Replaces the contents with a window of a larger list. Rows outside of the window are bound as placeholders.
+     */
+    public void replace(final Collection<Transaction> window, final int windowOffset, final int windowTotal) {
         this.transactions.clear();
-        this.transactions.addAll(transactions);
+        this.transactions.addAll(window);
+        this.windowOffset = windowOffset;
+        this.windowTotal = windowTotal;
+        snapshot = Collections.emptyList();
 
         notifyDataSetChanged();
     }
 
+    /**
+     * Checks if the rows around the given adapter positions are loaded.
+     *
+     * @return index of the transaction to center a new window on, or -1 if the current window covers the range
+     */
+    public int windowCenter(final int firstPosition, final int lastPosition, final int margin) {
+        final int headerCount = warning != null ? 1 : 0;
+        final int first = Math.max(firstPosition - headerCount - margin, 0);
+        final int last = Math.min(lastPosition - headerCount + margin, windowTotal - 1);
+        if (first >= windowOffset && last < windowOffset + transactions.size())
+            return -1;
+        return (first + last) / 2;
+    }
+
+    /**
+     * Shows previously persisted summaries until the first real transactions arrive. Rows shown this way have no
+     * menu, as there is no transaction to act on.
+     */
+    public void replaceSnapshot(final List<TransactionSummary> snapshot) {
+        if (!transactions.isEmpty())
+            return;
+        this.snapshot = snapshot;
+
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Replaces the contents, but only notifies about the rows covered by the given diff. The diff must have been
+     * computed against the current contents.
+     */
+    public void replace(final Collection<Transaction> transactions, final DiffUtil.DiffResult diff) {
+        final boolean wasSingle = size() == 1;
+        this.transactions.clear();
+        this.transactions.addAll(transactions);
+        windowOffset = 0;
+        windowTotal = transactions.size();
+        snapshot = Collections.emptyList();
+
+        final int offset = warning != null ? 1 : 0;
+        diff.dispatchUpdatesTo(new ListUpdateCallback() {
+            @Override
+            public void onInserted(final int position, final int count) {
+                notifyItemRangeInserted(position + offset, count);
+            }
+
+            @Override
+            public void onRemoved(final int position, final int count) {
+                notifyItemRangeRemoved(position + offset, count);
+            }
+
+            @Override
+            public void onMoved(final int fromPosition, final int toPosition) {
+                notifyItemMoved(fromPosition + offset, toPosition + offset);
+            }
+
+            @Override
+            public void onChanged(final int position, final int count, final Object payload) {
+                notifyItemRangeChanged(position + offset, count, payload);
+            }
+        });
+
+        // backup warning text depends on the number of transactions
+        if (warning == Warning.BACKUP && wasSingle != (this.transactions.size() == 1))
+            notifyItemChanged(0);
+    }
+
     public void setSelectedItemId(final long itemId) {
         selectedItemId = itemId;
 
         notifyDataSetChanged();
     }
 
-    public void clearCacheAndNotifyDataSetChanged() {
-        transactionCache.clear();
+    private final Runnable summariesResolvedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            notifyItemRangeChanged(0, getItemCount());
+        }
+    };
+
+    public void invalidateLabelsAndNotifyDataSetChanged() {
+        summaryCache.invalidateLabels();
 
         notifyDataSetChanged();
     }
 
+    private int size() {
+        return snapshot.isEmpty() ? windowTotal : snapshot.size();
+    }
+
+    private @Nullable Transaction transaction(final int index) {
+        final int windowIndex = index - windowOffset;
+        if (windowIndex < 0 || windowIndex >= transactions.size())
+            return null;
+        return transactions.get(windowIndex);
+    }
+
     @Override
     public int getItemCount() {
-        int count = transactions.size();
+        int count = size();
 
         if (warning != null)
             count++;
@@ -214,7 +307,12 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 position--;
         }
 
-        return WalletUtils.longHash(transactions.get(position).getHash());
+        if (!snapshot.isEmpty())
+            return WalletUtils.longHash(snapshot.get(position).hash);
+        final Transaction tx = transaction(position);
+        if (tx == null)
+            return RecyclerView.NO_ID - 1 - position; // placeholder
+        return WalletUtils.longHash(tx.getHash());
     }
 
     @Override
@@ -255,8 +353,15 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             final long itemId = getItemId(position);
             transactionHolder.itemView.setActivated(itemId == selectedItemId);
 
-            final Transaction tx = transactions.get(position - (warning != null ? 1 : 0));
-            transactionHolder.bind(tx);
+            final int index = position - (warning != null ? 1 : 0);
+            final Transaction tx = snapshot.isEmpty() ? transaction(index) : null;
+            final TransactionSummary summary = tx != null ? summaryCache.getWithoutResolving(tx) : null;
+            if (summary != null)
+                transactionHolder.bind(summary, true);
+            else if (!snapshot.isEmpty())
+                transactionHolder.bind(snapshot.get(index), false);
+            else
+                transactionHolder.bindPlaceholder();
 
             transactionHolder.itemView.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -265,7 +370,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 }
             });
 
-            if (onClickListener != null) {
+            if (onClickListener != null && tx != null) {
                 transactionHolder.menuView.setOnClickListener(new View.OnClickListener() {
                     @Override
                     public void onClick(final View v) {
@@ -277,7 +382,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             final WarningViewHolder warningHolder = (WarningViewHolder) holder;
 
             if (warning == Warning.BACKUP) {
-                if (transactions.size() == 1) {
+                if (size() == 1) {
                     warningHolder.messageView.setCompoundDrawablesWithIntrinsicBounds(0, 0, 0, 0);
                     warningHolder.messageView
                             .setText(Html.fromHtml(context.getString(R.string.wallet_transactions_row_warning_backup)));
@@ -348,46 +453,47 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             menuView = (ImageButton) itemView.findViewById(R.id.transaction_row_menu);
         }
 
-        private void bind(final Transaction tx) {
+        private void bindPlaceholder() {
+            if (itemView instanceof CardView)
+                ((CardView) itemView).setCardBackgroundColor(colorBackground);
+
+            extendTimeView.setVisibility(View.GONE);
+            confidenceCircularNormalView.setVisibility(View.INVISIBLE);
+            confidenceCircularSelectedView.setVisibility(View.INVISIBLE);
+            confidenceTextualNormalView.setVisibility(View.GONE);
+            confidenceTextualSelectedView.setVisibility(View.GONE);
+            timeView.setVisibility(View.VISIBLE);
+            timeView.setText(null);
+            extendAddressView.setVisibility(View.VISIBLE);
+            addressView.setText(null);
+            extendFeeView.setVisibility(View.GONE);
+            valueView.setVisibility(View.GONE);
+            extendFiatView.setVisibility(View.GONE);
+            extendMessageView.setVisibility(View.GONE);
+            menuView.setVisibility(View.GONE);
+        }
+
+        private void bind(final TransactionSummary summary, final boolean hasTransaction) {
             if (itemView instanceof CardView)
                 ((CardView) itemView)
                         .setCardBackgroundColor(itemView.isActivated() ? colorBackgroundSelected : colorBackground);
 
-            final TransactionConfidence confidence = tx.getConfidence();
-            final ConfidenceType confidenceType = confidence.getConfidenceType();
-            final boolean isOwn = confidence.getSource().equals(TransactionConfidence.Source.SELF);
-            final boolean isCoinBase = tx.isCoinBase();
-            final Transaction.Purpose purpose = tx.getPurpose();
-            final Coin fee = tx.getFee();
-            final String[] memo = Formats.sanitizeMemo(tx.getMemo());
-
-            TransactionCacheEntry txCache = transactionCache.get(tx.getHash());
-            if (txCache == null) {
-                final Coin value = tx.getValue(wallet);
-                final boolean sent = value.signum() < 0;
-                final boolean self = WalletUtils.isEntirelySelf(tx, wallet);
-                final boolean showFee = sent && fee != null && !fee.isZero();
-                final Address address;
-                if (sent)
-                    address = WalletUtils.getToAddressOfSent(tx, wallet);
-                else
-                    address = WalletUtils.getWalletAddressOfReceived(tx, wallet);
-                final String addressLabel = address != null
-                        ? AddressBookProvider.resolveLabel(context, address.toBase58()) : null;
-
-                txCache = new TransactionCacheEntry(value, sent, self, showFee, address, addressLabel);
-                transactionCache.put(tx.getHash(), txCache);
-            }
+            final ConfidenceType confidenceType = summary.confidenceType;
+            final boolean isOwn = summary.isOwn;
+            final boolean isCoinBase = summary.isCoinBase;
+            final Transaction.Purpose purpose = summary.purpose;
+            final Coin fee = summary.fee;
+            final String[] memo = summary.memo;
 
             final int textColor, lessSignificantColor, valueColor;
             if (confidenceType == ConfidenceType.DEAD) {
                 textColor = colorError;
                 lessSignificantColor = colorError;
                 valueColor = colorError;
-            } else if (DefaultCoinSelector.isSelectable(tx)) {
+            } else if (summary.isSelectable) {
                 textColor = colorSignificant;
                 lessSignificantColor = colorLessSignificant;
-                valueColor = txCache.sent ? colorValueNegative : colorValuePositve;
+                valueColor = summary.sent ? colorValueNegative : colorValuePositve;
             } else {
                 textColor = colorInsignificant;
                 lessSignificantColor = colorInsignificant;
@@ -409,7 +515,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
 
                 confidenceCircularView.setProgress(1);
                 confidenceCircularView.setMaxProgress(1);
-                confidenceCircularView.setSize(confidence.numBroadcastPeers());
+                confidenceCircularView.setSize(summary.numBroadcastPeers);
                 confidenceCircularView.setMaxSize(maxConnectedPeers / 2); // magic value
                 confidenceCircularView.setColors(colorInsignificant, Color.TRANSPARENT);
             } else if (confidenceType == ConfidenceType.IN_CONFLICT) {
@@ -423,7 +529,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 confidenceCircularView.setVisibility(View.VISIBLE);
                 confidenceTextualView.setVisibility(View.GONE);
 
-                confidenceCircularView.setProgress(confidence.getDepthInBlocks());
+                confidenceCircularView.setProgress(summary.depthInBlocks);
                 confidenceCircularView.setMaxProgress(isCoinBase
                         ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth() : Constants.MAX_NUM_CONFIRMATIONS);
                 confidenceCircularView.setSize(1);
@@ -446,16 +552,16 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             }
 
             // time
-            final Date time = tx.getUpdateTime();
+            final long time = summary.time;
             if (!itemView.isActivated()) {
                 extendTimeView.setVisibility(View.GONE);
 
                 timeView.setVisibility(View.VISIBLE);
-                timeView.setText(DateUtils.getRelativeTimeSpanString(context, time.getTime()));
+                timeView.setText(DateUtils.getRelativeTimeSpanString(context, time));
                 timeView.setTextColor(textColor);
             } else {
                 extendTimeView.setVisibility(View.VISIBLE);
-                fullTimeView.setText(DateUtils.formatDateTime(context, time.getTime(),
+                fullTimeView.setText(DateUtils.formatDateTime(context, time,
                         DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME));
                 fullTimeView.setTextColor(textColor);
 
@@ -467,24 +573,24 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 addressView.setTextColor(textColor);
                 addressView.setTypeface(Typeface.DEFAULT_BOLD);
                 addressView.setText(textCoinBase);
-            } else if (purpose == Purpose.KEY_ROTATION || txCache.self) {
+            } else if (purpose == Purpose.KEY_ROTATION || summary.self) {
                 addressView.setTextColor(lessSignificantColor);
                 addressView.setTypeface(Typeface.DEFAULT_BOLD);
                 addressView.setText(textInternal);
             } else if (purpose == Purpose.RAISE_FEE) {
                 addressView.setText(null);
-            } else if (txCache.addressLabel != null) {
+            } else if (summary.addressLabel != null) {
                 addressView.setTextColor(textColor);
                 addressView.setTypeface(Typeface.DEFAULT_BOLD);
-                addressView.setText(txCache.addressLabel);
+                addressView.setText(summary.addressLabel);
             } else if (memo != null && memo.length >= 2) {
                 addressView.setTextColor(textColor);
                 addressView.setTypeface(Typeface.DEFAULT_BOLD);
                 addressView.setText(memo[1]);
-            } else if (txCache.address != null) {
+            } else if (summary.address != null) {
                 addressView.setTextColor(lessSignificantColor);
                 addressView.setTypeface(Typeface.DEFAULT);
-                addressView.setText(WalletUtils.formatAddress(txCache.address, Constants.ADDRESS_FORMAT_GROUP_SIZE,
+                addressView.setText(WalletUtils.formatAddress(summary.address, Constants.ADDRESS_FORMAT_GROUP_SIZE,
                         Constants.ADDRESS_FORMAT_LINE_SIZE));
             } else {
                 addressView.setTextColor(lessSignificantColor);
@@ -496,7 +602,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                     .setVisibility(!itemView.isActivated() || purpose != Purpose.RAISE_FEE ? View.VISIBLE : View.GONE);
 
             // fee
-            if (txCache.showFee) {
+            if (summary.showFee) {
                 extendFeeView.setVisibility(itemView.isActivated()
                         || (confidenceType == ConfidenceType.PENDING && purpose != Purpose.RAISE_FEE) ? View.VISIBLE
                                 : View.GONE);
@@ -516,20 +622,19 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 value = fee.negate();
             } else {
                 valueView.setTextColor(valueColor);
-                value = txCache.showFee ? txCache.value.add(fee) : txCache.value;
+                value = summary.showFee ? summary.value.add(fee) : summary.value;
             }
             valueView.setAmount(value);
             valueView.setVisibility(!value.isZero() ? View.VISIBLE : View.GONE);
 
             // fiat value
-            final ExchangeRate exchangeRate = tx.getExchangeRate();
-            if (exchangeRate != null) {
+            if (summary.fiatValue != null) {
                 extendFiatView.setVisibility(View.VISIBLE);
                 fiatView.setAlwaysSigned(true);
                 fiatView.setPrefixColor(colorInsignificant);
                 fiatView.setFormat(Constants.LOCAL_FORMAT.code(0,
-                        Constants.PREFIX_ALMOST_EQUAL_TO + exchangeRate.fiat.getCurrencyCode()));
-                fiatView.setAmount(exchangeRate.coinToFiat(txCache.value));
+                        Constants.PREFIX_ALMOST_EQUAL_TO + summary.fiatValue.getCurrencyCode()));
+                fiatView.setAmount(summary.fiatValue);
             } else {
                 extendFiatView.setVisibility(View.GONE);
             }
@@ -547,41 +652,41 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_purpose_raise_fee);
                 messageView.setTextColor(colorInsignificant);
-            } else if (isOwn && confidenceType == ConfidenceType.PENDING && confidence.numBroadcastPeers() == 0) {
+            } else if (isOwn && confidenceType == ConfidenceType.PENDING && summary.numBroadcastPeers == 0) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_own_unbroadcasted);
                 messageView.setTextColor(colorInsignificant);
-            } else if (!isOwn && confidenceType == ConfidenceType.PENDING && confidence.numBroadcastPeers() == 0) {
+            } else if (!isOwn && confidenceType == ConfidenceType.PENDING && summary.numBroadcastPeers == 0) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_direct);
                 messageView.setTextColor(colorInsignificant);
-            } else if (!txCache.sent && txCache.value.compareTo(Transaction.MIN_NONDUST_OUTPUT) < 0) {
+            } else if (!summary.sent && summary.value.compareTo(Transaction.MIN_NONDUST_OUTPUT) < 0) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_dust);
                 messageView.setTextColor(colorInsignificant);
-            } else if (!txCache.sent && confidenceType == ConfidenceType.PENDING
-                    && (tx.getUpdateTime() == null || wallet.getLastBlockSeenTimeSecs() * 1000
-                            - tx.getUpdateTime().getTime() > Constants.DELAYED_TRANSACTION_THRESHOLD_MS)) {
+            } else if (!summary.sent && confidenceType == ConfidenceType.PENDING
+                    && (time == 0 || wallet.getLastBlockSeenTimeSecs() * 1000
+                            - time > Constants.DELAYED_TRANSACTION_THRESHOLD_MS)) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_unconfirmed_delayed);
                 messageView.setTextColor(colorInsignificant);
-            } else if (!txCache.sent && confidenceType == ConfidenceType.PENDING) {
+            } else if (!summary.sent && confidenceType == ConfidenceType.PENDING) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_unconfirmed_unlocked);
                 messageView.setTextColor(colorInsignificant);
-            } else if (!txCache.sent && confidenceType == ConfidenceType.IN_CONFLICT) {
+            } else if (!summary.sent && confidenceType == ConfidenceType.IN_CONFLICT) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_in_conflict);
                 messageView.setTextColor(colorInsignificant);
-            } else if (!txCache.sent && confidenceType == ConfidenceType.DEAD) {
+            } else if (!summary.sent && confidenceType == ConfidenceType.DEAD) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_dead);
                 messageView.setTextColor(colorError);
-            } else if (!txCache.sent && WalletUtils.isPayToManyTransaction(tx)) {
+            } else if (!summary.sent && summary.isPayToMany) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_pay_to_many);
                 messageView.setTextColor(colorInsignificant);
-            } else if (!txCache.sent && tx.isOptInFullRBF()) {
+            } else if (!summary.sent && summary.isOptInFullRBF) {
                 extendMessageView.setVisibility(View.VISIBLE);
                 messageView.setText(R.string.transaction_row_message_received_rbf);
                 messageView.setTextColor(colorInsignificant);
@@ -593,7 +698,7 @@ public class TransactionsAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             }
 
             // menu
-            menuView.setVisibility(itemView.isActivated() ? View.VISIBLE : View.GONE);
+            menuView.setVisibility(itemView.isActivated() && hasTransaction ? View.VISIBLE : View.GONE);
         }
     }
 
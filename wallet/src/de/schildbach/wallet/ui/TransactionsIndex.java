@@ -0,0 +1,326 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Transaction.Purpose;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.ui.WalletTransactionsFragment.Direction;
+
+/**
+ * Sorted, direction-partitioned view of the wallet's transactions that is kept alive across reloads. Wallet events
+ * only mark transactions as dirty; the next {@link #update(Wallet)} re-sorts just those instead of the whole wallet.
+ * Entries only hold what is needed for sorting; transactions are looked up in the wallet when a range is requested.
+ *
+ * <p>
+ * The wallet calls the listeners while holding its lock, so they never take the monitor of the index. In turn, the
+ * monitor is never held while calling into the wallet.
+ *
+ * @author Andreas Schildbach
+ */
+public final class TransactionsIndex implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        WalletReorganizeEventListener, TransactionConfidenceEventListener {
+    private final Map<Sha256Hash, Entry> entries = new ConcurrentHashMap<Sha256Hash, Entry>();
+    private final List<Entry> all = new ArrayList<Entry>();
+    private final List<Entry> received = new ArrayList<Entry>();
+    private final List<Entry> sent = new ArrayList<Entry>();
+
+    private final Set<Sha256Hash> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+    private final AtomicBoolean invalid = new AtomicBoolean(true);
+    private final Object updateLock = new Object();
+
+    /** beyond this share of dirty transactions, a full re-sort is cheaper than individual moves */
+    private static final int MAX_DIRTY_RATIO = 8;
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionsIndex.class);
+
+    private static final class Entry {
+        private final Sha256Hash hash;
+        private final ConfidenceType confidenceType;
+        private final boolean pending;
+        private final long time;
+        private final long value;
+        private final boolean sent;
+        private final boolean internal;
+
+        private Entry(final Transaction tx, final Wallet wallet) {
+            this.hash = tx.getHash();
+            this.confidenceType = tx.getConfidence().getConfidenceType();
+            this.pending = confidenceType == ConfidenceType.PENDING;
+            final Date updateTime = tx.getUpdateTime();
+            this.time = updateTime != null ? updateTime.getTime() : 0;
+            this.value = tx.getValue(wallet).value;
+            this.sent = value < 0;
+            this.internal = tx.getPurpose() == Purpose.KEY_ROTATION;
+        }
+    }
+
+    /** same order as the wallet transaction list: pending first, then newest first, then by hash */
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry entry1, final Entry entry2) {
+            if (entry1.pending != entry2.pending)
+                return entry1.pending ? -1 : 1;
+
+            if (entry1.time != entry2.time)
+                return entry1.time > entry2.time ? -1 : 1;
+
+            return entry1.hash.compareTo(entry2.hash);
+        }
+    };
+
+    public void invalidate(final Sha256Hash hash) {
+        dirty.add(hash);
+    }
+
+    public void invalidateAll() {
+        invalid.set(true);
+        dirty.clear();
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        invalidate(tx.getHash());
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        invalidate(tx.getHash());
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        // every new block changes the depth of all confirmed transactions, which doesn't affect the index
+        final Entry entry = entries.get(tx.getHash());
+        if (entry != null && entry.confidenceType == ConfidenceType.BUILDING
+                && tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
+            return;
+        invalidate(tx.getHash());
+    }
+
+    @Override
+    public void onReorganize(final Wallet wallet) {
+        invalidateAll();
+    }
+
+    /**
+     * Applies all pending invalidations.
+     *
+     * @return hashes of the transactions that were added, removed or changed, or {@code null} if the whole index had
+     *         to be rebuilt from scratch
+     */
+    public @Nullable Set<Sha256Hash> update(final Wallet wallet) {
+        synchronized (updateLock) {
+            final boolean wasInvalid = invalid.getAndSet(false);
+            final Set<Sha256Hash> changed = new HashSet<Sha256Hash>();
+            for (final Iterator<Sha256Hash> i = dirty.iterator(); i.hasNext();) {
+                changed.add(i.next());
+                i.remove();
+            }
+
+            if (!wasInvalid && changed.size() <= size(null) / MAX_DIRTY_RATIO) {
+                final Map<Sha256Hash, Entry> newEntries = new HashMap<Sha256Hash, Entry>();
+                for (final Sha256Hash hash : changed) {
+                    final Transaction tx = wallet.getTransaction(hash);
+                    newEntries.put(hash, tx != null ? new Entry(tx, wallet) : null);
+                }
+                final int poolSize = wallet.getPoolSize(Pool.ALL);
+
+                synchronized (this) {
+                    for (final Map.Entry<Sha256Hash, Entry> mapEntry : newEntries.entrySet()) {
+                        final Entry newEntry = mapEntry.getValue();
+                        final Entry oldEntry = newEntry != null ? entries.put(mapEntry.getKey(), newEntry)
+                                : entries.remove(mapEntry.getKey());
+
+                        // most confidence changes (e.g. depth) don't affect the order, so avoid shifting the lists
+                        if (oldEntry != null && newEntry != null && ENTRY_COMPARATOR.compare(oldEntry, newEntry) == 0
+                                && oldEntry.sent == newEntry.sent && oldEntry.internal == newEntry.internal) {
+                            replace(newEntry);
+                            continue;
+                        }
+
+                        if (oldEntry != null)
+                            remove(oldEntry);
+                        if (newEntry != null)
+                            insert(newEntry);
+                    }
+
+                    // some wallet changes (e.g. transactions that don't touch the balance) arrive without a
+                    // per-transaction event, so fall back to a rebuild if we've lost track
+                    if (entries.size() == poolSize)
+                        return changed;
+
+                    log.info("transactions index out of sync ({} vs {} transactions), rebuilding", entries.size(),
+                            poolSize);
+                }
+                rebuild(wallet);
+                return null;
+            }
+
+            rebuild(wallet);
+            return wasInvalid ? null : changed;
+        }
+    }
+
+    public synchronized int size(@Nullable final Direction direction) {
+        return partition(direction).size();
+    }
+
+    public List<Transaction> get(final Wallet wallet, @Nullable final Direction direction) {
+        return get(wallet, direction, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the transactions from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive, clamped).
+     *
+     * <p>
+     * Transactions the wallet doesn't know anymore are removed from the index and the range is read again, rather
+     * than just skipped, so that positions in the result keep matching the index. Query {@link #size(Direction)}
+     * after this method, not before.
+     */
+    public List<Transaction> get(final Wallet wallet, @Nullable final Direction direction, final int fromIndex,
+            final int toIndex) {
+        while (true) {
+            final List<Entry> range;
+            synchronized (this) {
+                final List<Entry> partition = partition(direction);
+                range = new ArrayList<Entry>(partition.subList(Math.min(fromIndex, partition.size()),
+                        Math.min(toIndex, partition.size())));
+            }
+
+            final List<Transaction> transactions = new ArrayList<Transaction>(range.size());
+            final List<Entry> vanished = new ArrayList<Entry>();
+            for (final Entry entry : range) {
+                final Transaction tx = wallet.getTransaction(entry.hash);
+                if (tx != null)
+                    transactions.add(tx);
+                else
+                    vanished.add(entry);
+            }
+            if (vanished.isEmpty())
+                return transactions;
+
+            log.info("{} transactions vanished from the wallet, removing from index", vanished.size());
+            synchronized (this) {
+                for (final Entry entry : vanished) {
+                    // an update may have replaced the entry in the meantime
+                    if (entries.get(entry.hash) == entry) {
+                        entries.remove(entry.hash);
+                        remove(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<Entry> partition(@Nullable final Direction direction) {
+        return direction == Direction.RECEIVED ? received : direction == Direction.SENT ? sent : all;
+    }
+
+    private void rebuild(final Wallet wallet) {
+        final List<Entry> newAll = new ArrayList<Entry>();
+        final List<Entry> newReceived = new ArrayList<Entry>();
+        final List<Entry> newSent = new ArrayList<Entry>();
+        for (final Transaction tx : wallet.getTransactions(true)) {
+            final Entry entry = new Entry(tx, wallet);
+            newAll.add(entry);
+            if (!entry.internal)
+                (entry.sent ? newSent : newReceived).add(entry);
+        }
+
+        Collections.sort(newAll, ENTRY_COMPARATOR);
+        Collections.sort(newReceived, ENTRY_COMPARATOR);
+        Collections.sort(newSent, ENTRY_COMPARATOR);
+
+        synchronized (this) {
+            entries.clear();
+            for (final Entry entry : newAll)
+                entries.put(entry.hash, entry);
+            all.clear();
+            all.addAll(newAll);
+            received.clear();
+            received.addAll(newReceived);
+            sent.clear();
+            sent.addAll(newSent);
+        }
+    }
+
+    private void insert(final Entry entry) {
+        insert(all, entry);
+        if (!entry.internal)
+            insert(entry.sent ? sent : received, entry);
+    }
+
+    private void remove(final Entry entry) {
+        remove(all, entry);
+        if (!entry.internal)
+            remove(entry.sent ? sent : received, entry);
+    }
+
+    private void replace(final Entry entry) {
+        replace(all, entry);
+        if (!entry.internal)
+            replace(entry.sent ? sent : received, entry);
+    }
+
+    private static void insert(final List<Entry> partition, final Entry entry) {
+        final int index = Collections.binarySearch(partition, entry, ENTRY_COMPARATOR);
+        partition.add(index >= 0 ? index : -index - 1, entry);
+    }
+
+    private static void remove(final List<Entry> partition, final Entry entry) {
+        final int index = Collections.binarySearch(partition, entry, ENTRY_COMPARATOR);
+        if (index >= 0)
+            partition.remove(index);
+    }
+
+    private static void replace(final List<Entry> partition, final Entry entry) {
+        final int index = Collections.binarySearch(partition, entry, ENTRY_COMPARATOR);
+        if (index >= 0)
+            partition.set(index, entry);
+        else
+            partition.add(-index - 1, entry);
+    }
+}
@@ -97,6 +97,7 @@ public final class WalletActivity extends AbstractBindServiceActivity
     private Wallet wallet;
 
     private Handler handler = new Handler();
+    private boolean destroyed = false;
 
     private static final int REQUEST_CODE_SCAN = 0;
     private static final int REQUEST_CODE_BACKUP_WALLET = 1;
@@ -108,6 +109,26 @@ public final class WalletActivity extends AbstractBindServiceActivity
 
         application = getWalletApplication();
         config = application.getConfiguration();
+
+        if (application.isWalletLoaded()) {
+            onWalletLoaded(savedInstanceState);
+        } else {
+            // render a skeleton rather than blocking the main thread until the wallet is loaded
+            setContentView(R.layout.wallet_activity_loading);
+            application.runWhenWalletLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    // e.g. rotated while loading, then the new instance has registered its own callback
+                    if (destroyed || isFinishing())
+                        return;
+                    onWalletLoaded(savedInstanceState);
+                    invalidateOptionsMenu();
+                }
+            });
+        }
+    }
+
+    private void onWalletLoaded(final Bundle savedInstanceState) {
         wallet = application.getWallet();
 
         setContentView(R.layout.wallet_content);
@@ -151,7 +172,10 @@ public final class WalletActivity extends AbstractBindServiceActivity
             @Override
             public void run() {
                 // delayed start so that UI has enough time to initialize
-                getWalletApplication().startBlockchainService(true);
+                if (application.isWalletLoaded())
+                    application.startBlockchainService(true);
+                else
+                    handler.postDelayed(this, 1000);
             }
         }, 1000);
     }
@@ -163,6 +187,14 @@ public final class WalletActivity extends AbstractBindServiceActivity
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        // the wallet loaded callback can't be removed, so it checks this instead
+        destroyed = true;
+
+        super.onDestroy();
+    }
+
     @Override
     protected void onNewIntent(final Intent intent) {
         handleIntent(intent);
@@ -252,6 +284,9 @@ public final class WalletActivity extends AbstractBindServiceActivity
     public boolean onPrepareOptionsMenu(final Menu menu) {
         super.onPrepareOptionsMenu(menu);
 
+        if (wallet == null)
+            return false;
+
         final Resources res = getResources();
         final String externalStorageState = Environment.getExternalStorageState();
 
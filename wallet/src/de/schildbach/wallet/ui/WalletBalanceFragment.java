@@ -30,6 +30,7 @@ import de.schildbach.wallet.data.ExchangeRate;
 import de.schildbach.wallet.data.ExchangeRatesLoader;
 import de.schildbach.wallet.data.ExchangeRatesProvider;
 import de.schildbach.wallet.service.BlockchainState;
+import de.schildbach.wallet.service.BlockchainState.CatchUpPhase;
 import de.schildbach.wallet.service.BlockchainStateLoader;
 import de.schildbach.wallet.ui.send.FeeCategory;
 import de.schildbach.wallet.ui.send.SendCoinsActivity;
@@ -202,6 +203,13 @@ public final class WalletBalanceFragment extends Fragment {
         SendCoinsActivity.startDonate(activity, null, FeeCategory.ECONOMIC, 0);
     }
 
+    private int catchUpPercent() {
+        final int total = blockchainState.catchUpTargetHeight - blockchainState.catchUpStartHeight;
+        if (total <= 0)
+            return 0;
+        return (int) (100L * (blockchainState.catchUpHeight - blockchainState.catchUpStartHeight) / total);
+    }
+
     private void updateView() {
         if (!isAdded())
             return;
@@ -215,8 +223,15 @@ public final class WalletBalanceFragment extends Fragment {
 
             showProgress = (!blockchainUptodate || blockchainState.replaying);
 
-            final String downloading = getString(noImpediments ? R.string.blockchain_state_progress_downloading
-                    : R.string.blockchain_state_progress_stalled);
+            final String downloading;
+            if (!noImpediments)
+                downloading = getString(R.string.blockchain_state_progress_stalled);
+            else if (blockchainState.catchUpPhase == CatchUpPhase.HEADERS)
+                downloading = getString(R.string.blockchain_state_progress_headers, catchUpPercent());
+            else if (blockchainState.catchUpPhase == CatchUpPhase.BLOCKS)
+                downloading = getString(R.string.blockchain_state_progress_blocks, catchUpPercent());
+            else
+                downloading = getString(R.string.blockchain_state_progress_downloading);
 
             if (blockchainLag < 2 * DateUtils.DAY_IN_MILLIS) {
                 final long hours = blockchainLag / DateUtils.HOUR_IN_MILLIS;
@@ -17,11 +17,9 @@
 
 package de.schildbach.wallet.ui;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.RejectedExecutionException;
@@ -30,9 +28,9 @@ import javax.annotation.Nullable;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.Transaction.Purpose;
-import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
@@ -74,8 +72,11 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.provider.Settings;
 import android.support.v4.content.LocalBroadcastManager;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.SpannableStringBuilder;
@@ -96,8 +97,9 @@ import android.widget.ViewAnimator;
 /**
  * @author Andreas Schildbach
  */
-public class WalletTransactionsFragment extends Fragment implements LoaderCallbacks<List<Transaction>>,
-        TransactionsAdapter.OnClickListener, OnSharedPreferenceChangeListener {
+public class WalletTransactionsFragment extends Fragment
+        implements LoaderCallbacks<WalletTransactionsFragment.TransactionsResult>, TransactionsAdapter.OnClickListener,
+        OnSharedPreferenceChangeListener {
     public enum Direction {
         RECEIVED, SENT
     }
@@ -116,10 +118,17 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     private TransactionsAdapter adapter;
     private MenuItem filterMenuItem;
 
+    private final TransactionsIndex transactionsIndex = new TransactionsIndex();
+    @Nullable
+    private List<Transaction> shownTransactions = null;
+
     @Nullable
     private Direction direction;
+    private boolean paging;
 
     private final Handler handler = new Handler();
+    private HandlerThread backgroundThread;
+    private Handler backgroundHandler;
 
     private static final int ID_TRANSACTION_LOADER = 0;
     private static final String ARG_DIRECTION = "direction";
@@ -127,13 +136,18 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     private static final long THROTTLE_MS = 1500;
     private static final Uri KEY_ROTATION_URI = Uri.parse("https://bitcoin.org/en/alert/2013-08-11-android");
     private static final int SHOW_QR_THRESHOLD_BYTES = 2500;
+    private static final int MAX_DIFF_CHANGES = 500;
+    private static final int PREFETCH_SUMMARIES = 50;
+    private static final int SNAPSHOT_SUMMARIES = 20;
+    private static final int WINDOW_SIZE = 200;
+    private static final int WINDOW_MARGIN = 20;
 
     private static final Logger log = LoggerFactory.getLogger(WalletTransactionsFragment.class);
 
     private final ContentObserver addressBookObserver = new ContentObserver(handler) {
         @Override
         public void onChange(final boolean selfChange) {
-            adapter.clearCacheAndNotifyDataSetChanged();
+            adapter.invalidateLabelsAndNotifyDataSetChanged();
         }
     };
 
@@ -159,7 +173,43 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
 
         adapter = new TransactionsAdapter(activity, wallet, true, application.maxConnectedPeers(), this);
 
+        backgroundThread = new HandlerThread("backgroundThread", Process.THREAD_PRIORITY_BACKGROUND);
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+
+        final File snapshotFile = snapshotFile();
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<TransactionSummary> snapshot = TransactionSummaryCache.readSnapshot(snapshotFile);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        adapter.replaceSnapshot(snapshot);
+                    }
+                });
+            }
+        });
+
         this.direction = null;
+        this.paging = application.isLowRamDevice();
+
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionsIndex);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionsIndex);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, transactionsIndex);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, transactionsIndex);
+    }
+
+    @Override
+    public void onDestroy() {
+        wallet.removeTransactionConfidenceEventListener(transactionsIndex);
+        wallet.removeReorganizeEventListener(transactionsIndex);
+        wallet.removeCoinsSentEventListener(transactionsIndex);
+        wallet.removeCoinsReceivedEventListener(transactionsIndex);
+
+        backgroundThread.getLooper().quit();
+
+        super.onDestroy();
     }
 
     @Override
@@ -192,6 +242,12 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
             }
         });
 
+        if (paging)
+            recyclerView.addOnScrollListener(windowScrollListener);
+
+        if (adapter.getItemCount() > 0)
+            viewGroup.setDisplayedChild(2);
+
         return view;
     }
 
@@ -208,22 +264,11 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         args.putSerializable(ARG_DIRECTION, direction);
         loaderManager.initLoader(ID_TRANSACTION_LOADER, args, this);
 
-        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addChangeEventListener(Threading.SAME_THREAD, transactionChangeListener);
-        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, transactionChangeListener);
-
         updateView();
     }
 
     @Override
     public void onPause() {
-        wallet.removeTransactionConfidenceEventListener(transactionChangeListener);
-        wallet.removeChangeEventListener(transactionChangeListener);
-        wallet.removeCoinsSentEventListener(transactionChangeListener);
-        wallet.removeCoinsReceivedEventListener(transactionChangeListener);
-        transactionChangeListener.removeCallbacks();
-
         loaderManager.destroyLoader(ID_TRANSACTION_LOADER);
 
         config.unregisterOnSharedPreferenceChangeListener(this);
@@ -425,17 +470,28 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     }
 
     @Override
-    public Loader<List<Transaction>> onCreateLoader(final int id, final Bundle args) {
-        return new TransactionsLoader(activity, wallet, (Direction) args.getSerializable(ARG_DIRECTION));
+    public Loader<TransactionsResult> onCreateLoader(final int id, final Bundle args) {
+        return new TransactionsLoader(activity, wallet, transactionsIndex, adapter.getSummaryCache(),
+                snapshotFile(), (Direction) args.getSerializable(ARG_DIRECTION), paging);
+    }
+
+    private File snapshotFile() {
+        return new File(application.getFilesDir(), Constants.Files.TRANSACTIONS_SNAPSHOT_FILENAME);
     }
 
     @Override
-    public void onLoadFinished(final Loader<List<Transaction>> loader, final List<Transaction> transactions) {
+    public void onLoadFinished(final Loader<TransactionsResult> loader, final TransactionsResult result) {
         final Direction direction = ((TransactionsLoader) loader).getDirection();
+        final List<Transaction> transactions = result.transactions;
 
-        adapter.replace(transactions);
+        // the diff is only valid against the exact list it was computed from
+        if (result.diff != null && result.base == shownTransactions)
+            adapter.replace(transactions, result.diff);
+        else
+            adapter.replace(transactions, result.windowOffset, result.windowTotal);
+        shownTransactions = transactions;
 
-        if (transactions.isEmpty()) {
+        if (result.windowTotal == 0) {
             viewGroup.setDisplayedChild(1);
 
             final SpannableStringBuilder emptyText = new SpannableStringBuilder(
@@ -458,36 +514,86 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
     }
 
     @Override
-    public void onLoaderReset(final Loader<List<Transaction>> loader) {
+    public void onLoaderReset(final Loader<TransactionsResult> loader) {
         // don't clear the adapter, because it will confuse users
     }
 
-    private final ThrottlingWalletChangeListener transactionChangeListener = new ThrottlingWalletChangeListener(
-            THROTTLE_MS) {
+    private final RecyclerView.OnScrollListener windowScrollListener = new RecyclerView.OnScrollListener() {
         @Override
-        public void onThrottledWalletChanged() {
-            adapter.notifyDataSetChanged();
+        public void onScrolled(final RecyclerView recyclerView, final int dx, final int dy) {
+            final LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+            final int center = adapter.windowCenter(layoutManager.findFirstVisibleItemPosition(),
+                    layoutManager.findLastVisibleItemPosition(), WINDOW_MARGIN);
+            if (center >= 0) {
+                final Loader<TransactionsResult> loader = loaderManager.getLoader(ID_TRANSACTION_LOADER);
+                if (loader != null)
+                    ((TransactionsLoader) loader).moveWindow(center);
+            }
         }
     };
 
-    private static class TransactionsLoader extends AsyncTaskLoader<List<Transaction>> {
+    static class TransactionsResult {
+        private final List<Transaction> transactions;
+        private final int windowOffset;
+        private final int windowTotal;
+        @Nullable
+        private final List<Transaction> base;
+        @Nullable
+        private final DiffUtil.DiffResult diff;
+
+        private TransactionsResult(final List<Transaction> transactions, final int windowOffset,
+                final int windowTotal, @Nullable final List<Transaction> base,
+                @Nullable final DiffUtil.DiffResult diff) {
+            this.transactions = transactions;
+            this.windowOffset = windowOffset;
+            this.windowTotal = windowTotal;
+            this.base = base;
+            this.diff = diff;
+        }
+    }
+
+    private static class TransactionsLoader extends AsyncTaskLoader<TransactionsResult> {
         private LocalBroadcastManager broadcastManager;
         private final Wallet wallet;
+        private final TransactionsIndex index;
+        private final TransactionSummaryCache summaryCache;
+        private final File snapshotFile;
         @Nullable
         private final Direction direction;
+        private final boolean paging;
+        private volatile int windowCenter = 0;
+        @Nullable
+        private List<Transaction> lastTransactions = null;
+        private List<TransactionSummary> lastSnapshot = new ArrayList<TransactionSummary>();
+        private int lastBestHeight = -1;
 
-        private TransactionsLoader(final Context context, final Wallet wallet, @Nullable final Direction direction) {
+        private TransactionsLoader(final Context context, final Wallet wallet, final TransactionsIndex index,
+                final TransactionSummaryCache summaryCache, final File snapshotFile,
+                @Nullable final Direction direction, final boolean paging) {
             super(context);
 
             this.broadcastManager = LocalBroadcastManager.getInstance(context.getApplicationContext());
             this.wallet = wallet;
+            this.index = index;
+            this.summaryCache = summaryCache;
+            this.snapshotFile = snapshotFile;
             this.direction = direction;
+            this.paging = paging;
         }
 
         public @Nullable Direction getDirection() {
             return direction;
         }
 
+        public void moveWindow(final int center) {
+            // scroll events keep coming while the new window loads, so ignore small moves
+            if (Math.abs(center - windowCenter) < WINDOW_SIZE / 4)
+                return;
+
+            windowCenter = center;
+            safeForceLoad();
+        }
+
         @Override
         protected void onStartLoading() {
             super.onStartLoading();
@@ -495,6 +601,7 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
             wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
             wallet.addCoinsSentEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
             wallet.addChangeEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
+            wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, transactionAddRemoveListener);
             broadcastManager.registerReceiver(walletChangeReceiver,
                     new IntentFilter(WalletApplication.ACTION_WALLET_REFERENCE_CHANGED));
             transactionAddRemoveListener.onReorganize(null); // trigger at least one reload
@@ -505,6 +612,7 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         @Override
         protected void onStopLoading() {
             broadcastManager.unregisterReceiver(walletChangeReceiver);
+            wallet.removeTransactionConfidenceEventListener(transactionAddRemoveListener);
             wallet.removeChangeEventListener(transactionAddRemoveListener);
             wallet.removeCoinsSentEventListener(transactionAddRemoveListener);
             wallet.removeCoinsReceivedEventListener(transactionAddRemoveListener);
@@ -516,6 +624,7 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         @Override
         protected void onReset() {
             broadcastManager.unregisterReceiver(walletChangeReceiver);
+            wallet.removeTransactionConfidenceEventListener(transactionAddRemoveListener);
             wallet.removeChangeEventListener(transactionAddRemoveListener);
             wallet.removeCoinsSentEventListener(transactionAddRemoveListener);
             wallet.removeCoinsReceivedEventListener(transactionAddRemoveListener);
@@ -525,28 +634,89 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         }
 
         @Override
-        public List<Transaction> loadInBackground() {
+        public TransactionsResult loadInBackground() {
             org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
-            final Set<Transaction> transactions = wallet.getTransactions(true);
-            final List<Transaction> filteredTransactions = new ArrayList<Transaction>(transactions.size());
+            final int bestHeight = wallet.getLastBlockSeenHeight();
+            final Set<Sha256Hash> changed = index.update(wallet);
+            if (changed != null) {
+                summaryCache.invalidate(changed);
+                // the index ignores depth changes, but rows show confirmations until they're complete
+                if (bestHeight != lastBestHeight)
+                    changed.addAll(summaryCache.invalidateConfirming());
+            } else {
+                summaryCache.invalidateAll();
+            }
+            lastBestHeight = bestHeight;
+
+            if (paging) {
+                final int windowOffset = Math.max(0,
+                        Math.min(windowCenter - WINDOW_SIZE / 2, index.size(direction) - WINDOW_SIZE));
+                final List<Transaction> window = index.get(wallet, direction, windowOffset,
+                        windowOffset + WINDOW_SIZE);
+                // reading the window may drop vanished transactions, so the total must be taken afterwards
+                final int windowTotal = index.size(direction);
 
-            for (final Transaction tx : transactions) {
-                final boolean sent = tx.getValue(wallet).signum() < 0;
-                final boolean isInternal = tx.getPurpose() == Purpose.KEY_ROTATION;
+                summaryCache.prefetch(window, PREFETCH_SUMMARIES);
+                if (direction == null && windowOffset == 0)
+                    maybeWriteSnapshot(window);
 
-                if ((direction == Direction.RECEIVED && !sent && !isInternal) || direction == null
-                        || (direction == Direction.SENT && sent && !isInternal))
-                    filteredTransactions.add(tx);
+                return new TransactionsResult(window, windowOffset, windowTotal, null, null);
             }
 
-            Collections.sort(filteredTransactions, TRANSACTION_COMPARATOR);
+            final List<Transaction> transactions = index.get(wallet, direction);
+            final List<Transaction> base = lastTransactions;
+            lastTransactions = transactions;
+
+            summaryCache.prefetch(transactions, PREFETCH_SUMMARIES);
+            if (direction == null)
+                maybeWriteSnapshot(transactions);
+
+            if (base == null || changed == null || changed.size() > MAX_DIFF_CHANGES)
+                return new TransactionsResult(transactions, 0, transactions.size(), null, null);
+
+            final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return base.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return transactions.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(final int oldItemPosition, final int newItemPosition) {
+                    return base.get(oldItemPosition).getHash().equals(transactions.get(newItemPosition).getHash());
+                }
 
-            return filteredTransactions;
+                @Override
+                public boolean areContentsTheSame(final int oldItemPosition, final int newItemPosition) {
+                    return !changed.contains(transactions.get(newItemPosition).getHash());
+                }
+            });
+            return new TransactionsResult(transactions, 0, transactions.size(), base, diff);
+        }
+
+        private void maybeWriteSnapshot(final List<Transaction> transactions) {
+            final List<TransactionSummary> snapshot = new ArrayList<TransactionSummary>(SNAPSHOT_SUMMARIES);
+            for (final Transaction tx : transactions.subList(0, Math.min(SNAPSHOT_SUMMARIES, transactions.size())))
+                snapshot.add(summaryCache.get(tx));
+
+            // summaries are immutable and cached, so unchanged rows are the very same instances
+            boolean unchanged = snapshot.size() == lastSnapshot.size();
+            for (int i = 0; unchanged && i < snapshot.size(); i++)
+                unchanged = snapshot.get(i) == lastSnapshot.get(i);
+            if (unchanged)
+                return;
+
+            TransactionSummaryCache.writeSnapshot(snapshotFile, snapshot);
+            lastSnapshot = snapshot;
         }
 
         private final ThrottlingWalletChangeListener transactionAddRemoveListener = new ThrottlingWalletChangeListener(
-                THROTTLE_MS, true, true, false) {
+                THROTTLE_MS) {
             @Override
             public void onThrottledWalletChanged() {
                 safeForceLoad();
@@ -556,6 +726,7 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
         private final BroadcastReceiver walletChangeReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(final Context context, final Intent intent) {
+                index.invalidateAll();
                 safeForceLoad();
             }
         };
@@ -567,27 +738,6 @@ public class WalletTransactionsFragment extends Fragment implements LoaderCallba
                 log.info("rejected execution: " + TransactionsLoader.this.toString());
             }
         }
-
-        private static final Comparator<Transaction> TRANSACTION_COMPARATOR = new Comparator<Transaction>() {
-            @Override
-            public int compare(final Transaction tx1, final Transaction tx2) {
-                final boolean pending1 = tx1.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-                final boolean pending2 = tx2.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-
-                if (pending1 != pending2)
-                    return pending1 ? -1 : 1;
-
-                final Date updateTime1 = tx1.getUpdateTime();
-                final long time1 = updateTime1 != null ? updateTime1.getTime() : 0;
-                final Date updateTime2 = tx2.getUpdateTime();
-                final long time2 = updateTime2 != null ? updateTime2.getTime() : 0;
-
-                if (time1 != time2)
-                    return time1 > time2 ? -1 : 1;
-
-                return tx1.getHash().compareTo(tx2.getHash());
-            }
-        };
     }
 
     @Override
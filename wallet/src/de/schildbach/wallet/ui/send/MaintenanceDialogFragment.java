@@ -234,6 +234,7 @@ public class MaintenanceDialogFragment extends DialogFragment {
                 org.bitcoinj.core.Context.propagate(Constants.CONTEXT);
 
                 try {
+                    application.initMnemonicCode();
                     wallet.doMaintenance(encryptionKey, true);
 
                     handler.post(new Runnable() {
@@ -22,6 +22,7 @@ import javax.annotation.Nullable;
 import org.bitcoinj.core.Coin;
 
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.data.PaymentIntent;
 import de.schildbach.wallet.ui.AbstractBindServiceActivity;
 import de.schildbach.wallet.ui.HelpDialogFragment;
@@ -61,13 +62,35 @@ public final class SendCoinsActivity extends AbstractBindServiceActivity {
                 context.getString(R.string.wallet_donate_address_label), amount), feeCategory, intentFlags);
     }
 
+    private boolean destroyed = false;
+
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        setContentView(R.layout.send_coins_content);
+        final WalletApplication application = getWalletApplication();
+        if (application.isWalletLoaded()) {
+            setContentView(R.layout.send_coins_content);
+        } else {
+            // the fragment needs the wallet right away, so only inflate it once the wallet is loaded
+            setContentView(R.layout.wallet_activity_loading);
+            application.runWhenWalletLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    if (!destroyed && !isFinishing())
+                        setContentView(R.layout.send_coins_content);
+                }
+            });
+        }
+
+        application.startBlockchainService(false);
+    }
+
+    @Override
+    protected void onDestroy() {
+        destroyed = true;
 
-        getWalletApplication().startBlockchainService(false);
+        super.onDestroy();
     }
 
     @Override
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fixed-size history of transactions received and blocks downloaded, one entry per time slot. The most recent entry
+ * has index 0. Once full, pushing an entry drops the oldest one.
+ *
+ * <p>
+ * Instances are not thread safe.
+ *
+ * @author Andreas Schildbach
+ */
+public final class ActivityHistory {
+    private final int[] transactions;
+    private final int[] blocks;
+    private int head = 0;
+    private int size = 0;
+
+    public ActivityHistory(final int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.transactions = new int[capacity];
+        this.blocks = new int[capacity];
+    }
+
+    public ActivityHistory(final ActivityHistory other) {
+        this.transactions = other.transactions.clone();
+        this.blocks = other.blocks.clone();
+        this.head = other.head;
+        this.size = other.size;
+    }
+
+    public void push(final int numTransactions, final int numBlocks) {
+        head = (head + 1) % transactions.length;
+        transactions[head] = numTransactions;
+        blocks[head] = numBlocks;
+        if (size < transactions.length)
+            size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int transactions(final int index) {
+        return transactions[slot(index)];
+    }
+
+    public int blocks(final int index) {
+        return blocks[slot(index)];
+    }
+
+    /** @return average number of transactions over the given number of most recent entries */
+    public double averageTransactions(final int numEntries) {
+        return average(transactions, numEntries);
+    }
+
+    /** @return average number of blocks over the given number of most recent entries */
+    public double averageBlocks(final int numEntries) {
+        return average(blocks, numEntries);
+    }
+
+    /**
+     * @return transactions weighted by an exponential decay with the given half-life in entries; the most recent entry
+     *         already counts half a half-life old
+     */
+    public double transactionActivity(final double halfLife) {
+        return activity(transactions, halfLife);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(transactions(i)).append('/').append(blocks(i));
+        }
+        return builder.toString();
+    }
+
+    private int slot(final int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return (head - index + transactions.length) % transactions.length;
+    }
+
+    private double average(final int[] counts, final int numEntries) {
+        final int n = Math.min(numEntries, size);
+        if (n <= 0)
+            return 0;
+        long sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += counts[slot(i)];
+        return (double) sum / n;
+    }
+
+    private double activity(final int[] counts, final double halfLife) {
+        final double decay = Math.pow(0.5, 1 / halfLife);
+        double weight = Math.sqrt(decay);
+        double activity = 0;
+        for (int i = 0; i < size; i++) {
+            activity += counts[slot(i)] * weight;
+            weight *= decay;
+        }
+        return activity;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Minimal RFC 4180 reader and writer that works one record at a time, so that files of any size can be streamed.
+ *
+ * @author Andreas Schildbach
+ */
+public final class Csv {
+    private Csv() {
+    }
+
+    /**
+     * Reads the next record. Quoted fields may contain separators, doubled quotes and line breaks. Lines may be
+     * terminated by LF or CRLF. The reader should be buffered and support {@link Reader#mark(int)}.
+     *
+     * @return fields of the record, or {@code null} at end of input
+     */
+    public static @Nullable List<String> readRecord(final Reader reader) throws IOException {
+        int c = reader.read();
+        if (c == -1)
+            return null;
+
+        final List<String> fields = new ArrayList<String>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+
+        while (true) {
+            if (quoted) {
+                if (c == -1)
+                    throw new IOException("unterminated quoted field");
+                if (c == '"') {
+                    reader.mark(1);
+                    final int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        if (next != -1)
+                            reader.reset();
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0 && !wasQuoted) {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+                wasQuoted = false;
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    reader.mark(1);
+                    if (reader.read() != '\n')
+                        reader.reset();
+                }
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+
+            c = reader.read();
+        }
+    }
+
+    /** Writes one record, quoting only the fields that need it. */
+    public static void writeRecord(final Writer writer, final String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                writer.write(',');
+            final String field = fields[i] != null ? fields[i] : "";
+            if (needsQuoting(field)) {
+                writer.write('"');
+                writer.write(field.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(field);
+            }
+        }
+        writer.write('\n');
+    }
+
+    private static boolean needsQuoting(final String field) {
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n')
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Fiat;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Reads protobuf wallets without materializing the whole {@link Protos.Wallet} message first, like
+ * {@link WalletProtobufSerializer#parseToProto(InputStream)} does.
+ *
+ * <p>
+ * The stream is read field by field. Keys and all other metadata are small and are handed to bitcoinj's
+ * {@link WalletProtobufSerializer} as a message without transactions. Each transaction is turned into a
+ * {@link Transaction} as soon as it has been read, and only the few bits needed for connecting it to the others are
+ * kept, so its message can be collected right away. When the stream is exhausted, the wallet is created with its keys
+ * and then the transactions are connected and added, in the same way the serializer does it.
+ *
+ * @author Andreas Schildbach
+ */
+public final class WalletProtobufReader {
+    /** same as bitcoinj */
+    private static final int WALLET_SIZE_LIMIT = 512 * 1024 * 1024;
+
+    private static final int TRANSACTION_CHUNK_SIZE = 500;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletProtobufReader.class);
+
+    private WalletProtobufReader() {
+    }
+
+    public static Wallet readWallet(final InputStream is, final NetworkParameters params)
+            throws IOException, UnreadableWalletException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        final CodedInputStream in = CodedInputStream.newInstance(is);
+        in.setSizeLimit(WALLET_SIZE_LIMIT);
+
+        final ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+        final CodedOutputStream metadataOut = CodedOutputStream.newInstance(metadata);
+        final Map<Sha256Hash, Transaction> txMap = new HashMap<Sha256Hash, Transaction>();
+        final List<PendingTransaction> pendingTxs = new ArrayList<PendingTransaction>();
+
+        while (true) {
+            final int tag = in.readTag();
+            if (tag == 0)
+                break;
+
+            if (WireFormat.getTagFieldNumber(tag) == Protos.Wallet.TRANSACTION_FIELD_NUMBER) {
+                if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED)
+                    throw new InvalidProtocolBufferException("unexpected wire type for transaction: " + tag);
+                final Protos.Transaction.Builder txProto = Protos.Transaction.newBuilder();
+                in.readMessage(txProto, ExtensionRegistryLite.getEmptyRegistry());
+                pendingTxs.add(readTransaction(params, txProto.build(), txMap));
+
+                if (pendingTxs.size() % TRANSACTION_CHUNK_SIZE == 0) {
+                    // the size limit applies per chunk, not to the wallet as a whole
+                    in.resetSizeCounter();
+                    log.debug("read {} transactions", pendingTxs.size());
+                }
+            } else {
+                in.skipField(tag, metadataOut);
+            }
+        }
+        metadataOut.flush();
+        final long txMs = watch.elapsed(TimeUnit.MILLISECONDS);
+
+        final Wallet wallet = new WalletProtobufSerializer().readWallet(params, null,
+                Protos.Wallet.parseFrom(metadata.toByteArray()));
+        final long keysMs = watch.elapsed(TimeUnit.MILLISECONDS) - txMs;
+
+        for (final PendingTransaction pendingTx : pendingTxs)
+            wallet.addWalletTransaction(pendingTx.connect(params, txMap));
+
+        watch.stop();
+        log.info("streamed wallet with {} transactions, took {} (parsing {} ms, keys {} ms)", pendingTxs.size(), watch,
+                txMs, keysMs);
+
+        return wallet;
+    }
+
+    private static PendingTransaction readTransaction(final NetworkParameters params, final Protos.Transaction txProto,
+            final Map<Sha256Hash, Transaction> txMap) throws UnreadableWalletException {
+        final Transaction tx = new Transaction(params);
+
+        tx.setVersion(txProto.getVersion());
+        if (txProto.hasUpdatedAt())
+            tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
+
+        final int numOutputs = txProto.getTransactionOutputCount();
+        final ByteString[] spentByHashes = new ByteString[numOutputs];
+        final int[] spentByIndexes = new int[numOutputs];
+        for (int i = 0; i < numOutputs; i++) {
+            final Protos.TransactionOutput outputProto = txProto.getTransactionOutput(i);
+            tx.addOutput(new TransactionOutput(params, tx, Coin.valueOf(outputProto.getValue()),
+                    outputProto.getScriptBytes().toByteArray()));
+            if (outputProto.hasSpentByTransactionHash()) {
+                spentByHashes[i] = outputProto.getSpentByTransactionHash();
+                spentByIndexes[i] = outputProto.getSpentByTransactionIndex();
+            }
+        }
+
+        for (final Protos.TransactionInput inputProto : txProto.getTransactionInputList()) {
+            final TransactionOutPoint outpoint = new TransactionOutPoint(params,
+                    inputProto.getTransactionOutPointIndex() & 0xFFFFFFFFL,
+                    hash(inputProto.getTransactionOutPointHash()));
+            final Coin value = inputProto.hasValue() ? Coin.valueOf(inputProto.getValue()) : null;
+            final TransactionInput input = new TransactionInput(params, tx, inputProto.getScriptBytes().toByteArray(),
+                    outpoint, value);
+            if (inputProto.hasSequence())
+                input.setSequenceNumber(0xFFFFFFFFL & inputProto.getSequence());
+            tx.addInput(input);
+        }
+
+        for (int i = 0; i < txProto.getBlockHashCount(); i++) {
+            final int relativityOffset = txProto.getBlockRelativityOffsetsCount() > 0
+                    ? txProto.getBlockRelativityOffsets(i) : 0;
+            tx.addBlockAppearance(hash(txProto.getBlockHash(i)), relativityOffset);
+        }
+
+        if (txProto.hasLockTime())
+            tx.setLockTime(0xFFFFFFFFL & txProto.getLockTime());
+
+        if (txProto.hasPurpose()) {
+            try {
+                tx.setPurpose(Transaction.Purpose.valueOf(txProto.getPurpose().name()));
+            } catch (final IllegalArgumentException x) {
+                tx.setPurpose(Transaction.Purpose.UNKNOWN);
+            }
+        }
+
+        if (txProto.hasExchangeRate()) {
+            final Protos.ExchangeRate exchangeRateProto = txProto.getExchangeRate();
+            tx.setExchangeRate(new ExchangeRate(Coin.valueOf(exchangeRateProto.getCoinValue()),
+                    Fiat.valueOf(exchangeRateProto.getFiatCurrencyCode(), exchangeRateProto.getFiatValue())));
+        }
+
+        if (txProto.hasMemo())
+            tx.setMemo(txProto.getMemo());
+
+        final Sha256Hash hash = hash(txProto.getHash());
+        if (!tx.getHash().equals(hash))
+            throw new UnreadableWalletException(
+                    "Transaction did not deserialize completely: " + tx.getHash() + " vs " + hash);
+        if (txMap.put(hash, tx) != null)
+            throw new UnreadableWalletException("Wallet contained duplicate transaction " + hash);
+
+        return new PendingTransaction(tx, txProto.getPool(), spentByHashes, spentByIndexes,
+                txProto.hasConfidence() ? txProto.getConfidence() : null);
+    }
+
+    private static Sha256Hash hash(final ByteString bytes) {
+        return Sha256Hash.wrap(bytes.toByteArray());
+    }
+
+    /** What's left of a transaction message after the transaction itself has been created. */
+    private static final class PendingTransaction {
+        private final Transaction tx;
+        private final Protos.Transaction.Pool pool;
+        private final ByteString[] spentByHashes;
+        private final int[] spentByIndexes;
+        @Nullable
+        private final Protos.TransactionConfidence confidenceProto;
+
+        public PendingTransaction(final Transaction tx, final Protos.Transaction.Pool pool,
+                final ByteString[] spentByHashes, final int[] spentByIndexes,
+                @Nullable final Protos.TransactionConfidence confidenceProto) {
+            this.tx = tx;
+            this.pool = pool;
+            this.spentByHashes = spentByHashes;
+            this.spentByIndexes = spentByIndexes;
+            this.confidenceProto = confidenceProto;
+        }
+
+        public WalletTransaction connect(final NetworkParameters params, final Map<Sha256Hash, Transaction> txMap)
+                throws UnreadableWalletException {
+            final WalletTransaction.Pool walletPool;
+            switch (pool) {
+            case DEAD:
+                walletPool = WalletTransaction.Pool.DEAD;
+                break;
+            case PENDING:
+            case INACTIVE:
+            case PENDING_INACTIVE:
+                // inactive pool has been merged with the pending pool
+                walletPool = WalletTransaction.Pool.PENDING;
+                break;
+            case SPENT:
+                walletPool = WalletTransaction.Pool.SPENT;
+                break;
+            case UNSPENT:
+                walletPool = WalletTransaction.Pool.UNSPENT;
+                break;
+            default:
+                throw new UnreadableWalletException("Unknown transaction pool: " + pool);
+            }
+
+            for (int i = 0; i < spentByHashes.length; i++) {
+                if (spentByHashes[i] == null)
+                    continue;
+                final Transaction spendingTx = txMap.get(hash(spentByHashes[i]));
+                if (spendingTx == null)
+                    throw new UnreadableWalletException(
+                            String.format("Could not connect %s to %s", tx.getHashAsString(), hash(spentByHashes[i])));
+                final TransactionInput input = spendingTx.getInput(spentByIndexes[i]);
+                if (input == null)
+                    throw new UnreadableWalletException("Could not connect " + tx.getHashAsString() + " to input "
+                            + spentByIndexes[i] + " of " + spendingTx.getHashAsString());
+                input.connect(tx.getOutput(i));
+            }
+
+            if (confidenceProto != null)
+                readConfidence(params, txMap);
+
+            return new WalletTransaction(walletPool, tx);
+        }
+
+        private void readConfidence(final NetworkParameters params, final Map<Sha256Hash, Transaction> txMap)
+                throws UnreadableWalletException {
+            if (!confidenceProto.hasType()) {
+                log.warn("Unknown confidence type for tx {}", tx.getHashAsString());
+                return;
+            }
+            final TransactionConfidence confidence = tx.getConfidence();
+            final ConfidenceType confidenceType = ConfidenceType.valueOf(confidenceProto.getType().getNumber());
+            confidence.setConfidenceType(confidenceType);
+            if (confidenceProto.hasAppearedAtHeight()) {
+                if (confidenceType != ConfidenceType.BUILDING) {
+                    log.warn("Have appearedAtHeight but not BUILDING for tx {}", tx.getHashAsString());
+                    return;
+                }
+                confidence.setAppearedAtChainHeight(confidenceProto.getAppearedAtHeight());
+            }
+            if (confidenceProto.hasDepth()) {
+                if (confidenceType != ConfidenceType.BUILDING) {
+                    log.warn("Have depth but not BUILDING for tx {}", tx.getHashAsString());
+                    return;
+                }
+                confidence.setDepthInBlocks(confidenceProto.getDepth());
+            }
+            if (confidenceProto.hasOverridingTransaction()) {
+                if (confidenceType != ConfidenceType.DEAD) {
+                    log.warn("Have overridingTransaction but not OVERRIDDEN for tx {}", tx.getHashAsString());
+                    return;
+                }
+                final Transaction overridingTransaction = txMap.get(hash(confidenceProto.getOverridingTransaction()));
+                if (overridingTransaction == null) {
+                    log.warn("Have overridingTransaction that is not in wallet for tx {}", tx.getHashAsString());
+                    return;
+                }
+                confidence.setOverridingTransaction(overridingTransaction);
+            }
+            for (final Protos.PeerAddress proto : confidenceProto.getBroadcastByList()) {
+                final InetAddress ip;
+                try {
+                    ip = InetAddress.getByAddress(proto.getIpAddress().toByteArray());
+                } catch (final UnknownHostException x) {
+                    throw new UnreadableWalletException("Peer IP address does not have the right length", x);
+                }
+                final int protocolVersion = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.CURRENT);
+                confidence.markBroadcastBy(new PeerAddress(params, ip, proto.getPort(), protocolVersion,
+                        BigInteger.valueOf(proto.getServices())));
+            }
+            if (confidenceProto.hasLastBroadcastedAt())
+                confidence.setLastBroadcastedAt(new Date(confidenceProto.getLastBroadcastedAt()));
+            switch (confidenceProto.getSource()) {
+            case SOURCE_SELF:
+                confidence.setSource(TransactionConfidence.Source.SELF);
+                break;
+            case SOURCE_NETWORK:
+                confidence.setSource(TransactionConfidence.Source.NETWORK);
+                break;
+            case SOURCE_UNKNOWN:
+            default:
+                confidence.setSource(TransactionConfidence.Source.UNKNOWN);
+                break;
+            }
+        }
+    }
+}
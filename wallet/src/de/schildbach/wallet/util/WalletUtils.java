@@ -32,6 +32,9 @@ import java.text.ParseException;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import javax.annotation.Nullable;
 
@@ -45,13 +48,20 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.KeyCrypter;
+import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.wallet.KeyChainGroup;
+import org.bitcoinj.wallet.Protos;
 import org.bitcoinj.wallet.UnreadableWalletException;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletProtobufSerializer;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
 
 import de.schildbach.wallet.Constants;
 
@@ -175,7 +185,7 @@ public class WalletUtils {
     public static Wallet restoreWalletFromProtobuf(final InputStream is,
             final NetworkParameters expectedNetworkParameters) throws IOException {
         try {
-            final Wallet wallet = new WalletProtobufSerializer().readWallet(Constants.NETWORK_PARAMETERS, null, WalletProtobufSerializer.parseToProto(is));
+            final Wallet wallet = WalletProtobufReader.readWallet(is, Constants.NETWORK_PARAMETERS);
 
             if (!wallet.getParams().equals(expectedNetworkParameters))
                 throw new IOException("bad wallet backup network parameters: " + wallet.getParams().getId());
@@ -308,7 +318,7 @@ public class WalletUtils {
     public static Wallet walletFromByteArray(final byte[] walletBytes) {
         try {
             final ByteArrayInputStream is = new ByteArrayInputStream(walletBytes);
-            final Wallet wallet = new WalletProtobufSerializer().readWallet(Constants.NETWORK_PARAMETERS, null, WalletProtobufSerializer.parseToProto(is));
+            final Wallet wallet = WalletProtobufReader.readWallet(is, Constants.NETWORK_PARAMETERS);
             is.close();
             return wallet;
         } catch (final UnreadableWalletException x) {
@@ -318,6 +328,35 @@ public class WalletUtils {
         }
     }
 
+    /**
+     * Digest of everything that ends up in the key backup, much cheaper than serializing the whole wallet. This
+     * includes the key material of all key chains and imported keys, encrypted or not, along with the salt and
+     * parameters of the key crypter, so changing the spending PIN changes the fingerprint.
+     */
+    public static String keyBackupFingerprint(final Wallet wallet) {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(wallet.getParams().getId(), Charsets.UTF_8);
+        hasher.putInt(wallet.getVersion());
+        final KeyCrypter keyCrypter = wallet.getKeyCrypter();
+        if (keyCrypter instanceof KeyCrypterScrypt)
+            hasher.putBytes(((KeyCrypterScrypt) keyCrypter).getScryptParameters().toByteArray());
+        else if (keyCrypter != null)
+            hasher.putString(keyCrypter.toString(), Charsets.UTF_8);
+        for (final Protos.Key key : wallet.serializeKeyChainGroupToProtobuf())
+            hasher.putBytes(key.toByteArray());
+        hasher.putInt(wallet.getWatchedScripts().size());
+        final Date keyRotationTime = wallet.getKeyRotationTime();
+        hasher.putLong(keyRotationTime != null ? keyRotationTime.getTime() : 0);
+        hasher.putString(Strings.nullToEmpty(wallet.getDescription()), Charsets.UTF_8);
+        for (final Map.Entry<String, ByteString> tag : new TreeMap<String, ByteString>(wallet.getTags()).entrySet()) {
+            hasher.putString(tag.getKey(), Charsets.UTF_8);
+            hasher.putBytes(tag.getValue().toByteArray());
+        }
+        for (final String extension : new TreeSet<String>(wallet.getExtensions().keySet()))
+            hasher.putString(extension, Charsets.UTF_8);
+        return hasher.hash().toString();
+    }
+
     public static boolean isPayToManyTransaction(final Transaction transaction) {
         return transaction.getOutputs().size() > 20;
     }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class WalletJournalTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File walletFile;
+    private File journalFile;
+    private Wallet wallet;
+    private WalletJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        walletFile = new File(folder.getRoot(), "wallet");
+        journalFile = new File(folder.getRoot(), "journal");
+        wallet = new Wallet(PARAMS);
+        wallet.saveToFile(walletFile);
+        journal = new WalletJournal(journalFile, wallet, walletFile);
+    }
+
+    @Test
+    public void replayPendingAndBestBlock() throws Exception {
+        final Transaction tx = receivePending(Coin.COIN);
+        final StoredBlock block = nextBlock(wallet.getLastBlockSeenHeight());
+        journal.notifyNewBestBlock(block);
+        journal.close();
+
+        final Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertNull(loaded.getTransaction(tx.getHash()));
+        assertEquals(2, WalletJournal.replay(journalFile, loaded));
+        assertNotNull(loaded.getTransaction(tx.getHash()));
+        assertEquals(Coin.COIN, loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(block.getHeight(), loaded.getLastBlockSeenHeight());
+
+        // replaying again must not change anything
+        assertEquals(0, WalletJournal.replay(journalFile, loaded));
+    }
+
+    @Test
+    public void tornRecordEndsReplay() throws Exception {
+        final Transaction tx1 = receivePending(Coin.COIN);
+        final Transaction tx2 = receivePending(Coin.CENT);
+        journal.close();
+
+        final RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+
+        final Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertEquals(1, WalletJournal.replay(journalFile, loaded));
+        assertNotNull(loaded.getTransaction(tx1.getHash()));
+        assertNull(loaded.getTransaction(tx2.getHash()));
+    }
+
+    @Test
+    public void snapshotDropsJournal() throws Exception {
+        final Transaction tx = receivePending(Coin.COIN);
+        journal.snapshot();
+        journal.close();
+
+        assertFalse(journalFile.exists());
+        final Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertNotNull(loaded.getTransaction(tx.getHash()));
+        assertEquals(0, WalletJournal.replay(journalFile, loaded));
+    }
+
+    @Test
+    public void failedAutosaveDoesNotPinOldJournal() throws Exception {
+        final File oldJournalFile = new File(folder.getRoot(), "journal.old");
+        receivePending(Coin.COIN);
+        journal.onBeforeAutoSave(null);
+        // autosave failed, so no onAfterAutoSave()
+        assertTrue(oldJournalFile.exists());
+
+        receivePending(Coin.CENT);
+        journal.onBeforeAutoSave(null);
+        wallet.saveToFile(walletFile);
+        journal.onAfterAutoSave(walletFile);
+        journal.close();
+
+        assertFalse(oldJournalFile.exists());
+        assertEquals(0, WalletJournal.replay(journalFile, Wallet.loadFromFile(walletFile)));
+    }
+
+    private Transaction receivePending(final Coin value) throws Exception {
+        final Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, value, wallet.freshReceiveAddress());
+        wallet.receivePending(tx, null);
+        journal.onCoinsReceived(wallet, tx, Coin.ZERO, wallet.getBalance());
+        return tx;
+    }
+
+    private static StoredBlock nextBlock(final int height) throws Exception {
+        final Block genesis = PARAMS.getGenesisBlock().cloneAsHeader();
+        final Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, genesis.getHash(), Sha256Hash.ZERO_HASH,
+                genesis.getTimeSeconds() + 60, genesis.getDifficultyTarget(), 0, Collections.<Transaction> emptyList());
+        return new StoredBlock(header, genesis.getWork(), Math.max(height + 1, 1));
+    }
+}
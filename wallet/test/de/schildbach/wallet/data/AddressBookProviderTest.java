@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * @author Andreas Schildbach
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AddressBookProviderTest {
+    private static final String ADDRESS_1 = "DH5yaieqoZN36fDVciNyRueRGvGLR3mr7L";
+    private static final String ADDRESS_2 = "DQA5h4Lb5i6WtGZAQGRMbh8kRnMVn6XRNq";
+    private static final String ADDRESS_3 = "DBXu2kgc3xtvCUWFcxFE3r9hEYgmuaaCyD";
+
+    private AddressBookProvider provider;
+    private Uri contentUri;
+    private ShadowContentResolver contentResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        contentUri = AddressBookProvider.contentUri(RuntimeEnvironment.application.getPackageName());
+        provider = Robolectric.buildContentProvider(AddressBookProvider.class).create(contentUri.getAuthority())
+                .get();
+        contentResolver = Shadows.shadowOf(RuntimeEnvironment.application.getContentResolver());
+    }
+
+    @Test
+    public void bulkInsertNotifiesOnce() throws Exception {
+        provider.insert(entryUri(ADDRESS_1), label("old"));
+        final int notified = contentResolver.getNotifiedUris().size();
+
+        assertEquals(3, provider.bulkInsert(contentUri,
+                new ContentValues[] { row(ADDRESS_1, "one"), row(ADDRESS_2, "two"), row(ADDRESS_3, null) }));
+
+        assertEquals(3, count());
+        assertEquals("one", labelOf(ADDRESS_1));
+        assertEquals(notified + 1, contentResolver.getNotifiedUris().size());
+        assertEquals(contentUri, contentResolver.getNotifiedUris().get(notified).uri);
+    }
+
+    @Test
+    public void bulkInsertRollsBackOnBadRow() throws Exception {
+        final ContentValues badRow = new ContentValues();
+        badRow.put(AddressBookProvider.KEY_LABEL, "no address");
+        try {
+            provider.bulkInsert(contentUri, new ContentValues[] { row(ADDRESS_1, "one"), badRow });
+            fail();
+        } catch (final IllegalArgumentException x) {
+            // expected
+        }
+
+        assertEquals(0, count());
+        assertTrue(contentResolver.getNotifiedUris().isEmpty());
+    }
+
+    @Test
+    public void applyBatchNotifiesOnce() throws Exception {
+        provider.insert(entryUri(ADDRESS_3), label("three"));
+        final int notified = contentResolver.getNotifiedUris().size();
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(entryUri(ADDRESS_1)).withValues(label("one")).build());
+        operations.add(ContentProviderOperation.newInsert(entryUri(ADDRESS_2)).withValues(label("two")).build());
+        operations.add(ContentProviderOperation.newDelete(entryUri(ADDRESS_3)).build());
+        provider.applyBatch(operations);
+
+        assertEquals(2, count());
+        assertEquals(notified + 1, contentResolver.getNotifiedUris().size());
+        assertEquals(contentUri, contentResolver.getNotifiedUris().get(notified).uri);
+    }
+
+    @Test
+    public void applyBatchRollsBackOnFailedOperation() throws Exception {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(entryUri(ADDRESS_1)).withValues(label("one")).build());
+        // there is nothing to update, so the expected count fails the batch
+        operations.add(ContentProviderOperation.newUpdate(entryUri(ADDRESS_2)).withValues(label("two"))
+                .withExpectedCount(1).build());
+        try {
+            provider.applyBatch(operations);
+            fail();
+        } catch (final OperationApplicationException x) {
+            // expected
+        }
+
+        assertEquals(0, count());
+        assertTrue(contentResolver.getNotifiedUris().isEmpty());
+    }
+
+    private Uri entryUri(final String address) {
+        return contentUri.buildUpon().appendPath(address).build();
+    }
+
+    private static ContentValues label(final String label) {
+        final ContentValues values = new ContentValues();
+        values.put(AddressBookProvider.KEY_LABEL, label);
+        return values;
+    }
+
+    private static ContentValues row(final String address, final String label) {
+        final ContentValues values = label(label);
+        values.put(AddressBookProvider.KEY_ADDRESS, address);
+        return values;
+    }
+
+    private int count() {
+        final Cursor cursor = provider.query(contentUri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String labelOf(final String address) {
+        final Cursor cursor = provider.query(entryUri(address), null, null, null, null);
+        try {
+            final List<String> labels = new ArrayList<String>();
+            while (cursor.moveToNext())
+                labels.add(cursor.getString(cursor.getColumnIndexOrThrow(AddressBookProvider.KEY_LABEL)));
+            assertEquals(1, labels.size());
+            return labels.get(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
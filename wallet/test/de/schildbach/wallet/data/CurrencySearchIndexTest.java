@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bitcoinj.utils.Fiat;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class CurrencySearchIndexTest {
+    private Map<String, ExchangeRate> rates;
+    private CurrencySearchIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        rates = new TreeMap<String, ExchangeRate>();
+        for (final String currencyCode : new String[] { "AUD", "CAD", "CHF", "EUR", "GBP", "USD", "mBTC" })
+            rates.put(currencyCode, new ExchangeRate(
+                    new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat(currencyCode, "0.01")), "test"));
+        index = new CurrencySearchIndex(rates, Locale.US, true);
+    }
+
+    @Test
+    public void code() throws Exception {
+        assertEquals(Arrays.asList("USD"), codes(index.search("us")));
+        assertEquals(Arrays.asList("CAD", "CHF"), codes(index.search("C")));
+        assertEquals(Arrays.asList("mBTC"), codes(index.search("mbtc")));
+    }
+
+    @Test
+    public void symbol() throws Exception {
+        assertEquals(Arrays.asList("USD"), codes(index.search("$")));
+        assertEquals(Arrays.asList("EUR"), codes(index.search("\u20ac")));
+    }
+
+    @Test
+    public void name() throws Exception {
+        assertEquals(Arrays.asList("AUD", "CAD", "USD"), codes(index.search("dollar")));
+        assertEquals(Arrays.asList("CHF"), codes(index.search("Swiss")));
+        assertEquals(Arrays.asList("GBP"), codes(index.search("pound")));
+        assertEquals(Arrays.asList("CHF"), codes(index.search("fr")));
+    }
+
+    @Test
+    public void prefixOnly() throws Exception {
+        assertTrue(index.search("sd").isEmpty());
+        assertTrue(index.search("ollar").isEmpty());
+    }
+
+    @Test
+    public void emptyQuery() throws Exception {
+        assertEquals(new ArrayList<String>(rates.keySet()), codes(index.search(" ")));
+    }
+
+    @Test
+    public void withoutNames() throws Exception {
+        final CurrencySearchIndex index = new CurrencySearchIndex(rates, Locale.US, false);
+        assertTrue(index.search("dollar").isEmpty());
+        assertEquals(Arrays.asList("USD"), codes(index.search("$")));
+    }
+
+    @Test
+    public void turkish() throws Exception {
+        final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>(this.rates);
+        rates.put("INR", new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat("INR", "0.01")), "test"));
+        final CurrencySearchIndex index = new CurrencySearchIndex(rates, new Locale("tr"), true);
+        assertEquals(Arrays.asList("INR"), codes(index.search("INR")));
+        assertEquals(Arrays.asList("INR"), codes(index.search("inr")));
+        assertEquals(Arrays.asList("INR"), codes(index.search("\u0130NR")));
+        assertEquals(Arrays.asList("CHF"), codes(index.search("\u0130svi\u00e7re")));
+        assertEquals(Arrays.asList("CHF"), codes(index.search("isvi\u00e7re")));
+    }
+
+    @Test
+    public void isFor() throws Exception {
+        assertTrue(index.isFor(rates, Locale.US));
+        assertFalse(index.isFor(rates, Locale.GERMANY));
+        assertFalse(index.isFor(new TreeMap<String, ExchangeRate>(rates), Locale.US));
+    }
+
+    private static List<String> codes(final List<ExchangeRate> rates) {
+        final List<String> codes = new ArrayList<String>(rates.size());
+        for (final ExchangeRate rate : rates)
+            codes.add(rate.getCurrencyCode());
+        return codes;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ExchangeRateAggregatorTest {
+    @Test
+    public void median() throws Exception {
+        assertEquals(new BigDecimal("2"), ExchangeRateAggregator.median(Arrays.asList(bd("3"), bd("1"), bd("2"))));
+        assertEquals(0, new BigDecimal("2.5")
+                .compareTo(ExchangeRateAggregator.median(Arrays.asList(bd("4"), bd("1"), bd("3"), bd("2")))));
+    }
+
+    @Test
+    public void rejectsOutliers() throws Exception {
+        final Map<String, BigDecimal> prices = new LinkedHashMap<String, BigDecimal>();
+        prices.put("a", bd("100"));
+        prices.put("b", bd("102"));
+        prices.put("c", bd("150"));
+        prices.put("d", bd("101"));
+        final ExchangeRateAggregator.Rate rate = ExchangeRateAggregator.combine(prices);
+        assertEquals(new BigDecimal("101"), rate.value);
+        assertEquals(Arrays.asList("a", "b", "d"), rate.sources);
+    }
+
+    @Test
+    public void tooFewToTellOutliers() throws Exception {
+        final Map<String, BigDecimal> prices = new LinkedHashMap<String, BigDecimal>();
+        prices.put("a", bd("100"));
+        prices.put("b", bd("200"));
+        final ExchangeRateAggregator.Rate rate = ExchangeRateAggregator.combine(prices);
+        assertEquals(0, new BigDecimal("150").compareTo(rate.value));
+        assertEquals(Arrays.asList("a", "b"), rate.sources);
+    }
+
+    @Test
+    public void noneCloseToMedian() throws Exception {
+        final Map<String, BigDecimal> prices = new LinkedHashMap<String, BigDecimal>();
+        prices.put("a", bd("100"));
+        prices.put("b", bd("101"));
+        prices.put("c", bd("1000"));
+        prices.put("d", bd("1010"));
+        final ExchangeRateAggregator.Rate rate = ExchangeRateAggregator.combine(prices);
+        assertEquals(0, new BigDecimal("550.5").compareTo(rate.value));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), rate.sources);
+    }
+
+    @Test
+    public void sourcesDisagreeWidely() throws Exception {
+        final ExchangeRateAggregator aggregator = new ExchangeRateAggregator(Arrays.asList(
+                source("a", "BTC", 0, "USD", "100"), source("b", "BTC", 0, "USD", "10000"),
+                source("c", "BTC", 0, "USD", "101"), source("d", "BTC", 0, "USD", "10100")));
+        final ExchangeRateAggregator.Rate usd = aggregator.fetch(1000).get("BTC", "USD");
+        assertEquals(0, new BigDecimal("5050.5").compareTo(usd.value));
+        assertEquals(4, usd.sources.size());
+    }
+
+    @Test
+    public void fetchesConcurrentlyWithinDeadline() throws Exception {
+        final ExchangeRateAggregator aggregator = new ExchangeRateAggregator(Arrays.asList(
+                source("fast", "BTC", 0, "USD", "1000"), source("slow", "BTC", 200, "USD", "1010"),
+                source("hanging", "BTC", 10000, "USD", "1"), failing("failing", "BTC"),
+                source("market", "DOGM", 100, "BTC", "0.000001")));
+
+        final long start = System.currentTimeMillis();
+        final ExchangeRateAggregator.Result result = aggregator.fetch(1000);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        final ExchangeRateAggregator.Rate usd = result.get("BTC", "USD");
+        assertEquals(0, new BigDecimal("1005").compareTo(usd.value));
+        assertEquals(Arrays.asList("fast", "slow"), usd.sources);
+        assertEquals(0, new BigDecimal("0.000001").compareTo(result.get("DOGM", "BTC").value));
+        assertNull(result.get("BTC", "EUR"));
+        assertTrue(result.forBase("LTC").isEmpty());
+
+        final Map<String, ExchangeRateAggregator.SourceMetrics> metrics = aggregator.getMetrics();
+        assertEquals(1, metrics.get("hanging/BTC").timeouts);
+        assertEquals(1, metrics.get("failing/BTC").errors);
+        assertEquals("java.io.IOException: down", metrics.get("failing/BTC").lastError);
+        assertEquals(0, metrics.get("slow/BTC").errors + metrics.get("slow/BTC").timeouts);
+        assertTrue(metrics.get("slow/BTC").averageLatencyMs >= 200);
+        assertEquals(1, metrics.get("market/DOGM").requests);
+    }
+
+    private static BigDecimal bd(final String value) {
+        return new BigDecimal(value);
+    }
+
+    private static ExchangeRateSource source(final String name, final String baseCurrencyCode, final long latencyMs,
+            final String currencyCode, final String price) {
+        return new StandInSource(name, baseCurrencyCode) {
+            @Override
+            public Map<String, BigDecimal> fetchRates() throws IOException {
+                try {
+                    Thread.sleep(latencyMs);
+                } catch (final InterruptedException x) {
+                    throw new IOException(x);
+                }
+                final Map<String, BigDecimal> rates = new LinkedHashMap<String, BigDecimal>();
+                rates.put(currencyCode, new BigDecimal(price));
+                return rates;
+            }
+        };
+    }
+
+    private static ExchangeRateSource failing(final String name, final String baseCurrencyCode) {
+        return new StandInSource(name, baseCurrencyCode) {
+            @Override
+            public Map<String, BigDecimal> fetchRates() throws IOException {
+                throw new IOException("down");
+            }
+        };
+    }
+
+    private abstract static class StandInSource implements ExchangeRateSource {
+        private final String name;
+        private final String baseCurrencyCode;
+
+        public StandInSource(final String name, final String baseCurrencyCode) {
+            this.name = name;
+            this.baseCurrencyCode = baseCurrencyCode;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getBaseCurrencyCode() {
+            return baseCurrencyCode;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ExchangeRateSourcesTest {
+    private MockWebServer server;
+    private OkHttpClient client;
+    private ByteString payload;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        client = new OkHttpClient();
+        payload = new Buffer().readFrom(getClass().getResourceAsStream("bitcoinaverage-ticker.json")).readByteString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void bitcoinAverage() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(payload)));
+        final Map<String, BigDecimal> rates = new ExchangeRateSources.BitcoinAverage(server.url("/ticker"), client,
+                "test-agent").fetchRates();
+        assertEquals(167, rates.size());
+        assertEquals(new BigDecimal("7402.37"), rates.get("USD"));
+        assertEquals(new BigDecimal("6373.44"), rates.get("EUR"));
+        assertEquals(new BigDecimal("835727.57"), rates.get("JPY"));
+        assertFalse(rates.containsKey("BTCUSD"));
+        assertEquals("test-agent", server.takeRequest().getHeader("User-Agent"));
+    }
+
+    @Test
+    public void blockchainInfo() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"USD\":{\"15m\":7401.5,\"last\":7401.53,\"symbol\":\"$\"},"
+                + "\"EUR\":{\"last\":6350,\"symbol\":\"€\"},\"XXX\":{\"symbol\":\"?\"}}"));
+        final Map<String, BigDecimal> rates = new ExchangeRateSources.BlockchainInfo(server.url("/ticker"), client,
+                "test-agent").fetchRates();
+        assertEquals(expected("USD", "7401.53", "EUR", "6350"), rates);
+    }
+
+    @Test
+    public void coinGeckoBtc() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"rates\":{\"btc\":{\"name\":\"Bitcoin\",\"value\":1.0,"
+                + "\"type\":\"crypto\"},\"usd\":{\"name\":\"US Dollar\",\"unit\":\"$\",\"value\":7399.1,"
+                + "\"type\":\"fiat\"},\"xau\":{\"value\":5.6,\"type\":\"commodity\"}}}"));
+        final Map<String, BigDecimal> rates = new ExchangeRateSources.CoinGeckoBtc(server.url("/exchange_rates"),
+                client, "test-agent").fetchRates();
+        assertEquals(expected("USD", "7399.1"), rates);
+    }
+
+    @Test
+    public void coinMarketCapDogm() throws Exception {
+        server.enqueue(new MockResponse().setBody("[{\"id\":\"dogmcoin\",\"price_usd\":\"0.0081\","
+                + "\"price_btc\":\"0.00000110\",\"rank\":\"812\"}]"));
+        final Map<String, BigDecimal> rates = new ExchangeRateSources.CoinMarketCapDogm(server.url("/ticker"),
+                client, "test-agent").fetchRates();
+        assertEquals(expected("BTC", "0.00000110"), rates);
+    }
+
+    @Test
+    public void coinGeckoDogm() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"dogmcoin\":{\"btc\":1.1e-6}}"));
+        final Map<String, BigDecimal> rates = new ExchangeRateSources.CoinGeckoDogm(server.url("/price"), client,
+                "test-agent").fetchRates();
+        assertEquals(0, new BigDecimal("0.0000011").compareTo(rates.get("BTC")));
+    }
+
+    @Test(expected = IOException.class)
+    public void httpError() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setBody("{}"));
+        new ExchangeRateSources.BlockchainInfo(server.url("/ticker"), client, "test-agent").fetchRates();
+    }
+
+    @Test
+    public void unexpectedJson() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"BTCUSD\":{\"averages\":{\"day\":null}},"
+                + "\"BTCEUR\":{\"averages\":{\"day\":\"n/a\"}},\"BTCGBP\":{\"averages\":[]},\"BTCCHF\":null,"
+                + "\"BTCJPY\":{\"averages\":{\"day\":835727.57}}}"));
+        final Map<String, BigDecimal> rates = new ExchangeRateSources.BitcoinAverage(server.url("/ticker"), client,
+                "test-agent").fetchRates();
+        assertEquals(expected("JPY", "835727.57"), rates);
+    }
+
+    @Test
+    public void unexpectedJsonCoinGecko() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"rates\":{\"usd\":{\"value\":null,\"type\":\"fiat\"},"
+                + "\"eur\":null,\"gbp\":{\"value\":5685.02,\"type\":\"fiat\"}}}"));
+        final Map<String, BigDecimal> rates = new ExchangeRateSources.CoinGeckoBtc(server.url("/exchange_rates"),
+                client, "test-agent").fetchRates();
+        assertEquals(expected("GBP", "5685.02"), rates);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        server.enqueue(new MockResponse().setBody(new Buffer().write(payload.substring(0, payload.size() / 2))));
+        new ExchangeRateSources.BitcoinAverage(server.url("/ticker"), client, "test-agent").fetchRates();
+    }
+
+    private static Map<String, BigDecimal> expected(final String... codesAndRates) {
+        final Map<String, BigDecimal> rates = new TreeMap<String, BigDecimal>();
+        for (int i = 0; i < codesAndRates.length; i += 2)
+            rates.put(codesAndRates[i], new BigDecimal(codesAndRates[i + 1]));
+        return rates;
+    }
+}
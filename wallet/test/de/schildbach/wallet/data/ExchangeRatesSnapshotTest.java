@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bitcoinj.utils.Fiat;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ExchangeRatesSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "exchange-rates");
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+        put(rates, "USD", "0.0021", "BitcoinAverage.com");
+        put(rates, "EUR", "0.0018", "BitcoinAverage.com");
+        put(rates, "mBTC", "0.0001", "coinmarketcap.com");
+        new ExchangeRatesSnapshot(rates, 1500000000000L, new BigDecimal("0.00000011"), 1500000001000L).write(file);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        final ExchangeRatesSnapshot snapshot = ExchangeRatesSnapshot.read(file);
+        assertEquals(1500000000000L, snapshot.exchangeRatesTime);
+        assertEquals(new BigDecimal("0.00000011"), snapshot.dogmBtcConversion);
+        assertEquals(1500000001000L, snapshot.dogmBtcConversionTime);
+        assertEquals(rates.keySet(), snapshot.exchangeRates.keySet());
+        for (final ExchangeRate rate : rates.values()) {
+            final ExchangeRate readRate = snapshot.exchangeRates.get(rate.getCurrencyCode());
+            assertEquals(rate.rate.coin, readRate.rate.coin);
+            assertEquals(rate.rate.fiat, readRate.rate.fiat);
+            assertEquals(rate.source, readRate.source);
+        }
+    }
+
+    @Test
+    public void missing() throws Exception {
+        assertNull(ExchangeRatesSnapshot.read(file));
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+        put(rates, "USD", "0.0021", "BitcoinAverage.com");
+        new ExchangeRatesSnapshot(rates, 1500000000000L, new BigDecimal("0.00000011"), 1500000001000L).write(file);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+
+        assertNull(ExchangeRatesSnapshot.read(file));
+    }
+
+    private static void put(final Map<String, ExchangeRate> rates, final String currencyCode, final String rate,
+            final String source) {
+        rates.put(currencyCode,
+                new ExchangeRate(new org.bitcoinj.utils.ExchangeRate(Fiat.parseFiat(currencyCode, rate)), source));
+    }
+}
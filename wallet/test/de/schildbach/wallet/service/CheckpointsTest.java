@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class CheckpointsTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long WEEK_SECS = 60 * 60 * 24 * 7;
+
+    @Test
+    public void checkpointBefore() throws Exception {
+        final List<StoredBlock> checkpoints = checkpoints(10);
+        final ByteBuffer buffer = write(checkpoints);
+        final long firstTime = checkpoints.get(0).getHeader().getTimeSeconds();
+
+        assertNull(Checkpoints.checkpointBefore(PARAMS, buffer, firstTime + WEEK_SECS - 1));
+        assertEquals(checkpoints.get(0), Checkpoints.checkpointBefore(PARAMS, buffer, firstTime + WEEK_SECS));
+        assertEquals(checkpoints.get(4),
+                Checkpoints.checkpointBefore(PARAMS, buffer, time(checkpoints, 5) + WEEK_SECS - 1));
+        assertEquals(checkpoints.get(5),
+                Checkpoints.checkpointBefore(PARAMS, buffer, time(checkpoints, 5) + WEEK_SECS));
+        assertEquals(checkpoints.get(9), Checkpoints.checkpointBefore(PARAMS, buffer, Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        assertNull(Checkpoints.checkpointBefore(PARAMS, write(Collections.<StoredBlock> emptyList()),
+                System.currentTimeMillis() / 1000));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        final ByteBuffer buffer = write(checkpoints(3));
+        buffer.limit(buffer.limit() - 1);
+        Checkpoints.checkpointBefore(PARAMS, buffer, Long.MAX_VALUE / 2);
+    }
+
+    private static List<StoredBlock> checkpoints(final int numCheckpoints) throws Exception {
+        final Block genesis = PARAMS.getGenesisBlock().cloneAsHeader();
+        StoredBlock prev = new StoredBlock(genesis, genesis.getWork(), 0);
+        final List<StoredBlock> checkpoints = new ArrayList<StoredBlock>(numCheckpoints);
+        for (int i = 0; i < numCheckpoints; i++) {
+            final Block prevHeader = prev.getHeader();
+            final Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, prevHeader.getHash(),
+                    Sha256Hash.ZERO_HASH, prevHeader.getTimeSeconds() + 3 * WEEK_SECS,
+                    prevHeader.getDifficultyTarget(), i, Collections.<Transaction> emptyList());
+            prev = prev.build(header);
+            checkpoints.add(prev);
+        }
+        return checkpoints;
+    }
+
+    private static long time(final List<StoredBlock> checkpoints, final int index) {
+        return checkpoints.get(index).getHeader().getTimeSeconds();
+    }
+
+    private static ByteBuffer write(final List<StoredBlock> checkpoints) {
+        final ByteBuffer buffer = ByteBuffer
+                .allocate(Checkpoints.HEADER_SIZE + checkpoints.size() * Checkpoints.RECORD_SIZE);
+        buffer.put(Checkpoints.MAGIC);
+        buffer.putInt(Checkpoints.VERSION);
+        buffer.putInt(checkpoints.size());
+        for (final StoredBlock checkpoint : checkpoints)
+            checkpoint.serializeCompact(buffer);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.SPVBlockStore;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class MappedBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "blockchain");
+    }
+
+    @Test
+    public void newStoreContainsGenesis() throws Exception {
+        final MappedBlockStore store = new MappedBlockStore(PARAMS, file, 10);
+        final StoredBlock chainHead = store.getChainHead();
+        assertEquals(0, chainHead.getHeight());
+        assertEquals(PARAMS.getGenesisBlock().getHash(), chainHead.getHeader().getHash());
+        assertEquals(chainHead, store.get(chainHead.getHeader().getHash()));
+        store.close();
+        assertEquals(MappedBlockStore.fileLength(10), file.length());
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        MappedBlockStore store = new MappedBlockStore(PARAMS, file, 200);
+        final List<StoredBlock> blocks = extend(store, 100);
+        store.close();
+
+        store = new MappedBlockStore(PARAMS, file, 200);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        for (final StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void ringDropsOldest() throws Exception {
+        MappedBlockStore store = new MappedBlockStore(PARAMS, file, 10);
+        final List<StoredBlock> blocks = extend(store, 25);
+        assertDropped(store, blocks, 15);
+        store.close();
+
+        store = new MappedBlockStore(PARAMS, file, 10);
+        assertDropped(store, blocks, 15);
+        store.close();
+    }
+
+    @Test
+    public void resize() throws Exception {
+        MappedBlockStore store = new MappedBlockStore(PARAMS, file, 50);
+        final List<StoredBlock> blocks = extend(store, 40);
+        store.close();
+
+        store = new MappedBlockStore(PARAMS, file, 20);
+        assertEquals(MappedBlockStore.fileLength(20), file.length());
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        assertDropped(store, blocks, 20);
+        store.close();
+
+        store = new MappedBlockStore(PARAMS, file, 100);
+        assertEquals(MappedBlockStore.fileLength(100), file.length());
+        assertDropped(store, blocks, 20);
+        blocks.addAll(extend(store, 10));
+        store.close();
+
+        store = new MappedBlockStore(PARAMS, file, 100);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        assertDropped(store, blocks, 20);
+        store.close();
+    }
+
+    @Test
+    public void readsSpvBlockStore() throws Exception {
+        final SPVBlockStore spvStore = new SPVBlockStore(PARAMS, file);
+        final List<StoredBlock> blocks = extend(spvStore, 100);
+        spvStore.close();
+
+        final MappedBlockStore store = new MappedBlockStore(PARAMS, file, MappedBlockStore.DEFAULT_CAPACITY);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        for (final StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    private static List<StoredBlock> extend(final BlockStore store, final int numBlocks) throws Exception {
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>(numBlocks);
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < numBlocks; i++) {
+            final Block prevHeader = prev.getHeader();
+            final Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, prevHeader.getHash(),
+                    Sha256Hash.ZERO_HASH, prevHeader.getTimeSeconds() + 60, prevHeader.getDifficultyTarget(), i,
+                    Collections.<Transaction> emptyList());
+            final StoredBlock block = prev.build(header);
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+            prev = block;
+        }
+        return blocks;
+    }
+
+    /** Asserts that only blocks from the given index on are still in the store. */
+    private static void assertDropped(final BlockStore store, final List<StoredBlock> blocks, final int firstKept)
+            throws Exception {
+        for (int i = 0; i < blocks.size(); i++) {
+            final StoredBlock block = blocks.get(i);
+            if (i < firstKept)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PartialMerkleTree;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ParallelBlockDownloadTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int NUM_BLOCKS = 250;
+
+    private final Map<Sha256Hash, FilteredBlock> chain = new LinkedHashMap<Sha256Hash, FilteredBlock>();
+    private final List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>();
+    private final List<Sha256Hash> applied = Collections.synchronizedList(new ArrayList<Sha256Hash>());
+    private ScheduledExecutorService executor;
+
+    private final ParallelBlockDownload.BlockSink sink = new ParallelBlockDownload.BlockSink() {
+        @Override
+        public void add(final FilteredBlock block, final ParallelBlockDownload.BlockSource source,
+                final int blocksLeft) {
+            assertEquals(NUM_BLOCKS - applied.size() - 1, blocksLeft);
+            applied.add(block.getHash());
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newScheduledThreadPool(4);
+
+        Block block = PARAMS.getGenesisBlock();
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            block = block.createNextBlock(null);
+            final List<Sha256Hash> txHashes = Collections.singletonList(block.getTransactions().get(0).getHash());
+            final FilteredBlock filteredBlock = new FilteredBlock(PARAMS, block.cloneAsHeader(),
+                    PartialMerkleTree.buildFromLeaves(PARAMS, new byte[] { 0 }, txHashes));
+            chain.put(filteredBlock.getHash(), filteredBlock);
+            blockHashes.add(filteredBlock.getHash());
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void appliesInChainOrder() throws Exception {
+        final ParallelBlockDownload download = new ParallelBlockDownload(blockHashes, sink, 20, 100);
+        download.addSource(new StandInBlockSource(chain, executor, 30), "slow");
+        download.addSource(new StandInBlockSource(chain, executor, 10), "medium");
+        download.addSource(new StandInBlockSource(chain, executor, 1), "fast");
+        download.start().get(10, TimeUnit.SECONDS);
+
+        assertEquals(blockHashes, applied);
+        final Map<String, ParallelBlockDownload.Contribution> contributions = download.getContributions();
+        assertTrue(contributions.get("fast").blocks > 0);
+        int numBlocks = 0;
+        for (final ParallelBlockDownload.Contribution contribution : contributions.values())
+            numBlocks += contribution.blocks;
+        assertEquals(NUM_BLOCKS, numBlocks);
+    }
+
+    @Test
+    public void stalledSourceDoesNotBlock() throws Exception {
+        final ParallelBlockDownload download = new ParallelBlockDownload(blockHashes, sink, 20, 100);
+        download.addSource(new StandInBlockSource(chain, executor, 0).stalled(), "stalled");
+        download.addSource(new StandInBlockSource(chain, executor, 1), "fast");
+        download.start().get(10, TimeUnit.SECONDS);
+
+        assertEquals(blockHashes, applied);
+        assertEquals(0, download.getContributions().get("stalled").blocks);
+    }
+
+    @Test
+    public void missingBlocksAreRequestedAgain() throws Exception {
+        final ParallelBlockDownload download = new ParallelBlockDownload(blockHashes, sink, 20, 100);
+        download.addSource(new StandInBlockSource(chain, executor, 1).missingEvery(7), "gaps");
+        download.addSource(new StandInBlockSource(chain, executor, 5), "complete");
+        download.start().get(10, TimeUnit.SECONDS);
+
+        assertEquals(blockHashes, applied);
+    }
+
+    @Test
+    public void failingSourceIsDropped() throws Exception {
+        final StandInBlockSource failing = new StandInBlockSource(chain, executor, 1).failing();
+        final ParallelBlockDownload download = new ParallelBlockDownload(blockHashes, sink, 20, 100);
+        download.addSource(failing, "failing");
+        download.addSource(new StandInBlockSource(chain, executor, 5), "fine");
+        download.start().get(10, TimeUnit.SECONDS);
+
+        assertEquals(blockHashes, applied);
+        assertEquals(3, failing.getNumRequests());
+        assertEquals(3, download.getContributions().get("failing").failures);
+    }
+
+    @Test
+    public void allSourcesFailing() throws Exception {
+        final ParallelBlockDownload download = new ParallelBlockDownload(blockHashes, sink, 20, 100);
+        download.addSource(new StandInBlockSource(chain, executor, 1).failing(), "failing");
+        try {
+            download.start().get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (final ExecutionException x) {
+            assertTrue(x.getCause() instanceof IOException);
+        }
+        assertEquals(0, applied.size());
+    }
+}
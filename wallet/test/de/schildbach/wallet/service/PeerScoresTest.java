@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.net.InetAddresses;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class PeerScoresTest {
+    private static final InetSocketAddress FAST = address("10.0.0.1");
+    private static final InetSocketAddress SLOW = address("10.0.0.2");
+    private static final InetSocketAddress UNREACHABLE = address("10.0.0.3");
+    private static final InetSocketAddress UNKNOWN = address("2001:db8::1");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private PeerScores scores;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "peer-scores");
+        scores = new PeerScores(file);
+
+        connect(FAST, 20);
+        connect(SLOW, 2000);
+        scores.onConnecting(UNREACHABLE);
+        scores.onDisconnected(UNREACHABLE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void sortBestFirst() throws Exception {
+        assertEquals(Arrays.asList(FAST, UNKNOWN, SLOW, UNREACHABLE),
+                scores.sortBestFirst(Arrays.asList(UNREACHABLE, UNKNOWN, SLOW, FAST)));
+    }
+
+    @Test
+    public void best() throws Exception {
+        assertEquals(Arrays.asList(FAST), scores.best(8));
+        assertEquals(0, scores.best(0).size());
+    }
+
+    @Test
+    public void failuresAreForgivenOnConnect() throws Exception {
+        assertTrue(scores.cost(UNREACHABLE) > scores.cost(UNKNOWN));
+        connect(UNREACHABLE, 20);
+        assertTrue(scores.cost(UNREACHABLE) < scores.cost(UNKNOWN));
+    }
+
+    @Test
+    public void candidates() throws Exception {
+        assertEquals(Arrays.asList(FAST, SLOW), scores.candidates(8));
+        scores.learnedFromSeeds(Arrays.asList(UNKNOWN, UNREACHABLE));
+        assertEquals(Arrays.asList(FAST, UNKNOWN, SLOW, UNREACHABLE), scores.candidates(8));
+        assertEquals(Arrays.asList(FAST, UNKNOWN), scores.candidates(2));
+    }
+
+    @Test
+    public void candidatesMixInSeeds() throws Exception {
+        final InetSocketAddress peer = address("10.0.1.1");
+        final List<InetSocketAddress> advertised = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < 100; i++)
+            advertised.add(address("10.0.2." + i));
+        scores.learnedFromPeer(peer, advertised);
+        scores.learnedFromPeer(peer, Arrays.asList(address("10.0.3.1")));
+        scores.learnedFromSeeds(Arrays.asList(UNKNOWN));
+
+        final List<InetSocketAddress> candidates = scores.candidates(1000);
+        // FAST, SLOW and only the first addresses advertised by the peer, plus the seed
+        assertTrue(candidates.size() < 40);
+        assertFalse(candidates.contains(address("10.0.3.1")));
+        assertEquals(Arrays.asList(FAST, UNKNOWN), candidates.subList(0, 2));
+    }
+
+    @Test
+    public void repeatedlyFailingPeersAreNoCandidates() throws Exception {
+        scores.learnedFromSeeds(Arrays.asList(UNREACHABLE));
+        for (int i = 0; i < 2; i++) {
+            scores.onConnecting(UNREACHABLE);
+            scores.onDisconnected(UNREACHABLE, Long.MAX_VALUE);
+        }
+        assertEquals(Arrays.asList(FAST, SLOW), scores.candidates(8));
+    }
+
+    @Test
+    public void persisted() throws Exception {
+        scores.learnedFromSeeds(Arrays.asList(UNKNOWN));
+        scores.save();
+        final PeerScores loaded = new PeerScores(file);
+        for (final InetSocketAddress address : Arrays.asList(FAST, SLOW, UNREACHABLE, UNKNOWN))
+            assertEquals(scores.cost(address), loaded.cost(address));
+        assertEquals(Arrays.asList(FAST, UNKNOWN, SLOW, UNREACHABLE),
+                loaded.sortBestFirst(Arrays.asList(UNREACHABLE, UNKNOWN, SLOW, FAST)));
+        assertEquals(scores.candidates(8), loaded.candidates(8));
+    }
+
+    private void connect(final InetSocketAddress address, final long pingMs) {
+        scores.onConnecting(address);
+        scores.onConnected(address);
+        scores.onDisconnected(address, pingMs);
+    }
+
+    private static InetSocketAddress address(final String ip) {
+        return new InetSocketAddress(InetAddresses.forString(ip), 22556);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Sha256Hash;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Stands in for a connected peer, serving filtered blocks from a local chain after a configurable delay.
+ *
+ * @author Andreas Schildbach
+ */
+public class StandInBlockSource implements ParallelBlockDownload.BlockSource {
+    private final Map<Sha256Hash, FilteredBlock> chain;
+    private final ScheduledExecutorService executor;
+    private final long latencyMs;
+    private boolean failing = false;
+    private boolean stalled = false;
+    private int missingEvery = 0;
+    private int numRequests = 0;
+
+    public StandInBlockSource(final Map<Sha256Hash, FilteredBlock> chain, final ScheduledExecutorService executor,
+            final long latencyMs) {
+        this.chain = chain;
+        this.executor = executor;
+        this.latencyMs = latencyMs;
+    }
+
+    /** Fails every request. */
+    public StandInBlockSource failing() {
+        this.failing = true;
+        return this;
+    }
+
+    /** Never answers. */
+    public StandInBlockSource stalled() {
+        this.stalled = true;
+        return this;
+    }
+
+    /** Leaves out every n-th block. */
+    public StandInBlockSource missingEvery(final int n) {
+        this.missingEvery = n;
+        return this;
+    }
+
+    public synchronized int getNumRequests() {
+        return numRequests;
+    }
+
+    @Override
+    public synchronized ListenableFuture<List<FilteredBlock>> getFilteredBlocks(final List<Sha256Hash> blockHashes) {
+        numRequests++;
+        final SettableFuture<List<FilteredBlock>> future = SettableFuture.create();
+        if (stalled)
+            return future;
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (failing) {
+                    future.setException(new IOException("failing on purpose"));
+                    return;
+                }
+                final List<FilteredBlock> blocks = new ArrayList<FilteredBlock>(blockHashes.size());
+                for (int i = 0; i < blockHashes.size(); i++) {
+                    final FilteredBlock block = chain.get(blockHashes.get(i));
+                    if (block != null && (missingEvery == 0 || i % missingEvery != missingEvery - 1))
+                        blocks.add(block);
+                }
+                future.set(blocks);
+            }
+        }, latencyMs, TimeUnit.MILLISECONDS);
+        return future;
+    }
+}
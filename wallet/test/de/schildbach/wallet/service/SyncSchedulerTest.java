@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.TimeZone;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class SyncSchedulerTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long DAY = 24 * HOUR;
+    /** 2017-01-09 00:00 UTC */
+    private static final long MONDAY = 1483920000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private SyncScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "sync-history");
+        scheduler = new SyncScheduler(file, UTC);
+    }
+
+    @Test
+    public void noHistory() throws Exception {
+        assertEquals(DAY, scheduler.nextSyncDelay(MONDAY + 8 * HOUR, DAY));
+        assertEquals(HOUR, scheduler.nextSyncDelay(MONDAY + 8 * HOUR, HOUR));
+    }
+
+    @Test
+    public void wakesWhenPaymentsAreExpected() throws Exception {
+        paidDailyAt(9, 1);
+        final long delay = scheduler.nextSyncDelay(MONDAY + 7 * DAY + 8 * HOUR, DAY);
+        assertTrue(delay > HOUR && delay < 2 * HOUR);
+    }
+
+    @Test
+    public void sleepsWhilePaymentsAreUnlikely() throws Exception {
+        paidDailyAt(9, 1);
+        assertEquals(12 * HOUR, scheduler.nextSyncDelay(MONDAY + 7 * DAY + 10 * HOUR, 12 * HOUR));
+    }
+
+    @Test
+    public void boundedBySyncDuration() throws Exception {
+        paidDailyAt(9, 20);
+        assertEquals(15 * 60 * 1000, scheduler.nextSyncDelay(MONDAY + 7 * DAY + 9 * HOUR, DAY));
+        scheduler.onSynced(MONDAY + 7 * DAY + 9 * HOUR, HOUR, 100);
+        assertEquals(4 * HOUR, scheduler.nextSyncDelay(MONDAY + 7 * DAY + 9 * HOUR, DAY));
+    }
+
+    @Test
+    public void estimatesSyncDuration() throws Exception {
+        assertEquals(-1, scheduler.estimateSyncDurationMs(1000));
+        scheduler.onSynced(MONDAY, 60 * 1000, 100);
+        assertEquals(600 * 1000, scheduler.estimateSyncDurationMs(1000));
+    }
+
+    @Test
+    public void persisted() throws Exception {
+        paidDailyAt(9, 1);
+        scheduler.onSynced(MONDAY + 7 * DAY, 60 * 1000, 10);
+        scheduler.save();
+        final SyncScheduler loaded = new SyncScheduler(file, UTC);
+        for (int hour = 0; hour < 24; hour++)
+            assertEquals(scheduler.transactionsPerHour(hour), loaded.transactionsPerHour(hour), 0.0001);
+        final long now = MONDAY + 7 * DAY + 8 * HOUR;
+        assertEquals(scheduler.nextSyncDelay(now, DAY), loaded.nextSyncDelay(now, DAY));
+    }
+
+    private void paidDailyAt(final int hour, final int count) {
+        for (int day = 0; day < 7; day++)
+            for (int i = 0; i < count; i++)
+                scheduler.onTransactionReceived(MONDAY + day * DAY + hour * HOUR + i * 60 * 1000);
+    }
+}
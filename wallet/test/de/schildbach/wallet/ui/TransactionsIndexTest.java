@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class TransactionsIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Wallet wallet;
+    private TransactionsIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = new Wallet(PARAMS);
+        index = new TransactionsIndex();
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, index);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, index);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, index);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, index);
+    }
+
+    @Test
+    public void newBlockDoesNotChangeIndex() throws Exception {
+        final Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, wallet.freshReceiveAddress());
+        final StoredBlock block1 = block(1);
+        wallet.receiveFromBlock(tx, block1, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block1);
+        assertNull(index.update(wallet));
+
+        wallet.notifyNewBestBlock(block(2));
+        assertEquals(2, tx.getConfidence().getDepthInBlocks());
+        final Set<Sha256Hash> changed = index.update(wallet);
+        assertNotNull(changed);
+        assertTrue(changed.isEmpty());
+        assertEquals(Collections.singletonList(tx), index.get(wallet, null));
+    }
+
+    @Test
+    public void confirmationChangesIndex() throws Exception {
+        final Transaction tx = FakeTxBuilder.createFakeTx(PARAMS, Coin.COIN, wallet.freshReceiveAddress());
+        wallet.receivePending(tx, null);
+        index.update(wallet);
+
+        final StoredBlock block1 = block(1);
+        wallet.receiveFromBlock(tx, block1, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block1);
+        assertEquals(ConfidenceType.BUILDING, tx.getConfidence().getConfidenceType());
+        assertEquals(Collections.singleton(tx.getHash()), index.update(wallet));
+    }
+
+    private static StoredBlock block(final int height) throws Exception {
+        final Block genesis = PARAMS.getGenesisBlock().cloneAsHeader();
+        final Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, genesis.getHash(), Sha256Hash.ZERO_HASH,
+                genesis.getTimeSeconds() + 60 * height, genesis.getDifficultyTarget(), 0,
+                Collections.<Transaction> emptyList());
+        return new StoredBlock(header, genesis.getWork(), height);
+    }
+}
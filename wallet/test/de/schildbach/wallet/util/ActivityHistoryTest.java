@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class ActivityHistoryTest {
+    @Test
+    public void wrapsAround() throws Exception {
+        final ActivityHistory history = new ActivityHistory(3);
+        assertEquals(0, history.size());
+        for (int i = 1; i <= 5; i++)
+            history.push(i, 10 * i);
+        assertEquals(3, history.size());
+        assertEquals(5, history.transactions(0));
+        assertEquals(50, history.blocks(0));
+        assertEquals(3, history.transactions(2));
+        assertEquals("5/50, 4/40, 3/30", history.toString());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void indexBeyondSize() throws Exception {
+        final ActivityHistory history = new ActivityHistory(3);
+        history.push(1, 1);
+        history.blocks(1);
+    }
+
+    @Test
+    public void averages() throws Exception {
+        final ActivityHistory history = new ActivityHistory(10);
+        assertEquals(0, history.averageBlocks(3), 0);
+        history.push(0, 6);
+        history.push(3, 0);
+        history.push(0, 3);
+        assertEquals(3, history.averageBlocks(3), 0.0001);
+        assertEquals(1.5, history.averageBlocks(2), 0.0001);
+        assertEquals(1, history.averageTransactions(100), 0.0001);
+    }
+
+    @Test
+    public void activityDecays() throws Exception {
+        final ActivityHistory history = new ActivityHistory(10);
+        history.push(1, 0);
+        final double recent = history.transactionActivity(1);
+        history.push(0, 0);
+        assertEquals(recent / 2, history.transactionActivity(1), 0.0001);
+    }
+
+    @Test
+    public void burstsStayActiveLonger() throws Exception {
+        final ActivityHistory single = new ActivityHistory(10);
+        final ActivityHistory burst = new ActivityHistory(10);
+        single.push(1, 0);
+        burst.push(10, 0);
+        for (int i = 0; i < 3; i++) {
+            single.push(0, 0);
+            burst.push(0, 0);
+        }
+        assertTrue(single.transactionActivity(1) < 0.1);
+        assertTrue(burst.transactionActivity(1) > 0.1);
+    }
+
+    @Test
+    public void idleRule() throws Exception {
+        // the service idles once transaction activity with a half-life of one minute drops below 0.1
+        assertEquals(0, minutesUntilIdle(0));
+        assertEquals(3, minutesUntilIdle(1));
+        assertEquals(7, minutesUntilIdle(10));
+    }
+
+    @Test
+    public void copyIsIndependent() throws Exception {
+        final ActivityHistory history = new ActivityHistory(3);
+        history.push(1, 2);
+        final ActivityHistory copy = new ActivityHistory(history);
+        history.push(3, 4);
+        assertEquals(1, copy.size());
+        assertEquals(2, copy.blocks(0));
+    }
+
+    private static int minutesUntilIdle(final int numTransactions) {
+        final ActivityHistory history = new ActivityHistory(60);
+        history.push(numTransactions, 0);
+        int minutes = 0;
+        while (history.transactionActivity(1) >= 0.1) {
+            history.push(0, 0);
+            minutes++;
+        }
+        return minutes;
+    }
+}
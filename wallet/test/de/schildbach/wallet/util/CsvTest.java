@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class CsvTest {
+    @Test
+    public void readPlain() throws Exception {
+        final BufferedReader reader = new BufferedReader(new StringReader("a,b\r\nc,\n,d"));
+        assertEquals(Arrays.asList("a", "b"), Csv.readRecord(reader));
+        assertEquals(Arrays.asList("c", ""), Csv.readRecord(reader));
+        assertEquals(Arrays.asList("", "d"), Csv.readRecord(reader));
+        assertNull(Csv.readRecord(reader));
+    }
+
+    @Test
+    public void readQuoted() throws Exception {
+        final BufferedReader reader = new BufferedReader(
+                new StringReader("\"a,b\",\"say \"\"hi\"\"\"\n\"multi\r\nline\",x\n\"\"\n"));
+        assertEquals(Arrays.asList("a,b", "say \"hi\""), Csv.readRecord(reader));
+        assertEquals(Arrays.asList("multi\r\nline", "x"), Csv.readRecord(reader));
+        assertEquals(Arrays.asList(""), Csv.readRecord(reader));
+        assertNull(Csv.readRecord(reader));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final String[] fields = { "plain", "with,comma", "with \"quotes\"", "with\nnewline", "" };
+        final StringWriter writer = new StringWriter();
+        Csv.writeRecord(writer, fields);
+        Csv.writeRecord(writer, "last");
+        assertEquals("plain,\"with,comma\",\"with \"\"quotes\"\"\",\"with\nnewline\",\nlast\n", writer.toString());
+
+        final BufferedReader reader = new BufferedReader(new StringReader(writer.toString()));
+        assertEquals(Arrays.asList(fields), Csv.readRecord(reader));
+        assertEquals(Arrays.asList("last"), Csv.readRecord(reader));
+        assertNull(Csv.readRecord(reader));
+    }
+}
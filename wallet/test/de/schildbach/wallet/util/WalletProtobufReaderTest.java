@@ -0,0 +1,79 @@
+/*
+ * Copyright 2011-2015 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.junit.Test;
+
+/**
+ * @author Andreas Schildbach
+ */
+public class WalletProtobufReaderTest {
+    @Test
+    public void sameAsSerializer() throws Exception {
+        final NetworkParameters params = TestNet3Params.get();
+        final Wallet expected = new WalletProtobufSerializer().readWallet(params, null,
+                WalletProtobufSerializer.parseToProto(getClass().getResourceAsStream("backup-protobuf-testnet")));
+        final Wallet wallet = WalletProtobufReader.readWallet(getClass().getResourceAsStream("backup-protobuf-testnet"),
+                params);
+        assertEquals(new WalletProtobufSerializer().walletToProto(expected),
+                new WalletProtobufSerializer().walletToProto(wallet));
+    }
+
+    @Test
+    public void roundTripWithTransactions() throws Exception {
+        final NetworkParameters params = UnitTestParams.get();
+        final Wallet original = new Wallet(params);
+        for (int i = 0; i < 1200; i++) {
+            final Transaction tx = FakeTxBuilder.createFakeTx(params, Coin.valueOf(i + 1, 0),
+                    original.freshReceiveAddress());
+            original.receivePending(tx, null);
+        }
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(original, os);
+
+        final Wallet wallet = WalletProtobufReader.readWallet(new ByteArrayInputStream(os.toByteArray()), params);
+        assertTrue(wallet.isConsistent());
+        assertEquals(original.getTransactions(true).size(), wallet.getTransactions(true).size());
+        assertEquals(original.getBalance(BalanceType.ESTIMATED), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(new WalletProtobufSerializer().walletToProto(original),
+                new WalletProtobufSerializer().walletToProto(wallet));
+    }
+
+    @Test(expected = IOException.class)
+    public void notAWallet() throws Exception {
+        final InputStream is = getClass().getResourceAsStream("backup-base58-testnet");
+        WalletProtobufReader.readWallet(is, TestNet3Params.get());
+    }
+}
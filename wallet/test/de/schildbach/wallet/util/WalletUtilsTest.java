@@ -17,10 +17,15 @@
 
 package de.schildbach.wallet.util;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
 import java.io.IOException;
 
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.wallet.Wallet;
 import org.junit.Test;
 
 /**
@@ -35,6 +40,22 @@ public class WalletUtilsTest {
                 TestNet3Params.get());
     }
 
+    @Test
+    public void keyBackupFingerprint_changesWithPassword() throws Exception {
+        final Wallet wallet = new Wallet(UnitTestParams.get());
+        final String unencrypted = WalletUtils.keyBackupFingerprint(wallet);
+        assertEquals(unencrypted, WalletUtils.keyBackupFingerprint(wallet));
+
+        wallet.encrypt("1234");
+        final String encrypted = WalletUtils.keyBackupFingerprint(wallet);
+        assertNotEquals(unencrypted, encrypted);
+
+        // what changing the spending PIN does
+        wallet.decrypt("1234");
+        wallet.encrypt("5678");
+        assertNotEquals(encrypted, WalletUtils.keyBackupFingerprint(wallet));
+    }
+
     @Test(expected = IOException.class)
     public void restoreWalletFromProtobuf_wrongNetwork() throws Exception {
         WalletUtils.restoreWalletFromProtobufOrBase58(getClass().getResourceAsStream("backup-protobuf-testnet"),